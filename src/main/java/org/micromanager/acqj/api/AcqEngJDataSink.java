@@ -1,5 +1,7 @@
 package org.micromanager.acqj.api;
 
+import java.util.ArrayList;
+import java.util.List;
 import mmcorej.TaggedImage;
 import mmcorej.org.json.JSONObject;
 import org.micromanager.acqj.main.Acquisition;
@@ -40,6 +42,25 @@ public interface AcqEngJDataSink {
     */
    public Object putImage(TaggedImage image);
 
+   /**
+    * Add several consecutive images at once, in order. Only called if the acquisition
+    * has a saving batch size above 1 (see
+    * {@link Acquisition#setImageSavingBatchSize(int)}), with whatever images are already
+    * waiting to be saved. Sinks that write contiguous chunks or compress in blocks can
+    * override this to handle the images together. If saving to disk, do not return
+    * until all the images are written.
+    *
+    * @param images images in the order they were acquired
+    * @return optional objects describing each image's location in the data set
+    */
+   public default List<Object> putImages(List<TaggedImage> images) {
+      List<Object> descriptors = new ArrayList<>(images.size());
+      for (TaggedImage image : images) {
+         descriptors.add(putImage(image));
+      }
+      return descriptors;
+   }
+
    /**
     * Has putImage been called yet?
     *
@@ -3,6 +3,7 @@ package org.micromanager.acqj.api;
 import java.util.Iterator;
 import java.util.concurrent.Future;
 import java.util.function.Consumer;
+import mmcorej.TaggedImage;
 import mmcorej.org.json.JSONObject;
 import org.micromanager.acqj.internal.Engine;
 import org.micromanager.acqj.main.AcquisitionEvent;
@@ -176,6 +177,28 @@ public interface AcquisitionAPI {
     */
    public AcqEngJDataSink getDataSink();
 
+   /**
+    * Called by whatever holds an image last (the data sink, or an image processor that
+    * drops it) once it no longer needs the image's pixels, so that their memory can be
+    * reused. Does nothing unless the acquisition recycles pixel buffers.
+    *
+    * @param image the image that is no longer needed
+    */
+   public default void releaseImage(TaggedImage image) {
+   }
+
+   /**
+    * Called when an image is handed to more than one holder at once (e.g. parallel
+    * branches of image processors), each of which will release it. Its pixels are only
+    * reused once every holder has released them. Does nothing unless the acquisition
+    * recycles pixel buffers.
+    *
+    * @param image the image being shared
+    * @param holders number of holders in addition to the one that already had it
+    */
+   public default void retainImage(TaggedImage image, int holders) {
+   }
+
    /**
     * Should debug logging be printed
     */
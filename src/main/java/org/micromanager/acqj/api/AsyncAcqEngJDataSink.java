@@ -0,0 +1,35 @@
+package org.micromanager.acqj.api;
+
+import java.util.concurrent.CompletableFuture;
+import mmcorej.TaggedImage;
+import org.micromanager.acqj.main.Acquisition;
+
+/**
+ * Data sink that writes images asynchronously, so that several writes can be in flight
+ * at once (e.g. to make use of the bandwidth of fast disk arrays).
+ *
+ * <p>The acquisition hands images over with {@link #putImageAsync(TaggedImage)}, and
+ * lets up to {@link Acquisition#setMaxOutstandingWrites(int)} of them be outstanding
+ * before waiting for the oldest. Image saved notifications are still posted in the order
+ * the images were handed over, and {@link #finish()} is only called once all writes have
+ * completed. An exceptionally completed write aborts the acquisition.
+ */
+public interface AsyncAcqEngJDataSink extends AcqEngJDataSink {
+
+   /**
+    * Start writing the image and return without waiting for it to be written.
+    *
+    * @param image image to add to saving/display etc.
+    * @return completes once the image is written, with an optional object describing
+    *         the image's location in the data set
+    */
+   public CompletableFuture<Object> putImageAsync(TaggedImage image);
+
+   /**
+    * Synchronous version, which waits for the write to complete.
+    */
+   @Override
+   public default Object putImage(TaggedImage image) {
+      return putImageAsync(image).join();
+   }
+}
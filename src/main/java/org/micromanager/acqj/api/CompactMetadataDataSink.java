@@ -0,0 +1,36 @@
+package org.micromanager.acqj.api;
+
+import java.nio.ByteBuffer;
+import mmcorej.TaggedImage;
+import org.micromanager.acqj.main.Acquisition;
+import org.micromanager.acqj.main.MetadataCodec;
+
+/**
+ * Data sink that stores image metadata in the compact binary encoding of
+ * {@link MetadataCodec} rather than as JSON. Images are encoded on the thread that
+ * hands them to the sink, with the codec of the acquisition.
+ */
+public interface CompactMetadataDataSink extends AcqEngJDataSink {
+
+   /**
+    * Codec to encode metadata with. Usually that of the acquisition the sink was
+    * initialized with, see {@link Acquisition#getMetadataCodec()}, whose schema should
+    * be saved with the data to be able to decode it later.
+    */
+   public MetadataCodec getMetadataCodec();
+
+   /**
+    * Add an image along with its encoded metadata.
+    *
+    * @param image image to add to saving/display etc. Its tags are still there to read,
+    *              but don't need to be
+    * @param metadata metadata of the image, encoded with {@link #getMetadataCodec()}
+    * @return an optional object describing the image's location in the data set
+    */
+   public Object putImage(TaggedImage image, ByteBuffer metadata);
+
+   @Override
+   public default Object putImage(TaggedImage image) {
+      return putImage(image, getMetadataCodec().encode(image.tags));
+   }
+}
@@ -0,0 +1,21 @@
+package org.micromanager.acqj.api;
+
+/**
+ * What an additional data sink of an acquisition does with new images when it falls
+ * behind and its queue is full.
+ */
+public enum DataSinkOverflowPolicy {
+   /**
+    * Wait for room in the queue, which holds up saving to every other sink.
+    */
+   BLOCK,
+   /**
+    * Skip images for this sink only.
+    */
+   DROP,
+   /**
+    * Write images to a memory-mapped file until the sink catches up. Waits only once the
+    * file is full too.
+    */
+   SPILL
+}
@@ -0,0 +1,72 @@
+package org.micromanager.acqj.api;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * How often, and after what delays, a hardware command that throws an exception is
+ * attempted again before the acquisition gives up on it.
+ */
+public interface HardwareRetryPolicy {
+
+   /**
+    * The engine's standard policy: 6 attempts, 5 ms apart.
+    */
+   HardwareRetryPolicy DEFAULT = fixed(6, 5);
+
+   /**
+    * Total number of times a command is attempted, including the first.
+    */
+   int getMaxAttempts();
+
+   /**
+    * Delay before the next attempt.
+    *
+    * @param failedAttempts number of attempts that have failed so far (1 after the first)
+    * @return delay in ms
+    */
+   long getDelayMs(int failedAttempts);
+
+   /**
+    * Retry with the same delay after every failure.
+    */
+   static HardwareRetryPolicy fixed(int maxAttempts, long delayMs) {
+      return new HardwareRetryPolicy() {
+         @Override
+         public int getMaxAttempts() {
+            return maxAttempts;
+         }
+
+         @Override
+         public long getDelayMs(int failedAttempts) {
+            return delayMs;
+         }
+      };
+   }
+
+   /**
+    * Retry with a delay that doubles after every failure, up to maxDelayMs. Each delay
+    * is randomly shortened by up to half, so devices sharing a bus don't retry in step.
+    */
+   static HardwareRetryPolicy exponential(int maxAttempts, long initialDelayMs,
+                                          long maxDelayMs) {
+      return new HardwareRetryPolicy() {
+         @Override
+         public int getMaxAttempts() {
+            return maxAttempts;
+         }
+
+         @Override
+         public long getDelayMs(int failedAttempts) {
+            long delay = initialDelayMs;
+            for (int i = 1; i < failedAttempts && delay < maxDelayMs; i++) {
+               delay *= 2;
+            }
+            delay = Math.min(delay, maxDelayMs);
+            if (delay <= 1) {
+               return delay;
+            }
+            return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+         }
+      };
+   }
+}
@@ -16,10 +16,11 @@ public class BlackHoleDataSink implements AcqEngJDataSink {
 
    boolean finished_ = false;
    boolean somethingAcquired_ = false;
+   Acquisition acq_;
 
    @Override
    public void initialize(Acquisition acq, JSONObject summaryMetadata) {
-
+      acq_ = acq;
    }
 
    @Override
@@ -36,6 +37,10 @@ public class BlackHoleDataSink implements AcqEngJDataSink {
    public Object putImage(TaggedImage image) {
       somethingAcquired_ = true;
       System.out.println("throwing away an image forever");
+      // Done with the pixels, so they can be reused if the acquisition recycles them
+      if (acq_ != null) {
+         acq_.releaseImage(image);
+      }
       return null;
    }
 
@@ -20,6 +20,7 @@ package org.micromanager.acqj.internal;
 import java.awt.geom.AffineTransform;
 import java.awt.geom.Point2D;
 import java.util.ArrayList;
+import mmcorej.CMMCore;
 import mmcorej.DoubleVector;
 import org.micromanager.acqj.util.xytiling.XYStagePosition;
 
@@ -77,8 +78,12 @@ public class AffineTransformUtils {
    }
 
    public static boolean isAffineTransformDefined() {
+      return isAffineTransformDefined(Engine.getCore());
+   }
+
+   public static boolean isAffineTransformDefined(CMMCore core) {
       try {
-         DoubleVector v = Engine.getCore().getPixelSizeAffine(true);
+         DoubleVector v = core.getPixelSizeAffine(true);
          for (int i = 0; i < v.size(); i++) {
             if (v.get(i) != 0.0) {
                return true;
@@ -91,8 +96,16 @@ public class AffineTransformUtils {
    }
 
    public static AffineTransform getAffineTransform(double xTranslation, double yTranslation) {
+      return getAffineTransform(Engine.getCore(), xTranslation, yTranslation);
+   }
+
+   /**
+    * Version that uses the pixel size calibration of a specific microscope.
+    */
+   public static AffineTransform getAffineTransform(CMMCore core, double xTranslation,
+                                                    double yTranslation) {
       try {
-         AffineTransform transform = doubleToAffine(Engine.getCore().getPixelSizeAffine());
+         AffineTransform transform = doubleToAffine(core.getPixelSizeAffine());
          //set map origin to current stage position
          double[] matrix = new double[6];
          transform.getMatrix(matrix);
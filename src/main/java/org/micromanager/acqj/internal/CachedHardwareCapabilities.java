@@ -0,0 +1,165 @@
+package org.micromanager.acqj.internal;
+
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import mmcorej.CMMCore;
+
+/**
+ * {@link HardwareCapabilities} that asks the core once per device, property or preset
+ * and remembers the answer until {@link #invalidate()} is called. Every one of these
+ * queries crosses into the device adapters, and without the cache they are repeated
+ * for each event that is considered for a hardware sequence.
+ */
+public class CachedHardwareCapabilities implements HardwareCapabilities {
+
+   private final CMMCore core_;
+   private final ConcurrentHashMap<Key, ConfigPresetSettings> presets_ =
+         new ConcurrentHashMap<>();
+   private final ConcurrentHashMap<Key, Boolean> sequenceable_ = new ConcurrentHashMap<>();
+   private final ConcurrentHashMap<Key, Integer> maxLengths_ = new ConcurrentHashMap<>();
+
+   public CachedHardwareCapabilities(CMMCore core) {
+      core_ = core;
+   }
+
+   @Override
+   public ConfigPresetSettings getConfigPreset(String group, String preset) throws Exception {
+      Key key = new Key(Kind.PRESET, group, preset);
+      ConfigPresetSettings settings = presets_.get(key);
+      if (settings == null) {
+         settings = new ConfigPresetSettings(core_.getConfigData(group, preset));
+         presets_.put(key, settings);
+      }
+      return settings;
+   }
+
+   @Override
+   public boolean isPropertySequenceable(String device, String property) throws Exception {
+      Key key = new Key(Kind.PROPERTY, device, property);
+      Boolean answer = sequenceable_.get(key);
+      if (answer == null) {
+         answer = core_.isPropertySequenceable(device, property);
+         sequenceable_.put(key, answer);
+      }
+      return answer;
+   }
+
+   @Override
+   public int getPropertySequenceMaxLength(String device, String property) throws Exception {
+      Key key = new Key(Kind.PROPERTY, device, property);
+      Integer answer = maxLengths_.get(key);
+      if (answer == null) {
+         answer = core_.getPropertySequenceMaxLength(device, property);
+         maxLengths_.put(key, answer);
+      }
+      return answer;
+   }
+
+   @Override
+   public boolean isStageSequenceable(String device) throws Exception {
+      Key key = new Key(Kind.STAGE, device, null);
+      Boolean answer = sequenceable_.get(key);
+      if (answer == null) {
+         answer = core_.isStageSequenceable(device);
+         sequenceable_.put(key, answer);
+      }
+      return answer;
+   }
+
+   @Override
+   public int getStageSequenceMaxLength(String device) throws Exception {
+      Key key = new Key(Kind.STAGE, device, null);
+      Integer answer = maxLengths_.get(key);
+      if (answer == null) {
+         answer = core_.getStageSequenceMaxLength(device);
+         maxLengths_.put(key, answer);
+      }
+      return answer;
+   }
+
+   @Override
+   public boolean isXYStageSequenceable(String device) throws Exception {
+      Key key = new Key(Kind.XY_STAGE, device, null);
+      Boolean answer = sequenceable_.get(key);
+      if (answer == null) {
+         answer = core_.isXYStageSequenceable(device);
+         sequenceable_.put(key, answer);
+      }
+      return answer;
+   }
+
+   @Override
+   public int getXYStageSequenceMaxLength(String device) throws Exception {
+      Key key = new Key(Kind.XY_STAGE, device, null);
+      Integer answer = maxLengths_.get(key);
+      if (answer == null) {
+         answer = core_.getXYStageSequenceMaxLength(device);
+         maxLengths_.put(key, answer);
+      }
+      return answer;
+   }
+
+   @Override
+   public boolean isExposureSequenceable(String camera) throws Exception {
+      Key key = new Key(Kind.EXPOSURE, camera, null);
+      Boolean answer = sequenceable_.get(key);
+      if (answer == null) {
+         answer = core_.isExposureSequenceable(camera);
+         sequenceable_.put(key, answer);
+      }
+      return answer;
+   }
+
+   @Override
+   public int getExposureSequenceMaxLength(String camera) throws Exception {
+      Key key = new Key(Kind.EXPOSURE, camera, null);
+      Integer answer = maxLengths_.get(key);
+      if (answer == null) {
+         answer = core_.getExposureSequenceMaxLength(camera);
+         maxLengths_.put(key, answer);
+      }
+      return answer;
+   }
+
+   @Override
+   public void invalidate() {
+      presets_.clear();
+      sequenceable_.clear();
+      maxLengths_.clear();
+   }
+
+   private enum Kind {
+      PRESET, PROPERTY, STAGE, XY_STAGE, EXPOSURE
+   }
+
+   /**
+    * What a remembered answer is about. Kept as separate fields rather than joined into
+    * a string, since device, property, group and preset names can contain anything.
+    */
+   private static final class Key {
+      private final Kind kind_;
+      private final String name_;
+      private final String subName_;
+
+      Key(Kind kind, String name, String subName) {
+         kind_ = kind;
+         name_ = name;
+         subName_ = subName;
+      }
+
+      @Override
+      public boolean equals(Object o) {
+         if (!(o instanceof Key)) {
+            return false;
+         }
+         Key other = (Key) o;
+         return kind_ == other.kind_ && Objects.equals(name_, other.name_)
+               && Objects.equals(subName_, other.subName_);
+      }
+
+      @Override
+      public int hashCode() {
+         return Objects.hash(kind_, name_, subName_);
+      }
+   }
+}
\ No newline at end of file
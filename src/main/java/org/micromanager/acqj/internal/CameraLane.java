@@ -0,0 +1,134 @@
+package org.micromanager.acqj.internal;
+
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+import mmcorej.TaggedImage;
+import org.micromanager.acqj.api.AcqEngJDataSink;
+import org.micromanager.acqj.api.AcquisitionAPI;
+import org.micromanager.acqj.api.TaggedImageProcessor;
+
+/**
+ * Output lane for the images of one camera. The acquisition engine pops images off the
+ * circular buffer on its own thread, but hands the rest of the work for each image
+ * (adding metadata and passing it on) to the lane of the camera that took it, so that
+ * images of different cameras are handled in parallel. Each lane works on one image at a
+ * time, so the images of a camera stay in order.
+ *
+ * <p>A lane can also have its own data sink and chain of image processors, in which case
+ * the images of its camera go there rather than to the acquisition's main output.
+ */
+public class CameraLane {
+
+   private final String camera_;
+   private final ExecutorService executor_;
+   // Start of the lane's processors, or the sink's queue. Null if no sink
+   private final ImageTransferQueue input_;
+   private final DataSinkLane sinkLane_;
+
+   /**
+    * Lane that only adds metadata in parallel, after which images go to the main output.
+    */
+   public CameraLane(String camera) {
+      camera_ = camera;
+      executor_ = newExecutor(camera);
+      input_ = null;
+      sinkLane_ = null;
+   }
+
+   /**
+    * Lane with its own processors and data sink.
+    *
+    * @param queueSize most images waiting at the start of the lane and between its
+    *                  processors
+    */
+   public CameraLane(String camera, AcqEngJDataSink sink, List<TaggedImageProcessor> processors,
+                     AcquisitionAPI acq, int queueSize) {
+      camera_ = camera;
+      executor_ = newExecutor(camera);
+      input_ = new ImageTransferQueue(queueSize, Long.MAX_VALUE);
+      ImageTransferQueue in = input_;
+      for (TaggedImageProcessor p : processors) {
+         ImageTransferQueue out = new ImageTransferQueue(queueSize, Long.MAX_VALUE);
+         p.setAcqAndQueues(acq, in, out);
+         in = out;
+      }
+      sinkLane_ = new DataSinkLane(sink, in);
+   }
+
+   private static ExecutorService newExecutor(String camera) {
+      return Executors.newSingleThreadExecutor(
+            (Runnable r) -> new Thread(r, "Camera lane thread " + camera));
+   }
+
+   public String getCamera() {
+      return camera_;
+   }
+
+   public boolean hasSink() {
+      return sinkLane_ != null;
+   }
+
+   public AcqEngJDataSink getSink() {
+      return sinkLane_ == null ? null : sinkLane_.getSink();
+   }
+
+   /**
+    * Start saving, if the lane has a sink.
+    *
+    * @param onError called if the sink throws
+    */
+   public void start(Consumer<Exception> onError) {
+      if (sinkLane_ != null) {
+         sinkLane_.start(onError);
+      }
+   }
+
+   /**
+    * Run the given work for an image of this lane's camera on the lane's thread, after
+    * any work submitted before it.
+    */
+   public void submit(Runnable work) {
+      executor_.submit(work);
+   }
+
+   /**
+    * Pass an image on to the lane's processors and sink. Blocks while the lane is full.
+    */
+   public void put(TaggedImage image) throws InterruptedException {
+      input_.putLast(image);
+   }
+
+   /**
+    * Wait for all submitted work to be done, then shut down the lane's processors and
+    * sink (if any) by passing on the shutdown signal.
+    */
+   public void finish() {
+      try {
+         executor_.submit(() -> {
+            if (input_ != null) {
+               try {
+                  input_.putLast(new TaggedImage(null, null));
+               } catch (InterruptedException e) {
+                  throw new RuntimeException(e);
+               }
+            }
+         }).get();
+      } catch (InterruptedException | ExecutionException e) {
+         throw new RuntimeException(e);
+      } finally {
+         executor_.shutdown();
+      }
+   }
+
+   /**
+    * Wait for the lane's sink to be finished, after {@link #finish()}.
+    */
+   public void awaitFinished() throws InterruptedException {
+      if (sinkLane_ != null) {
+         sinkLane_.awaitFinished();
+      }
+   }
+}
@@ -0,0 +1,118 @@
+package org.micromanager.acqj.internal;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import mmcorej.CMMCore;
+import mmcorej.TaggedImage;
+import org.micromanager.acqj.util.MetadataClock;
+
+/**
+ * Pulls the images of one hardware sequence out of the core's circular buffer.
+ *
+ * <p>Rather than calling popNextTaggedImage until it stops throwing, this checks
+ * getRemainingImageCount and pops everything that is already there in one batch. When
+ * the buffer is empty it backs off: a few yields first, then parks with a delay that
+ * doubles up to {@link #MAX_BACKOFF_NS}, so waiting for a slow camera doesn't burn a core.
+ * The core has no notification for image arrival, so some form of polling is unavoidable.
+ * Each image is timed as it is popped, see {@link #getPopNanos()}.
+ *
+ * <p>Only used from the acquisition engine thread.
+ */
+class CircularBufferDrain {
+
+   private static final int YIELD_POLLS = 16;
+   private static final long MIN_BACKOFF_NS = TimeUnit.MICROSECONDS.toNanos(10);
+   private static final long MAX_BACKOFF_NS = TimeUnit.MILLISECONDS.toNanos(1);
+
+   private final CMMCore core_;
+   private final ArrayDeque<TaggedImage> batch_ = new ArrayDeque<>();
+   // When each image of the batch was popped, from MetadataClock.nanoTime()
+   private final ArrayDeque<Long> batchPopNanos_ = new ArrayDeque<>();
+   private long popNanos_ = 0;
+   private int framesRemaining_;
+   private int emptyPolls_ = 0;
+   private long backoffNs_ = MIN_BACKOFF_NS;
+   private long pollCount_ = 0;
+   private long framesPopped_ = 0;
+
+   /**
+    * @param core the core to pop images from
+    * @param expectedFrames total number of images the sequence will produce (over all
+    *                       cameras). Batches never pop more than this.
+    */
+   CircularBufferDrain(CMMCore core, int expectedFrames) {
+      core_ = core;
+      framesRemaining_ = expectedFrames;
+   }
+
+   /**
+    * Get the next image of the sequence. If none is ready, back off for a while and
+    * return null, so the caller can check for aborts, timeouts and errors before
+    * trying again.
+    *
+    * @return the next image, or null if none arrived yet
+    * @throws Exception if the core fails to pop an image it said was available
+    */
+   TaggedImage poll() throws Exception {
+      if (!batch_.isEmpty()) {
+         return next();
+      }
+      pollCount_++;
+      int available = Math.min(core_.getRemainingImageCount(), framesRemaining_);
+      if (available <= 0) {
+         backOff();
+         return null;
+      }
+      for (int i = 0; i < available; i++) {
+         batch_.addLast(core_.popNextTaggedImage());
+         batchPopNanos_.addLast(MetadataClock.nanoTime());
+      }
+      framesRemaining_ -= available;
+      framesPopped_ += available;
+      emptyPolls_ = 0;
+      backoffNs_ = MIN_BACKOFF_NS;
+      return next();
+   }
+
+   private TaggedImage next() {
+      popNanos_ = batchPopNanos_.pollFirst();
+      return batch_.pollFirst();
+   }
+
+   /**
+    * When the image last returned by {@link #poll()} was popped from the circular buffer,
+    * from {@link MetadataClock#nanoTime()}.
+    */
+   long getPopNanos() {
+      return popNanos_;
+   }
+
+   private void backOff() {
+      emptyPolls_++;
+      if (emptyPolls_ <= YIELD_POLLS) {
+         Thread.yield();
+      } else {
+         LockSupport.parkNanos(backoffNs_);
+         backoffNs_ = Math.min(backoffNs_ * 2, MAX_BACKOFF_NS);
+      }
+   }
+
+   /**
+    * Number of times the circular buffer was queried.
+    */
+   long getPollCount() {
+      return pollCount_;
+   }
+
+   long getFramesPopped() {
+      return framesPopped_;
+   }
+
+   /**
+    * Average number of buffer queries spent for each image popped.
+    */
+   double getPollsPerFrame() {
+      return framesPopped_ == 0 ? pollCount_ : pollCount_ / (double) framesPopped_;
+   }
+}
@@ -0,0 +1,69 @@
+package org.micromanager.acqj.internal;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import mmcorej.Configuration;
+import mmcorej.PropertySetting;
+
+/**
+ * Java-side copy of the property settings of a config group preset, so they can be
+ * read repeatedly without going through the native {@link Configuration} object.
+ * Settings keep the order the core reports them in.
+ */
+public class ConfigPresetSettings {
+
+   private final List<String> deviceLabels_ = new ArrayList<>();
+   private final List<String> propertyNames_ = new ArrayList<>();
+   private final List<String> propertyValues_ = new ArrayList<>();
+   private final HashMap<String, String> valuesByProperty_ = new HashMap<>();
+
+   public ConfigPresetSettings(Configuration config) throws Exception {
+      for (int i = 0; i < config.size(); i++) {
+         PropertySetting ps = config.getSetting(i);
+         add(ps.getDeviceLabel(), ps.getPropertyName(), ps.getPropertyValue());
+      }
+   }
+
+   private void add(String deviceLabel, String propertyName, String propertyValue) {
+      deviceLabels_.add(deviceLabel);
+      propertyNames_.add(propertyName);
+      propertyValues_.add(propertyValue);
+      valuesByProperty_.put(key(deviceLabel, propertyName), propertyValue);
+   }
+
+   private static String key(String deviceLabel, String propertyName) {
+      return deviceLabel + "-" + propertyName;
+   }
+
+   public int size() {
+      return deviceLabels_.size();
+   }
+
+   public String getDeviceLabel(int index) {
+      return deviceLabels_.get(index);
+   }
+
+   public String getPropertyName(int index) {
+      return propertyNames_.get(index);
+   }
+
+   public String getPropertyValue(int index) {
+      return propertyValues_.get(index);
+   }
+
+   /**
+    * Value of the given property in this preset, or null if the preset doesn't set it.
+    */
+   public String getPropertyValue(String deviceLabel, String propertyName) {
+      return valuesByProperty_.get(key(deviceLabel, propertyName));
+   }
+
+   /**
+    * Labels of all devices this preset touches, one entry per setting.
+    */
+   public List<String> getDeviceLabels() {
+      return Collections.unmodifiableList(deviceLabels_);
+   }
+}
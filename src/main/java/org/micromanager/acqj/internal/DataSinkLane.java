@@ -0,0 +1,130 @@
+package org.micromanager.acqj.internal;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import mmcorej.TaggedImage;
+import org.micromanager.acqj.api.AcqEngJDataSink;
+import org.micromanager.acqj.api.DataSinkOverflowPolicy;
+
+/**
+ * An additional data sink of an acquisition, along with its own queue and saving thread,
+ * so that it saves independently of the acquisition's other sinks. What happens when the
+ * queue is full depends on the lane's {@link DataSinkOverflowPolicy}.
+ */
+public class DataSinkLane {
+
+   private final AcqEngJDataSink sink_;
+   private final DataSinkOverflowPolicy policy_;
+   private final ImageTransferQueue queue_;
+   private final SpillBuffer spill_;
+   private final CountDownLatch finished_ = new CountDownLatch(1);
+   private final LongAdder dropped_ = new LongAdder();
+   private Thread thread_;
+
+   /**
+    * @param queueSize most images waiting for the sink in memory
+    * @param spillCapacityBytes size of the spill file, only used by the SPILL policy
+    */
+   public DataSinkLane(AcqEngJDataSink sink, DataSinkOverflowPolicy policy, int queueSize,
+                       long spillCapacityBytes) {
+      sink_ = sink;
+      policy_ = policy;
+      queue_ = new ImageTransferQueue(queueSize, Long.MAX_VALUE);
+      spill_ = policy == DataSinkOverflowPolicy.SPILL
+            ? new SpillBuffer(queue_, null, spillCapacityBytes) : null;
+   }
+
+   /**
+    * Lane that saves the images put on the given queue by something else, e.g. the last
+    * of a chain of image processors.
+    */
+   public DataSinkLane(AcqEngJDataSink sink, ImageTransferQueue queue) {
+      sink_ = sink;
+      policy_ = DataSinkOverflowPolicy.BLOCK;
+      queue_ = queue;
+      spill_ = null;
+   }
+
+   public AcqEngJDataSink getSink() {
+      return sink_;
+   }
+
+   /**
+    * Start the thread that passes queued images to the sink.
+    *
+    * @param onError called if the sink throws, after which the lane keeps going
+    */
+   public void start(Consumer<Exception> onError) {
+      thread_ = new Thread(() -> {
+         try {
+            while (true) {
+               TaggedImage img = queue_.takeFirst();
+               if (img.pix == null && img.tags == null) {
+                  break;
+               }
+               try {
+                  sink_.putImage(img);
+               } catch (Exception e) {
+                  onError.accept(e);
+               }
+            }
+         } catch (InterruptedException e) {
+            // cancelled
+         } finally {
+            if (spill_ != null) {
+               spill_.close();
+            }
+            try {
+               sink_.finish();
+            } finally {
+               finished_.countDown();
+            }
+         }
+      }, "Acquisition data sink thread");
+      thread_.start();
+   }
+
+   /**
+    * Hand an image to the lane. Blocks only if the policy says to wait for room. The
+    * shutdown signal is never dropped.
+    *
+    * @return true if the sink will be given this very image, and so will release its
+    *         pixels. False if the image was dropped, or copied to the spill file
+    */
+   public boolean add(TaggedImage image) throws InterruptedException {
+      boolean shutdown = image.pix == null && image.tags == null;
+      if (spill_ != null) {
+         return !spill_.put(image);
+      } else if (policy_ == DataSinkOverflowPolicy.DROP && !shutdown) {
+         if (queue_.offerLast(image)) {
+            return true;
+         }
+         dropped_.increment();
+         return false;
+      }
+      queue_.putLast(image);
+      return true;
+   }
+
+   /**
+    * Wait for the sink to be finished, after the shutdown signal was added.
+    */
+   public void awaitFinished() throws InterruptedException {
+      finished_.await();
+   }
+
+   /**
+    * Number of images skipped by a lane with the DROP policy.
+    */
+   public long getDroppedCount() {
+      return dropped_.sum();
+   }
+
+   /**
+    * Number of images currently waiting for the sink, in memory and spilled.
+    */
+   public int getBacklog() {
+      return queue_.size() + (spill_ == null ? 0 : spill_.size());
+   }
+}
@@ -0,0 +1,104 @@
+package org.micromanager.acqj.internal;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import org.micromanager.acqj.main.Acquisition;
+import org.micromanager.acqj.main.AcquisitionEvent;
+
+/**
+ * Holds events back until their minimum start time.
+ *
+ * <p>Deadlines are measured with System.nanoTime relative to the start of the
+ * acquisition, so they are unaffected by changes to the wall clock. Long waits block on
+ * the acquisition's abort signal, so an abort ends them straight away. Close to the
+ * deadline, the wait switches to parkNanos and finally to spinning, which gives
+ * sub-millisecond start accuracy without busy-waiting through long time-lapse intervals.
+ *
+ * <p>How late each event actually started relative to its deadline is recorded. Only
+ * used from the acquisition engine thread.
+ */
+class DeadlineScheduler {
+
+   // Remaining time below which waiting switches from blocking on the abort signal to parking
+   private static final long BLOCK_MARGIN_NS = TimeUnit.MILLISECONDS.toNanos(2);
+   // Remaining time below which waiting switches from parking to spinning
+   private static final long SPIN_MARGIN_NS = TimeUnit.MICROSECONDS.toNanos(100);
+
+   private long startCount_ = 0;
+   private long totalLatenessNs_ = 0;
+   private long maxLatenessNs_ = 0;
+
+   /**
+    * Deadline of the event in System.nanoTime terms, or null if it has no minimum start
+    * time or the acquisition hasn't started yet.
+    */
+   static Long getDeadlineNanos(AcquisitionEvent event) {
+      Long minimumStartTimeMs = event.getMinimumStartTime();
+      if (minimumStartTimeMs == null || event.acquisition_.getStartTimeMs() == -1) {
+         return null;
+      }
+      return event.acquisition_.getStartTimeNanos()
+            + TimeUnit.MILLISECONDS.toNanos(minimumStartTimeMs);
+   }
+
+   /**
+    * Wait until the minimum start time of the event.
+    *
+    * @return false if the acquisition was aborted while waiting, true otherwise (including
+    *         when there was nothing to wait for)
+    * @throws InterruptedException if interrupted while waiting
+    */
+   boolean waitForStartTime(AcquisitionEvent event) throws InterruptedException {
+      Long deadline = getDeadlineNanos(event);
+      if (deadline == null) {
+         return true;
+      }
+      Acquisition acq = event.acquisition_;
+      while (true) {
+         if (acq.isAbortRequested()) {
+            return false;
+         }
+         if (Thread.interrupted()) {
+            throw new InterruptedException();
+         }
+         long remaining = deadline - System.nanoTime();
+         if (remaining <= 0) {
+            return true;
+         } else if (remaining > BLOCK_MARGIN_NS) {
+            acq.blockUnlessAborted(Math.max(1, TimeUnit.NANOSECONDS.toMillis(remaining - BLOCK_MARGIN_NS)));
+         } else if (remaining > SPIN_MARGIN_NS) {
+            LockSupport.parkNanos(remaining - SPIN_MARGIN_NS);
+         }
+      }
+   }
+
+   /**
+    * Record that the event is starting now, if it had a minimum start time.
+    *
+    * @return how many nanoseconds after its minimum start time the event started, or
+    *         null if it had none
+    */
+   Long recordStart(AcquisitionEvent event) {
+      Long deadline = getDeadlineNanos(event);
+      if (deadline == null) {
+         return null;
+      }
+      long lateness = Math.max(0, System.nanoTime() - deadline);
+      startCount_++;
+      totalLatenessNs_ += lateness;
+      maxLatenessNs_ = Math.max(maxLatenessNs_, lateness);
+      return lateness;
+   }
+
+   long getStartCount() {
+      return startCount_;
+   }
+
+   double getMeanLatenessUs() {
+      return startCount_ == 0 ? 0 : totalLatenessNs_ / (double) startCount_ / 1000.0;
+   }
+
+   double getMaxLatenessUs() {
+      return maxLatenessNs_ / 1000.0;
+   }
+}
@@ -0,0 +1,202 @@
+package org.micromanager.acqj.internal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import mmcorej.CMMCore;
+
+/**
+ * The hardware commands needed to get to the state of one acquisition event, issued
+ * together rather than one at a time.
+ *
+ * <p>Device commands in the core return once the command has been sent, and it is the
+ * waitForDevice calls that block. So rather than waiting after each step, every command
+ * is sent first and then all affected devices are waited on at the end. Commands keep
+ * the order they were added in, except where an ordering constraint (e.g. "filter wheel
+ * before shutter") requires a command touching one device to happen after another has
+ * finished, or a command was added to follow earlier ones on the same devices. In that
+ * case the earlier device is waited on before the later command is sent.
+ *
+ * <p>Only used from the acquisition engine thread.
+ */
+class DeviceCommandPlan {
+
+   /**
+    * A hardware command, or a wait on one.
+    */
+   interface HardwareAction {
+      void run() throws Exception;
+   }
+
+   /**
+    * How each step is run, so that the engine can apply its usual retries.
+    */
+   interface StepRunner {
+      void run(Runnable step, String stepName, Collection<String> devices)
+            throws HardwareControlException;
+   }
+
+   private static final class Command {
+      final String name_;
+      final Set<String> devices_;
+      final HardwareAction issue_;
+      final HardwareAction await_;
+      // Position in the order commands were added
+      final int index_;
+      // Whether earlier commands touching the same devices must finish first
+      final boolean afterEarlier_;
+      boolean awaited_ = false;
+
+      Command(String name, Set<String> devices, HardwareAction issue, HardwareAction await,
+              int index, boolean afterEarlier) {
+         name_ = name;
+         devices_ = devices;
+         issue_ = issue;
+         await_ = await;
+         index_ = index;
+         afterEarlier_ = afterEarlier;
+      }
+   }
+
+   private final CMMCore core_;
+   private final List<Command> commands_ = new ArrayList<>();
+
+   DeviceCommandPlan(CMMCore core) {
+      core_ = core;
+   }
+
+   /**
+    * Add a command whose completion is waited on with waitForDevice on each device.
+    */
+   void add(String name, Collection<String> devices, HardwareAction issue) {
+      Set<String> deviceSet = new LinkedHashSet<>(devices);
+      add(name, deviceSet, issue, () -> {
+         for (String device : deviceSet) {
+            core_.waitForDevice(device);
+         }
+      });
+   }
+
+   void add(String name, String device, HardwareAction issue) {
+      add(name, Arrays.asList(device), issue);
+   }
+
+   /**
+    * Add a command with a custom way of waiting for it, e.g. waitForConfig.
+    */
+   void add(String name, Collection<String> devices, HardwareAction issue,
+            HardwareAction await) {
+      commands_.add(new Command(name, new LinkedHashSet<>(devices), issue, await,
+            commands_.size(), false));
+   }
+
+   /**
+    * Add a command that is only sent once the commands added before it that touch any
+    * of the same devices have finished, e.g. starting a sequence on devices that a
+    * config change is still setting.
+    */
+   void addAfterEarlier(String name, Collection<String> devices, HardwareAction issue) {
+      Set<String> deviceSet = new LinkedHashSet<>(devices);
+      commands_.add(new Command(name, deviceSet, issue, () -> {
+         for (String device : deviceSet) {
+            core_.waitForDevice(device);
+         }
+      }, commands_.size(), true));
+   }
+
+   /**
+    * Send all commands, honoring the ordering constraints, then wait for all of them.
+    *
+    * @param orderingConstraints pairs of device labels {before, after}. Any command
+    *                            touching the second device is sent only once commands
+    *                            touching the first have finished
+    * @param runner runs each step, e.g. with retries
+    */
+   void execute(List<String[]> orderingConstraints, StepRunner runner)
+         throws HardwareControlException {
+      List<Command> ordered = order(orderingConstraints);
+      for (int i = 0; i < ordered.size(); i++) {
+         Command command = ordered.get(i);
+         for (int j = 0; j < i; j++) {
+            Command earlier = ordered.get(j);
+            if (!earlier.awaited_ && mustFinishBefore(earlier, command, orderingConstraints)) {
+               await(earlier, runner);
+            }
+         }
+         runner.run(asStep(command.issue_), command.name_, command.devices_);
+      }
+      for (Command command : ordered) {
+         if (!command.awaited_) {
+            await(command, runner);
+         }
+      }
+   }
+
+   private static void await(Command command, StepRunner runner) {
+      runner.run(asStep(command.await_), "Waiting for " + command.name_, command.devices_);
+      command.awaited_ = true;
+   }
+
+   private static Runnable asStep(HardwareAction action) {
+      return () -> {
+         try {
+            action.run();
+         } catch (HardwareControlException e) {
+            throw e;
+         } catch (Exception e) {
+            throw new HardwareControlException(e.getMessage());
+         }
+      };
+   }
+
+   private static boolean mustFinishBefore(Command first, Command second,
+                                           List<String[]> orderingConstraints) {
+      if (second.afterEarlier_ && first.index_ < second.index_
+            && !Collections.disjoint(first.devices_, second.devices_)) {
+         return true;
+      }
+      for (String[] constraint : orderingConstraints) {
+         if (first.devices_.contains(constraint[0]) && second.devices_.contains(constraint[1])) {
+            return true;
+         }
+      }
+      return false;
+   }
+
+   /**
+    * Order commands so that constraints are satisfied, otherwise keeping the order
+    * they were added in.
+    */
+   private List<Command> order(List<String[]> orderingConstraints) {
+      List<Command> remaining = new ArrayList<>(commands_);
+      List<Command> ordered = new ArrayList<>(commands_.size());
+      while (!remaining.isEmpty()) {
+         Command next = null;
+         for (Command candidate : remaining) {
+            boolean blocked = false;
+            for (Command other : remaining) {
+               if (other != candidate
+                     && mustFinishBefore(other, candidate, orderingConstraints)) {
+                  blocked = true;
+                  break;
+               }
+            }
+            if (!blocked) {
+               next = candidate;
+               break;
+            }
+         }
+         if (next == null) {
+            throw new HardwareControlException(
+                  "Hardware ordering constraints can't be satisfied: they form a cycle");
+         }
+         remaining.remove(next);
+         ordered.add(next);
+      }
+      return ordered;
+   }
+}
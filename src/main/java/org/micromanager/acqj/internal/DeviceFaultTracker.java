@@ -0,0 +1,79 @@
+package org.micromanager.acqj.internal;
+
+import java.util.HashMap;
+
+/**
+ * Counts hardware command attempts and failures, and breaks the circuit to devices that
+ * keep failing.
+ *
+ * <p>Each device may fail a limited number of attempts during an acquisition (its
+ * failure budget). Once that is used up, the device's circuit is open: commands
+ * touching it are attempted only once, without retries or retry delays, so that a
+ * faulty device fails fast instead of stalling every step. A successful command closes
+ * the circuit and restores the budget.
+ *
+ * <p>Only used from the acquisition engine thread.
+ */
+class DeviceFaultTracker {
+
+   private final HashMap<String, Integer> failuresByDevice_ = new HashMap<>();
+   private long attempts_ = 0;
+   private long failures_ = 0;
+   private long retries_ = 0;
+   private long fastFailures_ = 0;
+
+   /**
+    * Whether any of the devices has used up its failure budget.
+    */
+   boolean isCircuitOpen(int failureBudget, String... devices) {
+      for (String device : devices) {
+         if (failuresByDevice_.getOrDefault(device, 0) >= failureBudget) {
+            return true;
+         }
+      }
+      return false;
+   }
+
+   void recordAttempt(boolean retry) {
+      attempts_++;
+      if (retry) {
+         retries_++;
+      }
+   }
+
+   void recordSuccess(String... devices) {
+      for (String device : devices) {
+         failuresByDevice_.remove(device);
+      }
+   }
+
+   void recordFailure(String... devices) {
+      failures_++;
+      for (String device : devices) {
+         failuresByDevice_.merge(device, 1, Integer::sum);
+      }
+   }
+
+   /**
+    * Record that a command failed without being retried because a circuit was open.
+    */
+   void recordFastFailure() {
+      fastFailures_++;
+   }
+
+   long getAttemptCount() {
+      return attempts_;
+   }
+
+   long getFailureCount() {
+      return failures_;
+   }
+
+   long getRetryCount() {
+      return retries_;
+   }
+
+   long getFastFailureCount() {
+      return fastFailures_;
+   }
+}
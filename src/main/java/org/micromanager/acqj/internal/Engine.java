@@ -20,74 +20,180 @@ package org.micromanager.acqj.internal;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.lang.Double;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
-import java.util.Calendar;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.concurrent.ExecutionException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 import mmcorej.CMMCore;
-import mmcorej.Configuration;
 import mmcorej.DoubleVector;
-import mmcorej.PropertySetting;
 import mmcorej.StrVector;
 import mmcorej.TaggedImage;
 import mmcorej.org.json.JSONException;
 import org.micromanager.acqj.api.AcquisitionAPI;
 import org.micromanager.acqj.api.AcquisitionHook;
+import org.micromanager.acqj.api.HardwareRetryPolicy;
 import org.micromanager.acqj.main.AcqEngMetadata;
 import org.micromanager.acqj.main.AcqNotification;
 import org.micromanager.acqj.main.Acquisition;
 import org.micromanager.acqj.main.AcquisitionEvent;
+import org.micromanager.acqj.main.StaticImageContext;
+import org.micromanager.acqj.util.MetadataClock;
+import org.micromanager.acqj.util.MetricsRegistry;
 
 @SuppressWarnings({"checkstyle:LineLength", "checkstyle:MissingJavadocType"})
 public class Engine {
 
-   private static final int HARDWARE_ERROR_RETRIES = 6;
-   private static final int DELAY_BETWEEN_RETRIES_MS = 5;
-   private static CMMCore core_;
-   private static Engine singleton_ = null;
+   private static final DateTimeFormatter LOG_TIME_FORMAT =
+         DateTimeFormatter.ofPattern("yyyy/MM/dd HH:mm:ss");
+   private static final AtomicInteger ENGINE_COUNT = new AtomicInteger();
+   //How long an engine thread waits for work before exiting
+   private static final long IDLE_THREAD_TIMEOUT_S = 10;
+   //The first engine created, used by acquisitions that aren't given an engine explicitly
+   private static volatile Engine singleton_ = null;
+   private final CMMCore core_;
    private AcquisitionEvent lastEvent_ = null;
-   //A queue that holds multiple acquisition events which are in the process of being merged into a single, hardware-triggered event
-   private LinkedList<AcquisitionEvent> sequencedEvents_ = new LinkedList<>();
+   // Values for image metadata read from the core, null when they need to be read again
+   private StaticImageContext imageContext_ = null;
+   //Builder of the sequence being executed, which has its values already extracted
+   private SequenceBuilder executingSequenceBuilder_ = null;
    //Thread on which the generation of acquisition events occurs
-   private static ExecutorService eventGeneratorExecutor_;
+   private final ExecutorService eventGeneratorExecutor_;
    //Thread on which all communication with hardware occurs
-   private static ExecutorService acqExecutor_;
-   private static HashSet<AcquisitionAPI> activeAcquisitions_ = new HashSet<>();
+   private final ExecutorService acqExecutor_;
+   //Interleaves the events of all iterators submitted to this engine
+   private final EventDispatcher eventDispatcher_;
+   private final Set<AcquisitionAPI> activeAcquisitions_ = ConcurrentHashMap.newKeySet();
+   //State kept for each acquisition running on this engine. Only used on the acquisition engine thread
+   private final HashMap<AcquisitionAPI, AcquisitionState> acquisitionStates_ = new HashMap<>();
 
 
 
-   @SuppressWarnings("checkstyle:MissingJavadocMethod")
+   /**
+    * Create an engine that controls the given core on its own hardware thread. Engines
+    * for different cores are independent, so several microscopes can acquire in
+    * parallel. The first engine created becomes the default one, returned by
+    * {@link #getInstance()}.
+    *
+    * <p>The engine's threads are only started once it is given work, and exit again
+    * after being idle for a while, so engines that are no longer used don't hold on to
+    * threads or keep the JVM from exiting. {@link #shutdown()} stops them for good.
+    *
+    * @param core the core to control
+    */
    public Engine(CMMCore core) {
-      if (singleton_ == null) {
-         singleton_ = this;
-         core_ = core;
-         acqExecutor_ = Executors.newSingleThreadExecutor(r -> {
-            return new Thread(r, "Acquisition Engine Thread");
-         });
-         eventGeneratorExecutor_ = Executors
-                 .newSingleThreadExecutor((Runnable r) -> new Thread(r, "Acq Eng event generator"));
+      core_ = core;
+      int engineNumber = ENGINE_COUNT.incrementAndGet();
+      String suffix = engineNumber == 1 ? "" : " " + engineNumber;
+      acqExecutor_ = newEngineThread("Acquisition Engine Thread" + suffix);
+      eventGeneratorExecutor_ = newEngineThread("Acq Eng event generator" + suffix);
+      eventDispatcher_ = new EventDispatcher(core_, eventGeneratorExecutor_, new EventDispatcher.EventTarget() {
+         @Override
+         public void acquisitionActive(AcquisitionAPI acquisition) {
+            activeAcquisitions_.add(acquisition);
+         }
+
+         @Override
+         public Future<?> process(AcquisitionEvent event, SequenceBuilder builder) {
+            return processAcquisitionEvent(event, builder);
+         }
+      });
+      synchronized (Engine.class) {
+         if (singleton_ == null) {
+            singleton_ = this;
+         }
       }
    }
 
+   /**
+    * Single thread executor whose thread is started on demand and exits when idle.
+    */
+   private static ExecutorService newEngineThread(String name) {
+      ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1,
+            IDLE_THREAD_TIMEOUT_S, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+            (Runnable r) -> new Thread(r, name));
+      executor.allowCoreThreadTimeOut(true);
+      return executor;
+   }
 
-
+   /**
+    * Core of the default engine.
+    */
    public static CMMCore getCore() {
-      return core_;
+      Engine engine = singleton_;
+      return engine == null ? null : engine.core_;
    }
 
+   /**
+    * The default engine, i.e. the first one created.
+    */
    public static Engine getInstance() {
       return singleton_;
    }
 
+   /**
+    * Core controlled by this engine.
+    */
+   public CMMCore getEngineCore() {
+      return core_;
+   }
+
+   /**
+    * Stop this engine's threads once the work already submitted to them is done. If
+    * this is the default engine, the next one created becomes the default.
+    */
+   public void shutdown() {
+      eventGeneratorExecutor_.shutdown();
+      acqExecutor_.shutdown();
+      synchronized (Engine.class) {
+         if (singleton_ == this) {
+            singleton_ = null;
+         }
+      }
+   }
+
+   /**
+    * Forget remembered answers about which devices can be sequenced and what config
+    * presets contain. These are otherwise kept for the duration of an acquisition, so
+    * call this if the hardware configuration is changed while one is running.
+    */
+   public void invalidateHardwareCapabilities() {
+      acqExecutor_.submit(() -> {
+         for (AcquisitionState state : acquisitionStates_.values()) {
+            state.capabilities_.invalidate();
+         }
+      });
+   }
+
+   /**
+    * State kept for the given acquisition, created the first time it is asked for.
+    * Only called on the acquisition engine thread.
+    */
+   private AcquisitionState getAcquisitionState(AcquisitionAPI acq) {
+      return acquisitionStates_.computeIfAbsent(acq, a -> new AcquisitionState());
+   }
+
+   /**
+    * Capability answers for the given acquisition. Each acquisition starts with nothing
+    * remembered, since the configuration may have changed since earlier ones.
+    * Only called on the acquisition engine thread.
+    */
+   private HardwareCapabilities getHardwareCapabilities(AcquisitionAPI acq) {
+      return getAcquisitionState(acq).capabilities_;
+   }
+
    /**
     * No more data to be collected for this acquisition.
     * Execute a finishing event so everything shuts down properly
@@ -100,15 +206,13 @@ public class Engine {
     */
    @SuppressWarnings({"checkstyle:NonEmptyAtclauseDescription", "checkstyle:RequireEmptyLineBeforeBlockTagGroup", "checkstyle:LineLength"})
    public Future<Future> finishAcquisition(Acquisition acq) {
-      return eventGeneratorExecutor_.submit(() -> {
+      //Runs once the iterators of this acquisition submitted before it are done
+      return eventDispatcher_.submitBarrier(acq, () -> {
          Future f = acqExecutor_.submit(() -> {
             try {
                if (acq.isDebugMode()) {
                   core_.logMessage("recieved acquisition finished signal");
                }
-               //clear any pending events, but since submitEventIterator occurs on the
-               //same thread, events will only be cleared in the case of an abort
-               sequencedEvents_.clear();
                if (acq.isDebugMode()) {
                   core_.logMessage("creating acquisition finished event");
                }
@@ -126,80 +230,29 @@ public class Engine {
     * Submit a stream of events which will get lazily processed and merged into multi-image hardware sequenced events
     * as needed. Block until all events executed
     *
+    * <p>Up to {@link Acquisition#getEventPipelineDepth()} events are kept in flight on the acquisition
+    * thread, so the next event can be pulled from the iterator without waiting for the previous one to
+    * finish. Errors and aborts are still handled in the order the events were submitted.
+    *
     * @param eventIterator Iterator of acquisition events that contains instructions of what to acquire
     * @return a Future that can be gotten when the event iteration is finished,
     */
-   @SuppressWarnings({"checkstyle:LineLength", "checkstyle:ParenPad"})
    public Future submitEventIterator(Iterator<AcquisitionEvent> eventIterator) {
-      return eventGeneratorExecutor_.submit(() -> {
-         try {
-            AcquisitionAPI acq = null;
-            while (eventIterator.hasNext()) {
-               AcquisitionEvent event = eventIterator.next();
-               // Some iterators can return null, they still may have more events, but want to
-               // skip this one.
-               if (event == null) {
-                  continue;
-               }
-               acq = event.acquisition_;
-               activeAcquisitions_.add(acq);
-               if (acq.isDebugMode()) {
-                  core_.logMessage("got event: " + event.toString()  );
-               }
-
-               for (AcquisitionHook h : event.acquisition_.getEventGenerationHooks()) {
-                  event = h.run(event);
-                  if (event == null) {
-                     return; //The hook cancelled this event
-                  }
-               }
-
-               //Wait here if acquisition is paused
-               while (event.acquisition_.isPaused()) {
-                  try {
-                     Thread.sleep(5);
-                  } catch (InterruptedException ex) {
-                     throw new RuntimeException(ex);
-                  }
-               }
-               try {
-                  if (acq.isAbortRequested()) {
-                     if (acq.isDebugMode()) {
-                        core_.logMessage("acquisition aborted" );
-                     }
-                     return;
-                  }
-                  Future imageAcquiredFuture = processAcquisitionEvent(event);
-                  imageAcquiredFuture.get();
-               } catch (InterruptedException ex) {
-                  //cancelled
-                  return;
-               } catch (ExecutionException ex) {
-                  //some problem with acquisition, abort and propagate exception
-                  core_.logMessage(ex.getMessage());
-                  core_.logMessage(ex.getStackTrace().toString());
-                  acq.abort(ex);
-                  throw new RuntimeException(ex);
-               }
-            }
-            try {
-               //Make all events get executed from this iterator
-               Future lastImageFuture = processAcquisitionEvent(AcquisitionEvent.createAcquisitionSequenceEndEvent(acq));
-               lastImageFuture.get();
-            } catch (InterruptedException ex) {
-               //cancelled
-               return;
-            } catch (ExecutionException ex) {
-               //some problem with acuisition, propagate exception
-               ex.printStackTrace();
-               throw new RuntimeException(ex);
-            }
+      return submitEventIterator(eventIterator, 0);
+   }
 
-         } catch (Exception e) {
-            e.printStackTrace();
-            throw new RuntimeException(e);
-         }
-      });
+   /**
+    * Submit a stream of events, as {@link #submitEventIterator(Iterator)}. If other streams are
+    * still being processed, their events are interleaved rather than one stream waiting for the
+    * others to finish: streams with a higher priority go first, and streams of equal priority take
+    * turns one event at a time. Each stream is merged into hardware sequences separately.
+    *
+    * @param eventIterator Iterator of acquisition events that contains instructions of what to acquire
+    * @param priority streams with higher priority have their events executed first (default 0)
+    * @return a Future that can be gotten when the event iteration is finished,
+    */
+   public Future submitEventIterator(Iterator<AcquisitionEvent> eventIterator, int priority) {
+      return eventDispatcher_.submit(eventIterator, priority);
    }
 
    @SuppressWarnings({"checkstyle:LineLength", "checkstyle:MissingJavadocMethod"})
@@ -225,9 +278,13 @@ public class Engine {
     *     acquired and images retrieved for subsequent processing/saving
     */
    @SuppressWarnings({"checkstyle:ParenPad", "checkstyle:JavadocTagContinuationIndentation", "checkstyle:LineLength"})
-   private Future processAcquisitionEvent(AcquisitionEvent event)  {
+   private Future processAcquisitionEvent(AcquisitionEvent event, SequenceBuilder builder)  {
       Future imageAcquiredFuture = acqExecutor_.submit(() -> {
          try {
+            if (event.acquisition_.isAbortRequested()) {
+               // This event was already in flight when the abort happened
+               return;
+            }
             checkForDefaultDevices(event);
 
             if (event.acquisition_.isDebugMode()) {
@@ -236,19 +293,8 @@ public class Engine {
             if (event.acquisition_.isDebugMode()) {
                core_.logMessage("checking for sequencing" );
             }
-            if (sequencedEvents_.isEmpty() && !event.isAcquisitionSequenceEndEvent()) {
-               sequencedEvents_.add(event);
-            } else if (isSequencable(sequencedEvents_, event, sequencedEvents_.size() + 1)) {
-               //merge event into the sequence
-               sequencedEvents_.add(event);
-            } else {
-               // all events
-               AcquisitionEvent sequenceEvent = mergeSequenceEvent(sequencedEvents_);
-               sequencedEvents_.clear();
-               //Add in the start of the new sequence
-               if (!event.isAcquisitionSequenceEndEvent()) {
-                  sequencedEvents_.add(event);
-               }
+            AcquisitionEvent sequenceEvent = addToSequence(event, builder);
+            if (sequenceEvent != null) {
                if (event.acquisition_.isDebugMode()) {
                   core_.logMessage("executing acquisition event" );
                }
@@ -273,6 +319,25 @@ public class Engine {
       return imageAcquiredFuture;
    }
 
+   /**
+    * Merge the event into the hardware sequence being built up if possible. Otherwise,
+    * the sequence built so far is complete, and the event starts a new one.
+    *
+    * @return the completed sequence (or single event) to execute, or null if the
+    *     event was merged
+    */
+   private AcquisitionEvent addToSequence(AcquisitionEvent event, SequenceBuilder builder) {
+      HardwareCapabilities capabilities = getHardwareCapabilities(event.acquisition_);
+      if (builder.tryAppend(event, capabilities)) {
+         return null;
+      }
+      AcquisitionEvent sequenceEvent = builder.build();
+      executingSequenceBuilder_ = builder;
+      //Add in the start of the new sequence
+      builder.tryAppend(event, capabilities);
+      return sequenceEvent;
+   }
+
    /**
     * If acq finishing, return a Future that can be gotten when whatever sink it
     * goes to is done. Otherwise return null, since individual images can
@@ -284,25 +349,21 @@ public class Engine {
     */
    @SuppressWarnings({"checkstyle:ParenPad", "checkstyle:OperatorWrap", "checkstyle:LineLength", "checkstyle:NonEmptyAtclauseDescription"})
    private void executeAcquisitionEvent(AcquisitionEvent event) throws InterruptedException {
+      final DeadlineScheduler deadlineScheduler = getAcquisitionState(event.acquisition_).deadlineScheduler_;
       //check if we should pause until the minimum start time of the event has occured
-      while (event.getMinimumStartTimeAbsolute() != null && 
-              System.currentTimeMillis() < event.getMinimumStartTimeAbsolute()) {
-         long waitTime = event.getMinimumStartTimeAbsolute() - System.currentTimeMillis();
-         event.acquisition_.blockUnlessAborted(waitTime);
-         try {
-            if (event.acquisition_.isAbortRequested()) {
-               return;
-            }
-            Thread.sleep(1);
-         } catch (InterruptedException e) {
-            //Abort while waiting for next time point
+      try {
+         if (!deadlineScheduler.waitForStartTime(event)) {
             return;
          }
+      } catch (InterruptedException e) {
+         //Abort while waiting for next time point
+         return;
       }
 
       if (event.isAcquisitionFinishedEvent()) {
          //signal to finish saving thread and mark acquisition as finished
          if (event.acquisition_.areEventsFinished()) {
+            acquisitionStates_.remove(event.acquisition_);
             return; //Duplicate finishing event, possibly from x-ing out viewer
          }
 
@@ -328,13 +389,26 @@ public class Engine {
             h.close();
          }
          activeAcquisitions_.remove(event.acquisition_);
+         AcquisitionState state = acquisitionStates_.remove(event.acquisition_);
+         if (deadlineScheduler.getStartCount() > 0 && event.acquisition_.isDebugMode()) {
+            core_.logMessage(String.format("Timed event starts: %d, mean lateness %.1f us, max %.1f us",
+                  deadlineScheduler.getStartCount(), deadlineScheduler.getMeanLatenessUs(),
+                  deadlineScheduler.getMaxLatenessUs()));
+         }
+         if (state != null && state.faultTracker_.getFailureCount() > 0) {
+            DeviceFaultTracker faultTracker = state.faultTracker_;
+            core_.logMessage(String.format("Hardware command attempts: %d, failed %d, retried %d, "
+                  + "failed without retrying %d", faultTracker.getAttemptCount(),
+                  faultTracker.getFailureCount(), faultTracker.getRetryCount(),
+                  faultTracker.getFastFailureCount()));
+         }
          event.acquisition_.addToOutput(new TaggedImage(null, null));
          event.acquisition_.postNotification(AcqNotification.createAcqEventsFinishedNotification());
       } else {
          event.acquisition_.postNotification( new AcqNotification(
                  AcqNotification.Hardware.class, event.getAxesAsJSONString(), AcqNotification.Hardware.PRE_HARDWARE));
          for (AcquisitionHook h : event.acquisition_.getBeforeHardwareHooks()) {
-            event = h.run(event);
+            event = runHook(h, event, "hook.beforeHardware");
             if (event == null) {
                return; //The hook cancelled this event
             }
@@ -343,7 +417,9 @@ public class Engine {
 
          HardwareSequences hardwareSequencesInProgress = new HardwareSequences();
          try {
+            long prepareStart = System.nanoTime();
             prepareHardware(event, hardwareSequencesInProgress);
+            event.acquisition_.getMetrics().recordSince("prepareHardware", prepareStart);
          } catch (HardwareControlException e) {
             stopHardwareSequences(hardwareSequencesInProgress);
             throw e;
@@ -351,7 +427,7 @@ public class Engine {
          event.acquisition_.postNotification( new AcqNotification(
                  AcqNotification.Hardware.class, event.getAxesAsJSONString(), AcqNotification.Hardware.PRE_Z_DRIVE));
          for (AcquisitionHook h : event.acquisition_.getBeforeZDriveHooks()) {
-            event = h.run(event);
+            event = runHook(h, event, "hook.beforeZDrive");
             if (event == null) {
                return; //The hook cancelled this event
             }
@@ -359,7 +435,9 @@ public class Engine {
          }
 
          try {
+            long zDriveStart = System.nanoTime();
             startZDrive(event, hardwareSequencesInProgress);
+            event.acquisition_.getMetrics().recordSince("startZDrive", zDriveStart);
          } catch (HardwareControlException e) {
             stopHardwareSequences(hardwareSequencesInProgress);
             throw e;
@@ -370,7 +448,7 @@ public class Engine {
          event.acquisition_.postNotification( new AcqNotification(
                  AcqNotification.Hardware.class, event.getAxesAsJSONString(), AcqNotification.Hardware.POST_HARDWARE));
          for (AcquisitionHook h : event.acquisition_.getAfterHardwareHooks()) {
-            event = h.run(event);
+            event = runHook(h, event, "hook.afterHardware");
             if (event == null) {
                return; //The hook cancelled this event
             }
@@ -379,15 +457,18 @@ public class Engine {
 
          // Hardware hook may have modified wait time, so check again if we should
          // pause until the minimum start time of the event has occurred.
-         while (event.getMinimumStartTimeAbsolute() != null &&
-               System.currentTimeMillis() < event.getMinimumStartTimeAbsolute()) {
-            try {
+         try {
+            if (!deadlineScheduler.waitForStartTime(event)) {
                abortIfRequested(event, hardwareSequencesInProgress);
-               Thread.sleep(1);
-            } catch (InterruptedException e) {
-               //Abort while waiting for next time point
                return;
             }
+         } catch (InterruptedException e) {
+            //Abort while waiting for next time point
+            return;
+         }
+         Long lateness = deadlineScheduler.recordStart(event);
+         if (lateness != null && event.acquisition_.isDebugMode()) {
+            core_.logMessage("Event started " + lateness / 1000 + " us after its minimum start time");
          }
 
          if (event.shouldAcquireImage()) {
@@ -398,8 +479,7 @@ public class Engine {
                acquireImages(event, hardwareSequencesInProgress);
             } catch (TimeoutException e) {
                // Don't abort on a timeout
-               // TODO: this could probably be an option added to the acquisition in the future
-               System.err.println("Timeout while acquiring images");
+               core_.logMessage("Timeout while acquiring images: " + e.getMessage());
             }
 
             // if the acquisition was aborted, make sure everything shuts down properly
@@ -422,7 +502,14 @@ public class Engine {
    private void acquireImages(final AcquisitionEvent event,
                               HardwareSequences hardwareSequencesInProgress) throws HardwareControlException, TimeoutException {
       HashMap<String, Integer> cameraImageCounts = event.getCameraImageCounts(core_.getCameraDevice());
+      final MetricsRegistry metrics = event.acquisition_.getMetrics();
+      if (imageContext_ == null) {
+         imageContext_ = StaticImageContext.capture(core_);
+      }
+      final StaticImageContext context = imageContext_;
+      final long numCamChannels = context.getNumberOfCameraChannels();
       try {
+         long cameraStart = System.nanoTime();
          if (event.getSequence() != null && event.getSequence().size() > 1) {
             // Start sequences on one or more cameras
             for (String cameraDeviceName : cameraImageCounts.keySet()) {
@@ -432,6 +519,7 @@ public class Engine {
                core_.startSequenceAcquisition(cameraDeviceName,
                        cameraImageCounts.get(cameraDeviceName), 0, true);
             }
+            metrics.recordSince("camera.startSequence", cameraStart);
          } else {
             //snap one image with no sequencing
             event.acquisition_.postNotification(
@@ -445,11 +533,12 @@ public class Engine {
             } else {
                core_.snapImage();
             }
+            metrics.recordSince("camera.snap", cameraStart);
             event.acquisition_.postNotification(
                   new AcqNotification(AcqNotification.Camera.class,
                         event.getAxesAsJSONString(), AcqNotification.Camera.POST_SNAP));
             for (AcquisitionHook h : event.acquisition_.getAfterExposureHooks()) {
-               h.run(event);
+               runHook(h, event, "hook.afterExposure");
             }
          }
       } catch (Exception ex) {
@@ -466,9 +555,10 @@ public class Engine {
       //need to assign events to images as they come out, assuming they might be in arbitrary order,
       //but that each camera itself is ordered
       HashMap<Integer, LinkedList<AcquisitionEvent>> multiCamAdapterCameraEventLists = null;
+      final ImageSequence imageSequence = event.getSequence() == null ? null : new ImageSequence(event);
       if (event.getSequence() != null) {
          multiCamAdapterCameraEventLists = new HashMap<Integer, LinkedList<AcquisitionEvent>>();
-         for (int camIndex = 0; camIndex < core_.getNumberOfCameraChannels(); camIndex++) {
+         for (int camIndex = 0; camIndex < numCamChannels; camIndex++) {
             multiCamAdapterCameraEventLists.put(camIndex, new LinkedList<AcquisitionEvent>());
             for (AcquisitionEvent e: event.getSequence()) {
                multiCamAdapterCameraEventLists.get(camIndex).add(e);
@@ -484,7 +574,7 @@ public class Engine {
       // a separate thread, started after snapImage is started. But there is no guarantee
       // with this approach that the camera will be triggered at the correct time.
       for (AcquisitionHook h : event.acquisition_.getAfterCameraHooks()) {
-         h.run(event);
+         runHook(h, event, "hook.afterCamera");
       }
 
       if (event.acquisition_.isDebugMode()) {
@@ -495,25 +585,27 @@ public class Engine {
       // (# of images in sequence) x (# of camera channels) of them
       boolean timeout = false;
       final String axesAsJSONString = event.getAxesAsJSONString();
+      CircularBufferDrain bufferDrain = null;
+      if (event.getSequence() != null && event.getSequence().size() > 1) {
+         bufferDrain = new CircularBufferDrain(core_,
+               event.getSequence().size() * (int) numCamChannels);
+      }
       for (int i = 0; i < (event.getSequence() == null ? 1 : event.getSequence().size()); i++) {
          if (timeout) {
             // Cancel the rest of the sequence
             stopHardwareSequences(hardwareSequencesInProgress);
             break;
          }
-         double exposure;
-
-         try {
-            exposure = event.getExposure() == null ? core_.getExposure() : event.getExposure();
-         } catch (Exception ex) {
-            throw new RuntimeException("Couldnt get exposure form core");
-         }
-         long numCamChannels = core_.getNumberOfCameraChannels();
+         final double exposure = event.getExposure() == null
+               ? context.getExposure() : event.getExposure();
 
          boolean needToRunAfterExposureHooks = event.acquisition_.getAfterExposureHooks().iterator().hasNext();
          for (int camIndex = 0; camIndex < numCamChannels; camIndex++) {
             TaggedImage ti = null;
             String cameraName = null;
+            // When the image came out of the core, so images of a sequence have their own times
+            long popNanos = 0;
+            long popStart = System.nanoTime();
             while (ti == null) {
                if (event.acquisition_.isAbortRequested()) {
                   return;
@@ -524,10 +616,11 @@ public class Engine {
                      if (core_.isBufferOverflowed()) {
                         throw new RuntimeException("Sequence buffer overflow");
                      }
-                     try {
-                        ti = core_.popNextTaggedImage();
+                     ti = bufferDrain.poll();
+                     if (ti != null) {
+                        popNanos = bufferDrain.getPopNanos();
                         cameraName = ti.tags.getString("Camera");
-                     } catch (Exception e) {
+                     } else {
                         //continue waiting
                         if (!core_.isSequenceRunning() && core_.getRemainingImageCount() == 0) {
                            throw new RuntimeException("Expected images did not arrive in circular buffer");
@@ -554,6 +647,7 @@ public class Engine {
                         // TODO: probably there should be a timeout here too, but I'm
                         //  not sure the snapImage system supports it (as opposed to sequences)
                         ti = core_.getTaggedImage(camIndex);
+                        popNanos = MetadataClock.nanoTime();
                         if (ti.tags.has("Camera")) {
                            // This is present for multi cam adapter
                            cameraName = ti.tags.getString("Camera");
@@ -572,6 +666,10 @@ public class Engine {
                   throw e;
                }
             }
+            final long frameNanos = popNanos;
+            if (ti != null) {
+               metrics.recordSince("camera.framePop", popStart);
+            }
             if (needToRunAfterExposureHooks) {
                for (String cameraDeviceName : cameraImageCounts.keySet()) {
                   try {
@@ -588,7 +686,7 @@ public class Engine {
                }
 
                for (AcquisitionHook h : event.acquisition_.getAfterExposureHooks()) {
-                  h.run(event);
+                  runHook(h, event, "hook.afterExposure");
                }
                needToRunAfterExposureHooks = false;
             }
@@ -627,24 +725,31 @@ public class Engine {
                   correspondingEvent = multiCamAdapterCameraEventLists.get(actualCamIndex).remove(0);
                }
             }
-            // add standard metadata
-            AcqEngMetadata.addImageMetadata(ti.tags, correspondingEvent,
-                    currentTime - correspondingEvent.acquisition_.getStartTimeMs(), exposure);
-            // special behavior for multi camera adapter
-            if (core_.getNumberOfCameraChannels() > 1) {
-               AcqEngMetadata.setAxisPosition(ti.tags, "camera", cameraName);
-            }
-
-            // add user metadata specified in the event
-            try {
-               correspondingEvent.acquisition_.addTagsToTaggedImage(ti.tags, correspondingEvent.getTags());
-            } catch (JSONException jse) {
-               core_.logMessage("Error adding tags to image metadata", false);
+            CameraLane lane = correspondingEvent.acquisition_.getCameraLane(cameraName);
+            if (lane == null) {
+               outputImage(ti, correspondingEvent, imageSequence, cameraName, context,
+                     currentTime, frameNanos, exposure, null);
+            } else {
+               // Let the camera's lane finish up while the next image is popped
+               final TaggedImage image = ti;
+               final AcquisitionEvent imageEvent = correspondingEvent;
+               final String imageCamera = cameraName;
+               lane.submit(() -> {
+                  try {
+                     outputImage(image, imageEvent, imageSequence, imageCamera, context,
+                           currentTime, frameNanos, exposure, lane);
+                  } catch (Exception e) {
+                     imageEvent.acquisition_.abort(e);
+                  }
+               });
             }
-            correspondingEvent.acquisition_.addToImageMetadata(ti.tags);
-            correspondingEvent.acquisition_.addToOutput(ti);
          }
       }
+      if (bufferDrain != null && event.acquisition_.isDebugMode()) {
+         core_.logMessage("Circular buffer drain: " + bufferDrain.getPollCount() + " polls for "
+               + bufferDrain.getFramesPopped() + " images ("
+               + bufferDrain.getPollsPerFrame() + " polls per image)");
+      }
       // Most devices loop sequences, and need to be stopped explicitly
       // this is not the most pleasant place to put this call, but I can not find anything better.
       stopHardwareSequences(hardwareSequencesInProgress);
@@ -660,6 +765,47 @@ public class Engine {
       }
    }
 
+   /**
+    * Add metadata to a freshly acquired image and pass it on, either to the
+    * acquisition's output or to the given camera lane if that has its own sink.
+    */
+   private void outputImage(TaggedImage ti, AcquisitionEvent correspondingEvent,
+                            ImageSequence sequence, String cameraName, StaticImageContext context,
+                            long currentTime, long frameNanos, double exposure,
+                            CameraLane lane) {
+      MetricsRegistry metrics = correspondingEvent.acquisition_.getMetrics();
+      // add standard metadata. It is only written into JSON once something reads it
+      long metadataStart = System.nanoTime();
+      ti = new TaggedImage(ti.pix, AcqEngMetadata.createImageMetadata(ti.tags,
+            correspondingEvent, currentTime - correspondingEvent.acquisition_.getStartTimeMs(),
+            frameNanos, exposure, context));
+      metrics.recordSince("metadata.addImageMetadata", metadataStart);
+      // special behavior for multi camera adapter
+      if (context.getNumberOfCameraChannels() > 1) {
+         AcqEngMetadata.setAxisPosition(ti.tags, "camera", cameraName);
+      }
+      if (sequence != null) {
+         sequence.addTo(ti.tags, correspondingEvent);
+      }
+
+      // add user metadata specified in the event
+      try {
+         correspondingEvent.acquisition_.addTagsToTaggedImage(ti.tags, correspondingEvent.getTags());
+      } catch (JSONException jse) {
+         core_.logMessage("Error adding tags to image metadata", false);
+      }
+      correspondingEvent.acquisition_.addToImageMetadata(ti.tags);
+      if (lane != null && lane.hasSink()) {
+         try {
+            lane.put(ti);
+         } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+         }
+      } else {
+         correspondingEvent.acquisition_.addToOutput(ti);
+      }
+   }
+
    private void abortIfRequested(AcquisitionEvent event,
                                  HardwareSequences hardwareSequencesInProgress) {
       if (event.acquisition_.isAbortRequested()) {
@@ -722,37 +868,27 @@ public class Engine {
       //prepare sequences if applicable
       if (event.getSequence() != null) {
          try {
-            DoubleVector xSequence = event.isXYSequenced() ? new DoubleVector() : null;
-            DoubleVector ySequence = event.isXYSequenced() ? new DoubleVector() : null;
-            DoubleVector exposureSequence_ms =event.isExposureSequenced() ? new DoubleVector() : null;
+            SequenceValues values = getSequenceValues(event);
+            DoubleVector xSequence = toDoubleVector(values.getXPositions());
+            DoubleVector ySequence = toDoubleVector(values.getYPositions());
+            DoubleVector exposureSequence_ms = toDoubleVector(values.getExposures());
             String group = event.getSequence().get(0).getConfigGroup();
-            Configuration config = event.getSequence().get(0).getConfigPreset() == null ? null :
-                  core_.getConfigData(group, event.getSequence().get(0).getConfigPreset());
+            HardwareCapabilities capabilities = getHardwareCapabilities(event.acquisition_);
+            ConfigPresetSettings config = event.getSequence().get(0).getConfigPreset() == null ? null :
+                  capabilities.getConfigPreset(group, event.getSequence().get(0).getConfigPreset());
             LinkedList<StrVector> propSequences = event.isConfigGroupSequenced() ? new LinkedList<StrVector>() : null;
-            for (AcquisitionEvent e : event.getSequence()) {
-               if (xSequence != null) {
-                  xSequence.add(e.getXPosition());
-               }
-               if (ySequence != null) {
-                  ySequence.add(e.getYPosition());
-               }
-               if (exposureSequence_ms != null) {
-                  exposureSequence_ms.add(e.getExposure());
+            //Set sequences for all channel properties
+            if (propSequences != null) {
+               for (int i = 0; i < config.size(); i++) {
+                  propSequences.add(new StrVector());
                }
-               //Set sequences for all channel properties
-               if (propSequences != null) {
+               for (String preset : values.getConfigPresets()) {
+                  ConfigPresetSettings channelPresetConfig = capabilities.getConfigPreset(group, preset);
                   for (int i = 0; i < config.size(); i++) {
-                     PropertySetting ps = config.getSetting(i);
-                     String deviceName = ps.getDeviceLabel();
-                     String propName = ps.getPropertyName();
-                     if (e == event.getSequence().get(0)) { //first property
-                        propSequences.add(new StrVector());
-                     }
-                     Configuration channelPresetConfig = core_.getConfigData(group,
-                           e.getConfigPreset());
-                     String propValue = channelPresetConfig.getSetting(deviceName, propName).getPropertyValue();
-                     if (core_.isPropertySequenceable(deviceName, propName)) {
-                        propSequences.get(i).add(propValue);
+                     String deviceName = config.getDeviceLabel(i);
+                     String propName = config.getPropertyName(i);
+                     if (capabilities.isPropertySequenceable(deviceName, propName)) {
+                        propSequences.get(i).add(channelPresetConfig.getPropertyValue(deviceName, propName));
                      }
                   }
                }
@@ -769,9 +905,8 @@ public class Engine {
             }
             if (event.isConfigGroupSequenced()) {
                for (int i = 0; i < config.size(); i++) {
-                  PropertySetting ps = config.getSetting(i);
-                  String deviceName = ps.getDeviceLabel();
-                  String propName = ps.getPropertyName();
+                  String deviceName = config.getDeviceLabel(i);
+                  String propName = config.getPropertyName(i);
                   if (propSequences.get(i).size() > 0) {
                      core_.stopPropertySequence(deviceName, propName);
                      core_.loadPropertySequence(deviceName, propName, propSequences.get(i));
@@ -798,6 +933,19 @@ public class Engine {
       if (lastEvent_ != null && lastEvent_.acquisition_ != event.acquisition_) {
          lastEvent_ = null; //update all hardware if switching to a new acquisition
       }
+      if (changesImageContext(event)) {
+         imageContext_ = null;
+      }
+
+      if (event.acquisition_ != null && event.acquisition_.isConcurrentHardwareMoves()) {
+         prepareHardwareConcurrently(event, xyStage, slm);
+         return;
+      }
+
+      final AcquisitionEvent firstEvent = event.getSequence() != null && event.getSequence().size() > 0
+            ? event.getSequence().get(0) : event;
+      final String[] otherStages = firstEvent.getStageDeviceNames().stream()
+            .filter(name -> !name.equals(core_.getFocusDevice())).toArray(String[]::new);
 
       /////////////////////////////Other stage devices ////////////////////////////////////////////
       loopHardwareCommandRetries(new Runnable() {
@@ -835,7 +983,7 @@ public class Engine {
             }
 
          }
-      }, "Moving other stage devices");
+      }, "Moving other stage devices", event.acquisition_, otherStages);
 
       /////////////////////////////XY Stage////////////////////////////////////////////////////
       loopHardwareCommandRetries(new Runnable() {
@@ -846,36 +994,22 @@ public class Engine {
                if (event.isXYSequenced()) {
                   core_.startXYStageSequence(xyStage);
                } else  {
-                  //could be sequenced over other devices, in that case get xy position from first in sequence
-                  Double prevXPosition = lastEvent_ == null ? null :
-                        lastEvent_.getSequence() == null ? lastEvent_.getXPosition() : lastEvent_.getSequence().get(0).getXPosition();
-                  Double xPosition = event.getSequence() == null ? event.getXPosition() : event.getSequence().get(0).getXPosition();
-                  Double prevYPosition = lastEvent_ == null ? null :
-                        lastEvent_.getSequence() == null ? lastEvent_.getYPosition() : lastEvent_.getSequence().get(0).getYPosition();
-                  Double yPosition = event.getSequence() == null ? event.getYPosition() : event.getSequence().get(0).getYPosition();
-                  boolean previousXYDefined = event != null && prevXPosition != null && prevYPosition != null;
-                  boolean currentXYDefined = event != null && xPosition != null && yPosition != null;
-                  if (!currentXYDefined) {
-                     return;
-                  }
-                  boolean xyChanged = !previousXYDefined || !prevXPosition.equals(xPosition) || !prevYPosition.equals(yPosition);
-                  if (!xyChanged) {
+                  double[] xyPosition = getXYPositionToSet(event);
+                  if (xyPosition == null) {
                      return;
                   }
                   //wait for it to not be busy (is this even needed?)
                   core_.waitForDevice(xyStage);
                   //Move XY
-                  core_.setXYPosition(xyStage, xPosition, yPosition);
+                  core_.setXYPosition(xyStage, xyPosition[0], xyPosition[1]);
                   //wait for move to finish
                   core_.waitForDevice(xyStage);
                }
             } catch (Exception ex) {
-               core_.logMessage(stackTraceToString(ex));
-               ex.printStackTrace();
-               throw new HardwareControlException(ex.getMessage());
+               throw new HardwareControlException(ex.getMessage(), ex);
             }
          }
-      }, "Moving XY stage");
+      }, "Moving XY stage", event.acquisition_, xyStage);
 
       /////////////////////////////Channels//////////////////////////////////////////////////
       loopHardwareCommandRetries(new Runnable() {
@@ -888,11 +1022,8 @@ public class Engine {
                      event.getConfigPreset() : event.getSequence().get(0).getConfigPreset();
                String currentGroup = event.getSequence() == null ?
                      event.getConfigGroup() : event.getSequence().get(0).getConfigGroup();
-               String previousConfig = lastEvent_ == null ? null : lastEvent_.getSequence() == null ?
-                     lastEvent_.getConfigPreset() : lastEvent_.getSequence().get(0).getConfigPreset();
 
-               boolean newChannel = currentConfig != null && (previousConfig == null || !previousConfig.equals(currentConfig));
-               if ( newChannel ) {
+               if (isNewChannel(event)) {
                   //set exposure
                   if (event.getExposure() != null) {
                      core_.setExposure(event.getExposure());
@@ -904,25 +1035,14 @@ public class Engine {
                }
 
                if (event.isConfigGroupSequenced()) {
-                  //Channels
-                  String group = event.getSequence().get(0).getConfigGroup();
-                  Configuration config = core_.getConfigData(group, event.getSequence().get(0).getConfigPreset());
-                  for (int i = 0; i < config.size(); i++) {
-                     PropertySetting ps = config.getSetting(i);
-                     String deviceName = ps.getDeviceLabel();
-                     String propName = ps.getPropertyName();
-                     if (core_.isPropertySequenceable(deviceName, propName)) {
-                        core_.startPropertySequence(deviceName, propName);
-                     }
-                  }
+                  startPropertySequences(event);
                }
             } catch (Exception ex) {
-               ex.printStackTrace();
-               throw new HardwareControlException(ex.getMessage());
+               throw new HardwareControlException(ex.getMessage(), ex);
             }
 
          }
-      }, "Changing channels");
+      }, "Changing channels", event.acquisition_, getChannelDevices(event, firstEvent));
 
       /////////////////////////////Camera exposure//////////////////////////////////////////////
       loopHardwareCommandRetries(new Runnable() {
@@ -932,21 +1052,15 @@ public class Engine {
             try {
                if (event.isExposureSequenced()) {
                   core_.startExposureSequence(core_.getCameraDevice());
-               } else {
-                  Double currentExposure = event.getExposure();
-                  Double prevExposure = lastEvent_ == null ? null : lastEvent_.getExposure();
-                  boolean changeExposure = currentExposure != null &&
-                        (prevExposure == null || !prevExposure.equals(currentExposure));
-                  if (changeExposure) {
-                     core_.setExposure(currentExposure);
-                  }
+               } else if (isNewExposure(event)) {
+                  core_.setExposure(event.getExposure());
                }
             } catch (Exception ex) {
                throw new HardwareControlException(ex.getMessage());
             }
 
          }
-      }, "Changing exposure");
+      }, "Changing exposure", event.acquisition_, core_.getCameraDevice());
 
 
       /////////////////////////////   SLM    //////////////////////////////////////////////
@@ -968,7 +1082,7 @@ public class Engine {
             }
 
          }
-      }, "Setting SLM pattern");
+      }, "Setting SLM pattern", event.acquisition_, slm);
 
       //////////////////////////   Arbitrary Properties //////////////////////////////////
       loopHardwareCommandRetries(new Runnable() {
@@ -983,7 +1097,198 @@ public class Engine {
             }
 
          }
-      }, "Changing additional properties");
+      }, "Changing additional properties", event.acquisition_,
+            event.getAdditonalProperties().stream().map(s -> s[0]).toArray(String[]::new));
+   }
+
+   /**
+    * Same hardware changes as the serial path of prepareHardware, but all commands are
+    * sent before waiting on any device, and then waited on together. The z drive is
+    * still handled separately by startZDrive.
+    */
+   @SuppressWarnings("checkstyle:LineLength")
+   private void prepareHardwareConcurrently(final AcquisitionEvent event, String xyStage, String slm)
+         throws HardwareControlException {
+      DeviceCommandPlan plan = new DeviceCommandPlan(core_);
+      final AcquisitionEvent firstEvent = event.getSequence() != null && event.getSequence().size() > 0
+            ? event.getSequence().get(0) : event;
+
+      for (String stageDeviceName : firstEvent.getStageDeviceNames()) {
+         // z stage is handled in startZDrive
+         if (stageDeviceName.equals(core_.getFocusDevice())) {
+            continue;
+         }
+         plan.add("Moving " + stageDeviceName, stageDeviceName, () ->
+               core_.setPosition(stageDeviceName, firstEvent.getStageSingleAxisStagePosition(stageDeviceName)));
+      }
+
+      if (event.isXYSequenced()) {
+         plan.add("Starting XY stage sequence", xyStage, () -> core_.startXYStageSequence(xyStage));
+      } else {
+         double[] xyPosition = getXYPositionToSet(event);
+         if (xyPosition != null) {
+            plan.add("Moving XY stage", xyStage, () -> core_.setXYPosition(xyStage, xyPosition[0], xyPosition[1]));
+         }
+      }
+
+      if (isNewChannel(event)) {
+         final String group = firstEvent.getConfigGroup();
+         final String preset = firstEvent.getConfigPreset();
+         plan.add("Changing channels", Arrays.asList(getChannelDevices(event, firstEvent)), () -> {
+            if (event.getExposure() != null) {
+               core_.setExposure(event.getExposure());
+            }
+            core_.setConfig(group, preset);
+         }, () -> core_.waitForConfig(group, preset));
+      }
+      if (event.isConfigGroupSequenced()) {
+         // Only once the channel change has finished setting the same devices
+         plan.addAfterEarlier("Starting property sequences", getSequencedPropertyDevices(event),
+               () -> startPropertySequences(event));
+      }
+
+      if (event.isExposureSequenced()) {
+         plan.add("Starting exposure sequence", core_.getCameraDevice(),
+               () -> core_.startExposureSequence(core_.getCameraDevice()));
+      } else if (isNewExposure(event)) {
+         plan.add("Changing exposure", core_.getCameraDevice(), () -> core_.setExposure(event.getExposure()));
+      }
+
+      if (event.getSLMImage() != null) {
+         plan.add("Setting SLM pattern", slm, () -> {
+            if (event.getSLMImage() instanceof byte[]) {
+               core_.setSLMImage(slm, (byte[]) event.getSLMImage());
+            } else if (event.getSLMImage() instanceof int[]) {
+               core_.setSLMImage(slm, (int[]) event.getSLMImage());
+            } else {
+               throw new RuntimeException("SLM api only supports 8 bit and 32 bit patterns");
+            }
+         });
+      }
+
+      for (String[] s : event.getAdditonalProperties()) {
+         plan.add("Changing property " + s[0] + "-" + s[1], s[0], () -> core_.setProperty(s[0], s[1], s[2]));
+      }
+
+      plan.execute(event.acquisition_.getHardwareOrderingConstraints(), (step, stepName, devices) ->
+            loopHardwareCommandRetries(step, stepName, event.acquisition_, devices.toArray(new String[0])));
+   }
+
+   /**
+    * XY position to move to for this event, or null if it is undefined or unchanged
+    * since the last event. If the event is sequenced over other devices, the position
+    * is taken from the first event in the sequence.
+    */
+   @SuppressWarnings("checkstyle:LineLength")
+   private double[] getXYPositionToSet(AcquisitionEvent event) {
+      Double prevXPosition = lastEvent_ == null ? null :
+            lastEvent_.getSequence() == null ? lastEvent_.getXPosition() : lastEvent_.getSequence().get(0).getXPosition();
+      Double xPosition = event.getSequence() == null ? event.getXPosition() : event.getSequence().get(0).getXPosition();
+      Double prevYPosition = lastEvent_ == null ? null :
+            lastEvent_.getSequence() == null ? lastEvent_.getYPosition() : lastEvent_.getSequence().get(0).getYPosition();
+      Double yPosition = event.getSequence() == null ? event.getYPosition() : event.getSequence().get(0).getYPosition();
+      boolean previousXYDefined = prevXPosition != null && prevYPosition != null;
+      boolean currentXYDefined = xPosition != null && yPosition != null;
+      if (!currentXYDefined) {
+         return null;
+      }
+      boolean xyChanged = !previousXYDefined || !prevXPosition.equals(xPosition) || !prevYPosition.equals(yPosition);
+      return xyChanged ? new double[] {xPosition, yPosition} : null;
+   }
+
+   /**
+    * Devices affected by changing to the channel of the event: those in its config
+    * preset, and the camera if the exposure is set too. Empty if the channel is unchanged.
+    */
+   private String[] getChannelDevices(AcquisitionEvent event, AcquisitionEvent firstEvent) {
+      if (!isNewChannel(event)) {
+         return new String[0];
+      }
+      List<String> devices = new ArrayList<>();
+      try {
+         devices.addAll(getHardwareCapabilities(event.acquisition_).getConfigPreset(
+               firstEvent.getConfigGroup(), firstEvent.getConfigPreset()).getDeviceLabels());
+      } catch (Exception ex) {
+         throw new HardwareControlException(ex.getMessage());
+      }
+      if (event.getExposure() != null) {
+         devices.add(core_.getCameraDevice());
+      }
+      return devices.toArray(new String[0]);
+   }
+
+   /**
+    * Values of the sequence, as extracted when it was built if it is the one being
+    * executed.
+    */
+   private SequenceValues getSequenceValues(AcquisitionEvent sequenceEvent) {
+      SequenceBuilder builder = executingSequenceBuilder_;
+      return builder == null ? SequenceValues.of(sequenceEvent) : builder.getValues(sequenceEvent);
+   }
+
+   /**
+    * Devices with properties in the config preset that a config group sequence starts on.
+    */
+   private List<String> getSequencedPropertyDevices(AcquisitionEvent event) {
+      List<String> devices = new ArrayList<>();
+      try {
+         HardwareCapabilities capabilities = getHardwareCapabilities(event.acquisition_);
+         ConfigPresetSettings config = capabilities.getConfigPreset(
+               event.getSequence().get(0).getConfigGroup(),
+               event.getSequence().get(0).getConfigPreset());
+         for (int i = 0; i < config.size(); i++) {
+            if (capabilities.isPropertySequenceable(config.getDeviceLabel(i),
+                  config.getPropertyName(i))) {
+               devices.add(config.getDeviceLabel(i));
+            }
+         }
+      } catch (Exception ex) {
+         throw new HardwareControlException(ex.getMessage());
+      }
+      return devices;
+   }
+
+   /**
+    * Whether the event might change the pixel size or core camera settings, so they need
+    * to be read from the core again before its images come out. Hooks can change
+    * anything, so acquisitions with hardware hooks read them for every event.
+    */
+   private boolean changesImageContext(AcquisitionEvent event) {
+      return lastEvent_ == null || isNewChannel(event) || isNewExposure(event)
+            || !event.getAdditonalProperties().isEmpty()
+            || event.acquisition_.getBeforeHardwareHooks().iterator().hasNext()
+            || event.acquisition_.getBeforeZDriveHooks().iterator().hasNext()
+            || event.acquisition_.getAfterHardwareHooks().iterator().hasNext();
+   }
+
+   @SuppressWarnings({"checkstyle:LineLength", "checkstyle:OperatorWrap"})
+   private boolean isNewChannel(AcquisitionEvent event) {
+      String currentConfig = event.getSequence() == null ?
+            event.getConfigPreset() : event.getSequence().get(0).getConfigPreset();
+      String previousConfig = lastEvent_ == null ? null : lastEvent_.getSequence() == null ?
+            lastEvent_.getConfigPreset() : lastEvent_.getSequence().get(0).getConfigPreset();
+      return currentConfig != null && (previousConfig == null || !previousConfig.equals(currentConfig));
+   }
+
+   @SuppressWarnings("checkstyle:OperatorWrap")
+   private boolean isNewExposure(AcquisitionEvent event) {
+      Double currentExposure = event.getExposure();
+      Double prevExposure = lastEvent_ == null ? null : lastEvent_.getExposure();
+      return currentExposure != null &&
+            (prevExposure == null || !prevExposure.equals(currentExposure));
+   }
+
+   private void startPropertySequences(AcquisitionEvent event) throws Exception {
+      String group = event.getSequence().get(0).getConfigGroup();
+      HardwareCapabilities capabilities = getHardwareCapabilities(event.acquisition_);
+      ConfigPresetSettings config = capabilities.getConfigPreset(group, event.getSequence().get(0).getConfigPreset());
+      for (int i = 0; i < config.size(); i++) {
+         String deviceName = config.getDeviceLabel(i);
+         String propName = config.getPropertyName(i);
+         if (capabilities.isPropertySequenceable(deviceName, propName)) {
+            core_.startPropertySequence(deviceName, propName);
+         }
+      }
    }
 
    /**
@@ -999,12 +1304,7 @@ public class Engine {
                             HardwareSequences hardwareSequencesInProgress) throws HardwareControlException {
       final String zStage = core_.getFocusDevice();
       if (event.getSequence() != null) {
-         DoubleVector zSequence = event.isZSequenced() ? new DoubleVector() : null;
-         for (AcquisitionEvent e : event.getSequence()) {
-            if (zSequence != null) {
-               zSequence.add(e.getZPosition());
-            }
-         }
+         DoubleVector zSequence = toDoubleVector(getSequenceValues(event).getZPositions());
          try {
             if (event.isZSequenced()) {
                // at least some zStages freak out (in this case, NIDAQ board) when you
@@ -1054,163 +1354,96 @@ public class Engine {
             }
 
          }
-      }, "Moving Z device");
+      }, "Moving Z device", event.acquisition_, zStage);
    }
 
    /**
-    * Attempt a hardware command multiple times if it throws an exception. If still doesn't
-    * work after those tries, give up and declare exception
+    * Attempt a hardware command multiple times if it throws an exception, as set by the
+    * acquisition's retry policy. If still doesn't work after those tries, or a device it
+    * touches has used up its failure budget, give up and declare exception
     *
     * @param r runnable containing the command
     * @param commandName name given to the command for loggin purposes
+    * @param acq acquisition the command is for, which sets the retry policy
+    * @param devices labels of the devices the command touches
     * @throws HardwareControlException
     */
    @SuppressWarnings({"checkstyle:Indentation", "checkstyle:LineLength", "checkstyle:NonEmptyAtclauseDescription"})
-   private void loopHardwareCommandRetries(Runnable r, String commandName) throws HardwareControlException {
+   private void loopHardwareCommandRetries(Runnable r, String commandName, Acquisition acq,
+                                           String... devices) throws HardwareControlException {
+      HardwareRetryPolicy policy = acq == null ? HardwareRetryPolicy.DEFAULT
+            : acq.getHardwareRetryPolicy(commandName, devices);
+      int failureBudget = acq == null ? Integer.MAX_VALUE : acq.getDeviceFailureBudget();
+      MetricsRegistry metrics = acq == null ? null : acq.getMetrics();
+      DeviceFaultTracker faultTracker = getAcquisitionState(acq).faultTracker_;
+      long start = System.nanoTime();
       Exception ex = null;
-      for (int i = 0; i < HARDWARE_ERROR_RETRIES; i++) {
+      int attempt = 0;
+      while (true) {
+         boolean circuitOpen = faultTracker.isCircuitOpen(failureBudget, devices);
+         faultTracker.recordAttempt(attempt > 0);
+         if (metrics != null) {
+            metrics.increment(attempt > 0 ? "hardware.retries" : "hardware.attempts");
+         }
+         attempt++;
          try {
             r.run();
+            faultTracker.recordSuccess(devices);
+            if (metrics != null) {
+               metrics.recordSince("hardware." + commandName, start);
+            }
             return;
          } catch (Exception e) {
             ex = e;
-            core_.logMessage(stackTraceToString(e));
-            System.err.println(getCurrentDateAndTime() + ": Problem "
-                    + commandName + "\n Retry #" + i + " in " + DELAY_BETWEEN_RETRIES_MS + " ms");
-            try {
-               Thread.sleep(DELAY_BETWEEN_RETRIES_MS);
-            } catch (InterruptedException e1) {
-                e1.printStackTrace();
-                throw new HardwareControlException(e1.getMessage());
+            faultTracker.recordFailure(devices);
+            if (circuitOpen) {
+               faultTracker.recordFastFailure();
+            }
+            if (metrics != null) {
+               metrics.increment(circuitOpen ? "hardware.fastFailures" : "hardware.failures");
             }
          }
+         if (circuitOpen || attempt >= policy.getMaxAttempts()
+               || faultTracker.isCircuitOpen(failureBudget, devices)) {
+            break;
+         }
+         long delay = policy.getDelayMs(attempt);
+         core_.logMessage("Problem " + commandName + ": " + ex.getMessage()
+               + ". Retry #" + attempt + " in " + delay + " ms");
+         try {
+            Thread.sleep(delay);
+         } catch (InterruptedException e1) {
+             e1.printStackTrace();
+             throw new HardwareControlException(e1.getMessage());
+         }
       }
-      throw new HardwareControlException(commandName + " unsuccessful" + ": " + ex.getMessage());
-   }
-
-   private static String getCurrentDateAndTime() {
-      DateFormat df = new SimpleDateFormat("yyyy/MM/dd HH:mm:ss");
-      Calendar calobj = Calendar.getInstance();
-      return df.format(calobj.getTime());
+      core_.logMessage(stackTraceToString(ex));
+      System.err.println(LocalDateTime.now().format(LOG_TIME_FORMAT) + ": Problem "
+              + commandName + ", giving up after " + attempt + " attempt(s)");
+      throw new HardwareControlException(commandName + " unsuccessful" + ": " + ex.getMessage(), ex);
    }
 
    /**
-    * Check if all the hardware changes between one event and the next compatible with hardware sequencing.
-    * If so, they can be merged into a single event which will take place with hardware triggering
-    *
-    * @param previousEvents list of previous events
-    * @param nextEvent next event to sequence
-    * @return true if they can be combined
+    * Run a hook, recording how long it took under the given name.
     */
-   @SuppressWarnings({"checkstyle:LineLength", "checkstyle:OperatorWrap", "checkstyle:ParenPad", "checkstyle:WhitespaceAfter"})
-   private static boolean isSequencable(List<AcquisitionEvent> previousEvents,
-                                        AcquisitionEvent nextEvent, int newSeqLength) {
+   private static AcquisitionEvent runHook(AcquisitionHook hook, AcquisitionEvent event, String metricName) {
+      long start = System.nanoTime();
       try {
-         if (nextEvent.isAcquisitionSequenceEndEvent() || nextEvent.isAcquisitionFinishedEvent()) {
-            return false;
-         }
-
-         AcquisitionEvent previousEvent = previousEvents.get(previousEvents.size() - 1);
-
-         //check all properties in group
-         if (previousEvent.getConfigPreset() != null && nextEvent.getConfigPreset() != null
-                 && !previousEvent.getConfigPreset().equals(nextEvent.getConfigPreset())) {
-            //check all properties in the channel
-            Configuration config1 = core_.getConfigData(previousEvent.getConfigGroup(), previousEvent.getConfigPreset());
-            Configuration config2 = core_.getConfigData(nextEvent.getConfigGroup(), nextEvent.getConfigPreset());
-            for (int i = 0; i < config1.size(); i++) {
-               PropertySetting ps1 = config1.getSetting(i);
-               String deviceName = ps1.getDeviceLabel();
-               String propName = ps1.getPropertyName();
-               String propValue1 = ps1.getPropertyValue();
-               PropertySetting ps2 = config2.getSetting(i);
-               String propValue2 = ps2.getPropertyValue();
-               if (!propValue1.equals(propValue2)) {
-                  if (!core_.isPropertySequenceable(deviceName, propName)) {
-                     return false;
-                  }
-                  if (core_.getPropertySequenceMaxLength(deviceName, propName) < newSeqLength) {
-                     return false;
-                  }
-               }
-            }
-         }
-         //TODO check for arbitrary additional properties in the acq event for being sequencable
-
-         //z stage
-         if (previousEvent.getZPosition() != null && nextEvent.getZPosition() != null &&
-                 (double)previousEvent.getZPosition() != (double)nextEvent.getZPosition()) {
-            if (!core_.isStageSequenceable(core_.getFocusDevice())) {
-               return false;
-            }
-            if (newSeqLength > core_.getStageSequenceMaxLength(core_.getFocusDevice())) {
-               return false;
-            }
-         }
-
-         // arbitrary z stages
-         // TODO implement sequences along arbitrary other stage decives
-         for (String stageDevice : previousEvent.getStageDeviceNames() ) {
-            if (!nextEvent.getStageSingleAxisStagePosition(stageDevice)
-                    .equals(previousEvent.getStageSingleAxisStagePosition(stageDevice))) {
-               return false;
-            }
-         }
-
-         //xy stage
-         if ((previousEvent.getXPosition() != null && nextEvent.getXPosition() != null && (double) previousEvent.getXPosition() != (double) nextEvent.getXPosition()) ||
-                 (previousEvent.getYPosition() != null && nextEvent.getYPosition() != null && (double) previousEvent.getYPosition() != (double) nextEvent.getYPosition())) {
-            if (!core_.isXYStageSequenceable(core_.getXYStageDevice())) {
-               return false;
-            }
-            if (newSeqLength > core_.getXYStageSequenceMaxLength(core_.getXYStageDevice())) {
-               return false;
-            }
-         }
-
-         if (previousEvent.getCameraDeviceName() == null) {
-            // Using the Core-Camera, the default
-
-            //camera exposure
-            if (previousEvent.getExposure() != null && nextEvent.getExposure() != null &&
-                  Double.compare(previousEvent.getExposure(), nextEvent.getExposure()) != 0 &&
-                  !core_.isExposureSequenceable(core_.getCameraDevice())) {
-               return false;
-            }
-            if (core_.isExposureSequenceable(core_.getCameraDevice()) &&
-                  newSeqLength > core_.getExposureSequenceMaxLength(core_.getCameraDevice())) {
-               return false;
-            }
-         }
-
-
-         // If there is a nonzero delay between events, then its not sequencable
-         if (previousEvent.getTIndex() != null && nextEvent.getTIndex() != null && !previousEvent.getTIndex().equals(nextEvent.getTIndex())) {
-            if (previousEvent.getMinimumStartTimeAbsolute() != null && nextEvent.getMinimumStartTimeAbsolute() != null &&
-                    !previousEvent.getMinimumStartTimeAbsolute().equals(nextEvent.getMinimumStartTimeAbsolute())) {
-               return false;
-            }
-         }
-
-         return true;
-      } catch (Exception ex) {
-         throw new RuntimeException(ex);
+         return hook.run(event);
+      } finally {
+         event.acquisition_.getMetrics().recordSince(metricName, start);
       }
    }
 
-   /**
-    * If it's a sequence length of one, just return the acquisition event. If it's a longer sequence,
-    * create a special acquisition event corresponding to a multi-image hardware-triggered setup
-    *
-    * @param eventList list of one or more AcquisitionEvents
-    * @return
-    */
-   @SuppressWarnings({"checkstyle:NonEmptyAtclauseDescription", "checkstyle:LineLength"})
-   private AcquisitionEvent mergeSequenceEvent(List<AcquisitionEvent> eventList) {
-      if (eventList.size() == 1) {
-         return eventList.get(0);
+   private static DoubleVector toDoubleVector(double[] values) {
+      if (values == null) {
+         return null;
+      }
+      DoubleVector vector = new DoubleVector();
+      for (double v : values) {
+         vector.add(v);
       }
-      return new AcquisitionEvent(eventList);
+      return vector;
    }
 
    @SuppressWarnings("checkstyle:MissingJavadocMethod")
@@ -1225,18 +1458,16 @@ public class Engine {
    public boolean anyAcquisitionsRunning() {
       return !activeAcquisitions_.isEmpty();
    }
-}
-
-
-
-@SuppressWarnings("checkstyle:OneTopLevelClass")
-class HardwareControlException extends RuntimeException {
 
-   public HardwareControlException() {
-      super();
-   }
-
-   public HardwareControlException(String s) {
-      super(s);
+   /**
+    * What the engine keeps track of for each acquisition, so that acquisitions running
+    * at the same time don't share capability answers, timing statistics or failure
+    * budgets.
+    */
+   private final class AcquisitionState {
+      //Answers to sequenceability and config preset queries
+      final HardwareCapabilities capabilities_ = new CachedHardwareCapabilities(core_);
+      final DeadlineScheduler deadlineScheduler_ = new DeadlineScheduler();
+      final DeviceFaultTracker faultTracker_ = new DeviceFaultTracker();
    }
 }
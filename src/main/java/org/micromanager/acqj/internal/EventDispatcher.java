@@ -0,0 +1,365 @@
+package org.micromanager.acqj.internal;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import mmcorej.CMMCore;
+import org.micromanager.acqj.api.AcquisitionAPI;
+import org.micromanager.acqj.api.AcquisitionHook;
+import org.micromanager.acqj.main.AcquisitionEvent;
+import org.micromanager.acqj.util.MetricsRegistry;
+
+/**
+ * Feeds the events of several event iterators to the acquisition engine thread at once.
+ *
+ * <p>Each submitted iterator becomes a producer. Rather than running one iterator to
+ * completion before starting the next, producers take turns: the dispatcher repeatedly
+ * picks the highest priority producer that is ready and lets it submit its next event.
+ * Producers of equal priority take turns in round-robin order, so that e.g. explore
+ * requests aren't starved behind a long tiling job. Each producer merges its events into
+ * hardware sequences with its own {@link SequenceBuilder}, so events of different
+ * iterators are never merged with each other.
+ *
+ * <p>Work that has to wait for the events of an acquisition, like finishing it, is
+ * submitted as a barrier. A barrier runs on the event generation thread as soon as the
+ * iterators of its acquisition that were submitted before it are done, whatever other
+ * acquisitions or later iterators are still producing events.
+ */
+class EventDispatcher {
+
+   /**
+    * Where producers send their events.
+    */
+   interface EventTarget {
+
+      /**
+       * Called with the acquisition of each event before it is processed.
+       */
+      void acquisitionActive(AcquisitionAPI acquisition);
+
+      /**
+       * Process the event on the acquisition engine thread, merging it into the
+       * hardware sequence being built by the given builder.
+       */
+      Future<?> process(AcquisitionEvent event, SequenceBuilder builder);
+   }
+
+   private static final long PAUSED_POLL_MS = 5;
+
+   private final CMMCore core_;
+   private final ExecutorService generatorExecutor_;
+   private final EventTarget target_;
+   // Producers in the order they next get a turn. Guarded by this
+   private final LinkedList<Producer> producers_ = new LinkedList<>();
+   // Barriers in the order they were submitted. Guarded by this
+   private final LinkedList<Barrier<?>> barriers_ = new LinkedList<>();
+   private boolean dispatching_ = false;
+
+   EventDispatcher(CMMCore core, ExecutorService generatorExecutor, EventTarget target) {
+      core_ = core;
+      generatorExecutor_ = generatorExecutor;
+      target_ = target;
+   }
+
+   /**
+    * Start dispatching the events of the iterator, alongside those of any other
+    * iterators already being dispatched.
+    *
+    * @param priority producers with higher priority submit their events first
+    * @return a Future that completes once all events of the iterator are executed
+    */
+   Future<?> submit(Iterator<AcquisitionEvent> eventIterator, int priority) {
+      Producer producer = new Producer(eventIterator, priority);
+      synchronized (this) {
+         producers_.add(producer);
+         startDispatching();
+      }
+      return producer.result_;
+   }
+
+   /**
+    * Run the task on the event generation thread once all iterators submitted so far
+    * whose events belong to the given acquisition are done.
+    *
+    * @return a Future that gives the result of the task
+    */
+   <T> Future<T> submitBarrier(AcquisitionAPI acquisition, Callable<T> task) {
+      Barrier<T> barrier;
+      synchronized (this) {
+         barrier = new Barrier<>(acquisition, new ArrayList<>(producers_), task);
+         barriers_.add(barrier);
+         startDispatching();
+      }
+      return barrier.result_;
+   }
+
+   private synchronized void startDispatching() {
+      if (!dispatching_) {
+         dispatching_ = true;
+         generatorExecutor_.submit(this::dispatch);
+      }
+   }
+
+   private void dispatch() {
+      while (true) {
+         runReadyBarriers();
+         Producer producer;
+         synchronized (this) {
+            if (producers_.isEmpty()) {
+               if (barriers_.isEmpty()) {
+                  dispatching_ = false;
+                  return;
+               }
+               // Barriers submitted since they were last run have nothing to wait for
+               continue;
+            }
+            producer = nextReadyProducer();
+            if (producer != null) {
+               // Goes to the back of the line once it has had its turn
+               producers_.remove(producer);
+               producers_.addLast(producer);
+            }
+         }
+         if (producer == null) {
+            // Every producer is waiting on a paused acquisition
+            try {
+               Thread.sleep(PAUSED_POLL_MS);
+            } catch (InterruptedException ex) {
+               cancelAll();
+               return;
+            }
+            continue;
+         }
+         boolean more;
+         try {
+            more = producer.step();
+         } catch (Exception e) {
+            e.printStackTrace();
+            producer.result_.completeExceptionally(new RuntimeException(e));
+            more = false;
+         }
+         if (!more) {
+            synchronized (this) {
+               producers_.remove(producer);
+            }
+         }
+      }
+   }
+
+   /**
+    * Run the barriers that are no longer waiting on any producer, oldest first.
+    */
+   private void runReadyBarriers() {
+      while (true) {
+         Barrier<?> ready = null;
+         synchronized (this) {
+            for (Barrier<?> barrier : barriers_) {
+               if (barrier.isReady()) {
+                  ready = barrier;
+                  break;
+               }
+            }
+            if (ready == null) {
+               return;
+            }
+            barriers_.remove(ready);
+         }
+         ready.run();
+      }
+   }
+
+   /**
+    * First of the ready producers with the highest priority, or null if none is ready.
+    */
+   private Producer nextReadyProducer() {
+      Producer next = null;
+      for (Producer producer : producers_) {
+         if (producer.isReady() && (next == null || producer.priority_ > next.priority_)) {
+            next = producer;
+         }
+      }
+      return next;
+   }
+
+   private void cancelAll() {
+      synchronized (this) {
+         for (Producer producer : producers_) {
+            producer.result_.complete(null);
+         }
+         producers_.clear();
+         for (Barrier<?> barrier : barriers_) {
+            barrier.result_.cancel(false);
+         }
+         barriers_.clear();
+         dispatching_ = false;
+      }
+   }
+
+   private final class Producer {
+      private final Iterator<AcquisitionEvent> iterator_;
+      private final int priority_;
+      private final SequenceBuilder sequenceBuilder_ = new SequenceBuilder(core_);
+      private final CompletableFuture<Void> result_ = new CompletableFuture<>();
+      // Futures of events that have been handed to the acquisition thread but not yet
+      // checked for completion, oldest first. The acquisition thread is single threaded,
+      // so these always complete in the order they were submitted
+      private final LinkedList<Future<?>> inFlightEvents_ = new LinkedList<>();
+      private AcquisitionAPI acq_ = null;
+      // Event taken from the iterator, held back while its acquisition is paused
+      private AcquisitionEvent pending_ = null;
+
+      Producer(Iterator<AcquisitionEvent> iterator, int priority) {
+         iterator_ = iterator;
+         priority_ = priority;
+      }
+
+      boolean isReady() {
+         return pending_ == null || !pending_.acquisition_.isPaused()
+               || pending_.acquisition_.isAbortRequested();
+      }
+
+      /**
+       * Submit the next event of the iterator, or finish up if there are none left.
+       *
+       * @return false once the producer is done
+       */
+      boolean step() throws Exception {
+         if (pending_ == null) {
+            if (!iterator_.hasNext()) {
+               finish();
+               return false;
+            }
+            AcquisitionEvent event = iterator_.next();
+            // Some iterators can return null, they still may have more events, but want to
+            // skip this one.
+            if (event == null) {
+               return true;
+            }
+            acq_ = event.acquisition_;
+            target_.acquisitionActive(acq_);
+            if (acq_.isDebugMode()) {
+               core_.logMessage("got event: " + event.toString());
+            }
+            MetricsRegistry metrics = event.acquisition_.getMetrics();
+            for (AcquisitionHook h : event.acquisition_.getEventGenerationHooks()) {
+               long hookStart = System.nanoTime();
+               event = h.run(event);
+               metrics.recordSince("hook.eventGeneration", hookStart);
+               if (event == null) {
+                  //The hook cancelled this event. Events already merged into a sequence
+                  //still get executed
+                  finish();
+                  return false;
+               }
+            }
+            pending_ = event;
+            if (event.acquisition_.isPaused()) {
+               //Wait for its next turn if acquisition is paused
+               return true;
+            }
+         }
+         AcquisitionEvent event = pending_;
+         pending_ = null;
+         if (acq_.isAbortRequested()) {
+            if (acq_.isDebugMode()) {
+               core_.logMessage("acquisition aborted");
+            }
+            result_.complete(null);
+            return false;
+         }
+         inFlightEvents_.add(target_.process(event, sequenceBuilder_));
+         // Only block once the window of events allowed in flight is full
+         return awaitInFlight(event.acquisition_.getEventPipelineDepth() - 1);
+      }
+
+      /**
+       * Wait until no more than the given number of events are in flight.
+       *
+       * @return false if waiting was interrupted
+       */
+      private boolean awaitInFlight(int maxInFlight) {
+         try {
+            while (inFlightEvents_.size() > maxInFlight) {
+               inFlightEvents_.removeFirst().get();
+            }
+            return true;
+         } catch (InterruptedException ex) {
+            //cancelled
+            result_.complete(null);
+            return false;
+         } catch (ExecutionException ex) {
+            //some problem with acquisition, abort and propagate exception
+            core_.logMessage(ex.getMessage());
+            core_.logMessage(ex.getStackTrace().toString());
+            acq_.abort(ex);
+            throw new RuntimeException(ex);
+         }
+      }
+
+      private void finish() {
+         if (acq_ == null) {
+            // Iterator didn't produce any events
+            result_.complete(null);
+            return;
+         }
+         // Make sure everything still in flight succeeded before flushing
+         if (!awaitInFlight(0)) {
+            return;
+         }
+         try {
+            //Make all events get executed from this iterator
+            target_.process(AcquisitionEvent.createAcquisitionSequenceEndEvent(acq_),
+                  sequenceBuilder_).get();
+         } catch (InterruptedException ex) {
+            //cancelled
+         } catch (ExecutionException ex) {
+            //some problem with acuisition, propagate exception
+            throw new RuntimeException(ex);
+         }
+         result_.complete(null);
+      }
+   }
+
+   private final class Barrier<T> {
+      private final AcquisitionAPI acquisition_;
+      // Producers that were there when the barrier was submitted
+      private final List<Producer> earlier_;
+      private final Callable<T> task_;
+      private final CompletableFuture<T> result_ = new CompletableFuture<>();
+
+      Barrier(AcquisitionAPI acquisition, List<Producer> earlier, Callable<T> task) {
+         acquisition_ = acquisition;
+         earlier_ = earlier;
+         task_ = task;
+      }
+
+      /**
+       * Whether all earlier producers are done or belong to other acquisitions. A
+       * producer's acquisition is only known once it has produced an event. Called
+       * with the dispatcher locked.
+       */
+      boolean isReady() {
+         for (Producer producer : earlier_) {
+            if (producers_.contains(producer)
+                  && (producer.acq_ == null || producer.acq_ == acquisition_)) {
+               return false;
+            }
+         }
+         return true;
+      }
+
+      void run() {
+         try {
+            result_.complete(task_.call());
+         } catch (Exception e) {
+            result_.completeExceptionally(e);
+         }
+      }
+   }
+}
@@ -0,0 +1,33 @@
+package org.micromanager.acqj.internal;
+
+/**
+ * The questions about hardware that the engine asks when deciding whether events can be
+ * merged into hardware sequences, and when loading those sequences. The answers don't
+ * change over the course of an acquisition (short of the configuration being edited),
+ * so implementations are free to remember them.
+ */
+public interface HardwareCapabilities {
+
+   ConfigPresetSettings getConfigPreset(String group, String preset) throws Exception;
+
+   boolean isPropertySequenceable(String device, String property) throws Exception;
+
+   int getPropertySequenceMaxLength(String device, String property) throws Exception;
+
+   boolean isStageSequenceable(String device) throws Exception;
+
+   int getStageSequenceMaxLength(String device) throws Exception;
+
+   boolean isXYStageSequenceable(String device) throws Exception;
+
+   int getXYStageSequenceMaxLength(String device) throws Exception;
+
+   boolean isExposureSequenceable(String camera) throws Exception;
+
+   int getExposureSequenceMaxLength(String camera) throws Exception;
+
+   /**
+    * Forget anything remembered, so that the next query goes to the hardware.
+    */
+   void invalidate();
+}
@@ -0,0 +1,21 @@
+package org.micromanager.acqj.internal;
+
+/**
+ * Thrown when a command to the hardware fails.
+ */
+class HardwareControlException extends RuntimeException {
+
+   private static final long serialVersionUID = 1L;
+
+   public HardwareControlException() {
+      super();
+   }
+
+   public HardwareControlException(String s) {
+      super(s);
+   }
+
+   public HardwareControlException(String s, Throwable cause) {
+      super(s, cause);
+   }
+}
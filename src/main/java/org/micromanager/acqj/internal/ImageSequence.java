@@ -0,0 +1,38 @@
+package org.micromanager.acqj.internal;
+
+import java.util.IdentityHashMap;
+import java.util.List;
+import mmcorej.org.json.JSONObject;
+import org.micromanager.acqj.main.AcqEngMetadata;
+import org.micromanager.acqj.main.AcquisitionEvent;
+
+/**
+ * A hardware sequence whose images are being acquired, used to tag each image with the
+ * sequence's id and the index of its event in it rather than the whole sequence. The
+ * sequence itself is recorded once, by the acquisition.
+ */
+class ImageSequence {
+
+   private final int id_;
+   private final IdentityHashMap<AcquisitionEvent, Integer> indices_ = new IdentityHashMap<>();
+
+   ImageSequence(AcquisitionEvent sequence) {
+      id_ = sequence.acquisition_.addEventSequence(sequence);
+      List<AcquisitionEvent> events = sequence.getSequence();
+      for (int i = 0; i < events.size(); i++) {
+         indices_.putIfAbsent(events.get(i), i);
+      }
+   }
+
+   /**
+    * Add the sequence id and index of the event the image was taken for to its
+    * metadata.
+    */
+   void addTo(JSONObject tags, AcquisitionEvent event) {
+      Integer index = indices_.get(event);
+      if (index == null) {
+         return;
+      }
+      AcqEngMetadata.setSequencePosition(tags, id_, index);
+   }
+}
@@ -0,0 +1,340 @@
+package org.micromanager.acqj.internal;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import mmcorej.TaggedImage;
+
+/**
+ * Queue of images passed between the acquisition engine, image processors and the data
+ * sink, bounded both by number of frames and by total bytes of pixels.
+ *
+ * <p>A frame count alone bounds memory very differently depending on frame size, so a
+ * byte budget can be set as well. Inserting blocks (or fails, for the offer methods)
+ * while either limit would be exceeded. A single image larger than the byte budget is
+ * still accepted once the queue is empty, so it can't block forever. Both limits can be
+ * changed at any time. The queue also keeps track of the most frames and bytes it has
+ * held at once.
+ *
+ * <p>Removing elements through an iterator would bypass the accounting, so iterators
+ * don't support it, and neither do the bulk removal methods that rely on it.
+ */
+public class ImageTransferQueue extends LinkedBlockingDeque<TaggedImage> {
+
+   private static final long serialVersionUID = 1L;
+
+   private final Object lock_ = new Object();
+   // Below are all guarded by lock_
+   private int maxFrames_;
+   private long maxBytes_;
+   private int frames_ = 0;
+   private long bytes_ = 0;
+   private int highWaterFrames_ = 0;
+   private long highWaterBytes_ = 0;
+
+   /**
+    * @param maxFrames most images the queue holds at once
+    * @param maxBytes most bytes of pixels the queue holds at once
+    */
+   public ImageTransferQueue(int maxFrames, long maxBytes) {
+      super();
+      maxFrames_ = maxFrames;
+      maxBytes_ = maxBytes;
+   }
+
+   /**
+    * Change the limits. Inserts waiting for space are woken up to check the new ones.
+    */
+   public void setLimits(int maxFrames, long maxBytes) {
+      synchronized (lock_) {
+         maxFrames_ = maxFrames;
+         maxBytes_ = maxBytes;
+         lock_.notifyAll();
+      }
+   }
+
+   public int getMaxFrames() {
+      synchronized (lock_) {
+         return maxFrames_;
+      }
+   }
+
+   public long getMaxBytes() {
+      synchronized (lock_) {
+         return maxBytes_;
+      }
+   }
+
+   /**
+    * Total bytes of pixels currently in the queue.
+    */
+   public long getBytes() {
+      synchronized (lock_) {
+         return bytes_;
+      }
+   }
+
+   public int getHighWaterFrames() {
+      synchronized (lock_) {
+         return highWaterFrames_;
+      }
+   }
+
+   public long getHighWaterBytes() {
+      synchronized (lock_) {
+         return highWaterBytes_;
+      }
+   }
+
+   /**
+    * Number of bytes of pixels in the image. 0 for the finishing signal and for pixel
+    * types that aren't primitive arrays.
+    */
+   public static long bytesOf(TaggedImage image) {
+      if (image == null || image.pix == null) {
+         return 0;
+      } else if (image.pix instanceof byte[]) {
+         return ((byte[]) image.pix).length;
+      } else if (image.pix instanceof short[]) {
+         return 2L * ((short[]) image.pix).length;
+      } else if (image.pix instanceof int[]) {
+         return 4L * ((int[]) image.pix).length;
+      } else if (image.pix instanceof float[]) {
+         return 4L * ((float[]) image.pix).length;
+      }
+      return 0;
+   }
+
+   @Override
+   public void putFirst(TaggedImage image) throws InterruptedException {
+      reserve(image, -1);
+      super.putFirst(image);
+   }
+
+   @Override
+   public void putLast(TaggedImage image) throws InterruptedException {
+      reserve(image, -1);
+      super.putLast(image);
+   }
+
+   @Override
+   public boolean offerFirst(TaggedImage image) {
+      if (!tryReserve(image)) {
+         return false;
+      }
+      return insertedOrUnreserve(image, super.offerFirst(image));
+   }
+
+   @Override
+   public boolean offerLast(TaggedImage image) {
+      if (!tryReserve(image)) {
+         return false;
+      }
+      return insertedOrUnreserve(image, super.offerLast(image));
+   }
+
+   @Override
+   public boolean offerFirst(TaggedImage image, long timeout, TimeUnit unit)
+         throws InterruptedException {
+      if (!reserve(image, unit.toNanos(timeout))) {
+         return false;
+      }
+      return insertedOrUnreserve(image, super.offerFirst(image));
+   }
+
+   @Override
+   public boolean offerLast(TaggedImage image, long timeout, TimeUnit unit)
+         throws InterruptedException {
+      if (!reserve(image, unit.toNanos(timeout))) {
+         return false;
+      }
+      return insertedOrUnreserve(image, super.offerLast(image));
+   }
+
+   @Override
+   public TaggedImage pollFirst() {
+      return removed(super.pollFirst());
+   }
+
+   @Override
+   public TaggedImage pollLast() {
+      return removed(super.pollLast());
+   }
+
+   @Override
+   public TaggedImage pollFirst(long timeout, TimeUnit unit) throws InterruptedException {
+      return removed(super.pollFirst(timeout, unit));
+   }
+
+   @Override
+   public TaggedImage pollLast(long timeout, TimeUnit unit) throws InterruptedException {
+      return removed(super.pollLast(timeout, unit));
+   }
+
+   @Override
+   public TaggedImage takeFirst() throws InterruptedException {
+      return removed(super.takeFirst());
+   }
+
+   @Override
+   public TaggedImage takeLast() throws InterruptedException {
+      return removed(super.takeLast());
+   }
+
+   @Override
+   public boolean removeFirstOccurrence(Object o) {
+      if (super.removeFirstOccurrence(o)) {
+         removed((TaggedImage) o);
+         return true;
+      }
+      return false;
+   }
+
+   @Override
+   public boolean removeLastOccurrence(Object o) {
+      if (super.removeLastOccurrence(o)) {
+         removed((TaggedImage) o);
+         return true;
+      }
+      return false;
+   }
+
+   @Override
+   public int drainTo(Collection<? super TaggedImage> c, int maxElements) {
+      int drained = 0;
+      TaggedImage image;
+      while (drained < maxElements && (image = pollFirst()) != null) {
+         c.add(image);
+         drained++;
+      }
+      return drained;
+   }
+
+   @Override
+   public Iterator<TaggedImage> iterator() {
+      return unmodifiable(super.iterator());
+   }
+
+   @Override
+   public Iterator<TaggedImage> descendingIterator() {
+      return unmodifiable(super.descendingIterator());
+   }
+
+   @Override
+   public boolean removeIf(Predicate<? super TaggedImage> filter) {
+      throw new UnsupportedOperationException("Images can only be removed one at a time");
+   }
+
+   @Override
+   public boolean removeAll(Collection<?> c) {
+      throw new UnsupportedOperationException("Images can only be removed one at a time");
+   }
+
+   @Override
+   public boolean retainAll(Collection<?> c) {
+      throw new UnsupportedOperationException("Images can only be removed one at a time");
+   }
+
+   @Override
+   public void clear() {
+      synchronized (lock_) {
+         super.clear();
+         frames_ = 0;
+         bytes_ = 0;
+         lock_.notifyAll();
+      }
+   }
+
+   @Override
+   public int remainingCapacity() {
+      synchronized (lock_) {
+         return Math.max(0, maxFrames_ - frames_);
+      }
+   }
+
+   private static Iterator<TaggedImage> unmodifiable(Iterator<TaggedImage> iterator) {
+      return new Iterator<TaggedImage>() {
+         @Override
+         public boolean hasNext() {
+            return iterator.hasNext();
+         }
+
+         @Override
+         public TaggedImage next() {
+            return iterator.next();
+         }
+      };
+   }
+
+   private boolean fits(long bytes) {
+      return frames_ < maxFrames_ && (bytes_ == 0 || bytes_ + bytes <= maxBytes_);
+   }
+
+   private void add(long bytes) {
+      frames_++;
+      bytes_ += bytes;
+      highWaterFrames_ = Math.max(highWaterFrames_, frames_);
+      highWaterBytes_ = Math.max(highWaterBytes_, bytes_);
+   }
+
+   private boolean tryReserve(TaggedImage image) {
+      long bytes = bytesOf(image);
+      synchronized (lock_) {
+         if (!fits(bytes)) {
+            return false;
+         }
+         add(bytes);
+         return true;
+      }
+   }
+
+   /**
+    * Wait for space for the image and claim it.
+    *
+    * @param timeoutNs how long to wait, or -1 to wait indefinitely
+    * @return false if the timeout passed first
+    */
+   private boolean reserve(TaggedImage image, long timeoutNs) throws InterruptedException {
+      if (image == null) {
+         throw new NullPointerException();
+      }
+      long bytes = bytesOf(image);
+      long deadline = System.nanoTime() + timeoutNs;
+      synchronized (lock_) {
+         while (!fits(bytes)) {
+            if (timeoutNs < 0) {
+               lock_.wait();
+            } else {
+               long remaining = deadline - System.nanoTime();
+               if (remaining <= 0) {
+                  return false;
+               }
+               TimeUnit.NANOSECONDS.timedWait(lock_, remaining);
+            }
+         }
+         add(bytes);
+         return true;
+      }
+   }
+
+   private boolean insertedOrUnreserve(TaggedImage image, boolean inserted) {
+      if (!inserted) {
+         removed(image);
+      }
+      return inserted;
+   }
+
+   private TaggedImage removed(TaggedImage image) {
+      if (image != null) {
+         long bytes = bytesOf(image);
+         synchronized (lock_) {
+            frames_ = Math.max(0, frames_ - 1);
+            bytes_ = Math.max(0, bytes_ - bytes);
+            lock_.notifyAll();
+         }
+      }
+      return image;
+   }
+}
@@ -0,0 +1,251 @@
+package org.micromanager.acqj.internal;
+
+import java.util.ArrayList;
+import mmcorej.CMMCore;
+import org.micromanager.acqj.main.AcquisitionEvent;
+
+/**
+ * Builds up hardware sequences from a stream of events in a single pass.
+ *
+ * <p>Each event is compared only with the last one in the sequence, and running state
+ * is kept for everything else: which device types have changed so far (so the merged
+ * event doesn't need to work this out again) and the longest the sequence may get
+ * given the maximum sequence lengths of all devices that change in it. Adding an event
+ * therefore costs the same no matter how long the sequence already is. When the
+ * sequence is built, the values for each sequenced device are extracted once as a
+ * {@link SequenceValues}.
+ *
+ * <p>Only used from the acquisition engine thread.
+ */
+class SequenceBuilder {
+
+   private final CMMCore core_;
+   private final ArrayList<AcquisitionEvent> events_ = new ArrayList<>();
+   // Longest the sequence may get, given the devices that change in it so far
+   private int maxLength_ = Integer.MAX_VALUE;
+   // First non-null value of each device type, and whether any later one differed
+   private Double firstX_;
+   private Double firstY_;
+   private Double firstZ_;
+   private Double firstExposure_;
+   private String firstConfigPreset_;
+   private boolean xChanges_;
+   private boolean yChanges_;
+   private boolean zChanges_;
+   private boolean exposureChanges_;
+   private boolean configPresetChanges_;
+
+   private AcquisitionEvent lastBuilt_ = null;
+   private SequenceValues lastBuiltValues_ = null;
+
+   SequenceBuilder(CMMCore core) {
+      core_ = core;
+   }
+
+   boolean isEmpty() {
+      return events_.isEmpty();
+   }
+
+   /**
+    * Add the event to the end of the sequence being built, if the hardware can run it
+    * as part of that sequence.
+    *
+    * @return true if the event was added, false if the sequence needs to be built and
+    *         the event start a new one. Always false for special (finished/sequence end)
+    *         events.
+    */
+   boolean tryAppend(AcquisitionEvent event, HardwareCapabilities capabilities) {
+      if (event.isAcquisitionSequenceEndEvent() || event.isAcquisitionFinishedEvent()) {
+         return false;
+      }
+      if (!events_.isEmpty()) {
+         int limit;
+         try {
+            limit = getLengthLimit(events_.get(events_.size() - 1), event, capabilities);
+         } catch (Exception ex) {
+            throw new RuntimeException(ex);
+         }
+         if (events_.size() + 1 > limit) {
+            return false;
+         }
+         maxLength_ = limit;
+      }
+      events_.add(event);
+      track(event);
+      return true;
+   }
+
+   /**
+    * Get the sequence built so far as a single event, and start a new one.
+    *
+    * @return the only event if there is just one, a sequence event if there are
+    *         several, or null if there are none
+    */
+   AcquisitionEvent build() {
+      if (events_.isEmpty()) {
+         return null;
+      }
+      AcquisitionEvent built;
+      if (events_.size() == 1) {
+         built = events_.get(0);
+      } else {
+         built = new AcquisitionEvent(events_, xChanges_ && yChanges_, zChanges_,
+               exposureChanges_, configPresetChanges_);
+         lastBuilt_ = built;
+         lastBuiltValues_ = SequenceValues.of(built);
+      }
+      clear();
+      return built;
+   }
+
+   /**
+    * Values of each sequenced device for a sequence event. Reuses those extracted by
+    * {@link #build()} if it is the event that was built (hooks may have replaced it).
+    */
+   SequenceValues getValues(AcquisitionEvent sequenceEvent) {
+      if (sequenceEvent == lastBuilt_) {
+         return lastBuiltValues_;
+      }
+      return SequenceValues.of(sequenceEvent);
+   }
+
+   /**
+    * Drop any events added since the last build.
+    */
+   void clear() {
+      events_.clear();
+      maxLength_ = Integer.MAX_VALUE;
+      firstX_ = null;
+      firstY_ = null;
+      firstZ_ = null;
+      firstExposure_ = null;
+      firstConfigPreset_ = null;
+      xChanges_ = false;
+      yChanges_ = false;
+      zChanges_ = false;
+      exposureChanges_ = false;
+      configPresetChanges_ = false;
+   }
+
+   private void track(AcquisitionEvent e) {
+      if (e.getXPosition() != null) {
+         if (firstX_ == null) {
+            firstX_ = e.getXPosition();
+         } else {
+            xChanges_ |= !firstX_.equals(e.getXPosition());
+         }
+      }
+      if (e.getYPosition() != null) {
+         if (firstY_ == null) {
+            firstY_ = e.getYPosition();
+         } else {
+            yChanges_ |= !firstY_.equals(e.getYPosition());
+         }
+      }
+      if (e.getZPosition() != null) {
+         if (firstZ_ == null) {
+            firstZ_ = e.getZPosition();
+         } else {
+            zChanges_ |= !firstZ_.equals(e.getZPosition());
+         }
+      }
+      if (e.getExposure() != null) {
+         if (firstExposure_ == null) {
+            firstExposure_ = e.getExposure();
+         } else {
+            exposureChanges_ |= !firstExposure_.equals(e.getExposure());
+         }
+      }
+      if (e.getConfigPreset() != null) {
+         if (firstConfigPreset_ == null) {
+            firstConfigPreset_ = e.getConfigPreset();
+         } else {
+            configPresetChanges_ |= !firstConfigPreset_.equals(e.getConfigPreset());
+         }
+      }
+   }
+
+   /**
+    * Check whether all the hardware changes between the last event of the sequence and
+    * the next one are compatible with hardware sequencing.
+    *
+    * @return the longest the sequence may get if the next event is added to it, or 0 if
+    *         it can't be added at all
+    */
+   @SuppressWarnings({"checkstyle:LineLength", "checkstyle:OperatorWrap"})
+   private int getLengthLimit(AcquisitionEvent previousEvent, AcquisitionEvent nextEvent,
+                              HardwareCapabilities capabilities) throws Exception {
+      int limit = maxLength_;
+
+      //check all properties in group
+      if (previousEvent.getConfigPreset() != null && nextEvent.getConfigPreset() != null
+              && !previousEvent.getConfigPreset().equals(nextEvent.getConfigPreset())) {
+         //check all properties in the channel
+         ConfigPresetSettings config1 = capabilities.getConfigPreset(previousEvent.getConfigGroup(), previousEvent.getConfigPreset());
+         ConfigPresetSettings config2 = capabilities.getConfigPreset(nextEvent.getConfigGroup(), nextEvent.getConfigPreset());
+         for (int i = 0; i < config1.size(); i++) {
+            String deviceName = config1.getDeviceLabel(i);
+            String propName = config1.getPropertyName(i);
+            if (!config1.getPropertyValue(i).equals(config2.getPropertyValue(i))) {
+               if (!capabilities.isPropertySequenceable(deviceName, propName)) {
+                  return 0;
+               }
+               limit = Math.min(limit, capabilities.getPropertySequenceMaxLength(deviceName, propName));
+            }
+         }
+      }
+      //TODO check for arbitrary additional properties in the acq event for being sequencable
+
+      //z stage
+      if (previousEvent.getZPosition() != null && nextEvent.getZPosition() != null &&
+              (double) previousEvent.getZPosition() != (double) nextEvent.getZPosition()) {
+         if (!capabilities.isStageSequenceable(core_.getFocusDevice())) {
+            return 0;
+         }
+         limit = Math.min(limit, capabilities.getStageSequenceMaxLength(core_.getFocusDevice()));
+      }
+
+      // arbitrary z stages
+      // TODO implement sequences along arbitrary other stage decives
+      for (String stageDevice : previousEvent.getStageDeviceNames()) {
+         if (!nextEvent.getStageSingleAxisStagePosition(stageDevice)
+                 .equals(previousEvent.getStageSingleAxisStagePosition(stageDevice))) {
+            return 0;
+         }
+      }
+
+      //xy stage
+      if ((previousEvent.getXPosition() != null && nextEvent.getXPosition() != null && (double) previousEvent.getXPosition() != (double) nextEvent.getXPosition()) ||
+              (previousEvent.getYPosition() != null && nextEvent.getYPosition() != null && (double) previousEvent.getYPosition() != (double) nextEvent.getYPosition())) {
+         if (!capabilities.isXYStageSequenceable(core_.getXYStageDevice())) {
+            return 0;
+         }
+         limit = Math.min(limit, capabilities.getXYStageSequenceMaxLength(core_.getXYStageDevice()));
+      }
+
+      if (previousEvent.getCameraDeviceName() == null) {
+         // Using the Core-Camera, the default
+
+         //camera exposure
+         boolean exposureSequenceable = capabilities.isExposureSequenceable(core_.getCameraDevice());
+         if (previousEvent.getExposure() != null && nextEvent.getExposure() != null &&
+               Double.compare(previousEvent.getExposure(), nextEvent.getExposure()) != 0 &&
+               !exposureSequenceable) {
+            return 0;
+         }
+         if (exposureSequenceable) {
+            limit = Math.min(limit, capabilities.getExposureSequenceMaxLength(core_.getCameraDevice()));
+         }
+      }
+
+      // If there is a nonzero delay between events, then its not sequencable
+      if (previousEvent.getTIndex() != null && nextEvent.getTIndex() != null && !previousEvent.getTIndex().equals(nextEvent.getTIndex())) {
+         if (previousEvent.getMinimumStartTime() != null && nextEvent.getMinimumStartTime() != null &&
+                 !previousEvent.getMinimumStartTime().equals(nextEvent.getMinimumStartTime())) {
+            return 0;
+         }
+      }
+
+      return limit;
+   }
+}
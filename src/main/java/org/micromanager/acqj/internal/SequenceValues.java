@@ -0,0 +1,72 @@
+package org.micromanager.acqj.internal;
+
+import java.util.List;
+import org.micromanager.acqj.main.AcquisitionEvent;
+
+/**
+ * The values each sequenced device steps through during a hardware sequence, pulled
+ * out of the individual events once so that loading the sequences doesn't need to
+ * walk the events again for every device. Arrays are null for device types that aren't
+ * sequenced.
+ */
+class SequenceValues {
+
+   private final double[] xPositions_;
+   private final double[] yPositions_;
+   private final double[] zPositions_;
+   private final double[] exposures_;
+   private final String[] configPresets_;
+
+   private SequenceValues(AcquisitionEvent sequenceEvent) {
+      List<AcquisitionEvent> sequence = sequenceEvent.getSequence();
+      int n = sequence.size();
+      xPositions_ = sequenceEvent.isXYSequenced() ? new double[n] : null;
+      yPositions_ = sequenceEvent.isXYSequenced() ? new double[n] : null;
+      zPositions_ = sequenceEvent.isZSequenced() ? new double[n] : null;
+      exposures_ = sequenceEvent.isExposureSequenced() ? new double[n] : null;
+      configPresets_ = sequenceEvent.isConfigGroupSequenced() ? new String[n] : null;
+      for (int i = 0; i < n; i++) {
+         AcquisitionEvent e = sequence.get(i);
+         if (xPositions_ != null) {
+            xPositions_[i] = e.getXPosition();
+            yPositions_[i] = e.getYPosition();
+         }
+         if (zPositions_ != null) {
+            zPositions_[i] = e.getZPosition();
+         }
+         if (exposures_ != null) {
+            exposures_[i] = e.getExposure();
+         }
+         if (configPresets_ != null) {
+            configPresets_[i] = e.getConfigPreset();
+         }
+      }
+   }
+
+   /**
+    * @param sequenceEvent an event with a sequence
+    */
+   static SequenceValues of(AcquisitionEvent sequenceEvent) {
+      return new SequenceValues(sequenceEvent);
+   }
+
+   double[] getXPositions() {
+      return xPositions_;
+   }
+
+   double[] getYPositions() {
+      return yPositions_;
+   }
+
+   double[] getZPositions() {
+      return zPositions_;
+   }
+
+   double[] getExposures() {
+      return exposures_;
+   }
+
+   String[] getConfigPresets() {
+      return configPresets_;
+   }
+}
@@ -0,0 +1,361 @@
+package org.micromanager.acqj.internal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.BlockingDeque;
+import mmcorej.TaggedImage;
+import mmcorej.org.json.JSONException;
+import mmcorej.org.json.JSONObject;
+
+/**
+ * Overflow tier in front of an in-memory image queue, backed by a memory-mapped ring file.
+ *
+ * <p>Images are put straight on the queue while it has room. Once it is full, they are
+ * written to the ring file instead, so the thread adding them (the acquisition engine
+ * thread, which must keep up with the camera's circular buffer) isn't blocked by a data
+ * sink that temporarily falls behind. A drain thread moves spilled images back onto the
+ * queue as space frees up. Once anything is spilled, later images are spilled too until
+ * the file has been drained, so images always come out in the order they were put. Only
+ * when the ring file is full as well does {@link #put(TaggedImage)} block.
+ *
+ * <p>Each record holds the pixels and the metadata as JSON. The drain thread exits, and
+ * the file is closed and deleted, once the finishing signal (an image with null pixels
+ * and tags) has been passed on, whether through the file or straight to the queue, or
+ * when {@link #close()} is called.
+ */
+public class SpillBuffer {
+
+   private static final int HEADER_BYTES = 12;
+   private static final int WRAP_MARKER = -2;
+   private static final int PIX_NONE = 0;
+   private static final int PIX_BYTE = 1;
+   private static final int PIX_SHORT = 2;
+   private static final int PIX_INT = 3;
+   private static final int PIX_FLOAT = 4;
+
+   private final BlockingDeque<TaggedImage> queue_;
+   private final File file_;
+   private final RandomAccessFile raf_;
+   private final MappedByteBuffer ring_;
+   private final int capacity_;
+   private final Thread drainThread_;
+   // Below are all guarded by this
+   private int readPos_ = 0;
+   private int writePos_ = 0;
+   // Images in the file, including the one being handed to the queue by the drain thread
+   private int count_ = 0;
+   private long usedBytes_ = 0;
+   private long highWaterBytes_ = 0;
+   private long spilledTotal_ = 0;
+   // Whether put is handing an image too big for the file straight to the queue
+   private boolean passingOn_ = false;
+   // Whether the finishing signal went straight to the queue
+   private boolean finishPassedOn_ = false;
+   private boolean closed_ = false;
+
+   /**
+    * @param queue queue to put images on
+    * @param directory where to create the ring file, or null for the temp directory
+    * @param capacityBytes size of the ring file, at most Integer.MAX_VALUE
+    */
+   public SpillBuffer(BlockingDeque<TaggedImage> queue, File directory, long capacityBytes) {
+      if (capacityBytes < HEADER_BYTES || capacityBytes > Integer.MAX_VALUE) {
+         throw new RuntimeException("Spill buffer capacity must be between "
+               + HEADER_BYTES + " and " + Integer.MAX_VALUE + " bytes");
+      }
+      queue_ = queue;
+      capacity_ = (int) capacityBytes;
+      try {
+         file_ = File.createTempFile("acqj-spill", ".ring", directory);
+         file_.deleteOnExit();
+         raf_ = new RandomAccessFile(file_, "rw");
+         ring_ = raf_.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity_);
+         ring_.order(ByteOrder.nativeOrder());
+      } catch (IOException e) {
+         throw new RuntimeException("Couldn't create spill file", e);
+      }
+      drainThread_ = new Thread(this::drain, "Acquisition spill drain thread");
+      drainThread_.setDaemon(true);
+      drainThread_.start();
+   }
+
+   /**
+    * Put the image on the queue, or in the ring file if the queue is full or earlier
+    * images are still in the file. Blocks only while both are full.
+    *
+    * @return true if the image was spilled to the file. The caller is then free to reuse
+    *         its pixel array
+    */
+   public boolean put(TaggedImage image) throws InterruptedException {
+      synchronized (this) {
+         // An image too big for the file may still be on its way to the queue
+         while (passingOn_ && !closed_) {
+            wait();
+         }
+         if (closed_) {
+            throw new RuntimeException("Spill buffer is closed");
+         }
+         if (count_ == 0 && queue_.offerLast(image)) {
+            if (isFinishSignal(image)) {
+               finishPassedOn_ = true;
+               notifyAll();
+            }
+            return false;
+         }
+         byte[] tags = image.tags == null ? null
+               : image.tags.toString().getBytes(StandardCharsets.UTF_8);
+         long length = HEADER_BYTES + (tags == null ? 0 : tags.length)
+               + ImageTransferQueue.bytesOf(image);
+         if (length < capacity_) {
+            int pos;
+            while ((pos = positionFor((int) length)) < 0) {
+               awaitDrain();
+            }
+            write(pos, image, tags);
+            writePos_ = pos + (int) length;
+            usedBytes_ += length;
+            highWaterBytes_ = Math.max(highWaterBytes_, usedBytes_);
+            count_++;
+            spilledTotal_++;
+            notifyAll();
+            return true;
+         }
+         // Can never fit, so pass it on directly once everything before it has been
+         while (count_ > 0) {
+            awaitDrain();
+         }
+         passingOn_ = true;
+      }
+      // Wait for the queue without holding the lock, so a stalled sink doesn't hold up close()
+      boolean passedOn = false;
+      try {
+         queue_.putLast(image);
+         passedOn = true;
+      } finally {
+         synchronized (this) {
+            passingOn_ = false;
+            finishPassedOn_ |= passedOn && isFinishSignal(image);
+            notifyAll();
+         }
+      }
+      return false;
+   }
+
+   /**
+    * Number of images waiting in the file.
+    */
+   public synchronized int size() {
+      return count_;
+   }
+
+   /**
+    * Bytes of the file in use.
+    */
+   public synchronized long getBytes() {
+      return usedBytes_;
+   }
+
+   public synchronized long getHighWaterBytes() {
+      return highWaterBytes_;
+   }
+
+   /**
+    * Number of images that have been spilled to the file in total.
+    */
+   public synchronized long getSpilledCount() {
+      return spilledTotal_;
+   }
+
+   /**
+    * Stop the drain thread, dropping anything still in the file, and delete the file.
+    */
+   public void close() {
+      synchronized (this) {
+         closed_ = true;
+         notifyAll();
+      }
+      drainThread_.interrupt();
+   }
+
+   /**
+    * The drain thread, for tests to wait for it to exit.
+    */
+   Thread getDrainThread() {
+      return drainThread_;
+   }
+
+   private static boolean isFinishSignal(TaggedImage image) {
+      return image.pix == null && image.tags == null;
+   }
+
+   private void awaitDrain() throws InterruptedException {
+      wait();
+      if (closed_) {
+         throw new RuntimeException("Spill buffer closed while waiting for space");
+      }
+   }
+
+   /**
+    * Where to write a record of the given length, wrapping to the start of the file if
+    * it doesn't fit at the end, or -1 if there's no room for it now. The read and write
+    * positions are never equal while the file is non-empty.
+    */
+   private int positionFor(int length) {
+      if (count_ == 0) {
+         readPos_ = 0;
+         writePos_ = 0;
+         usedBytes_ = 0;
+      }
+      if (writePos_ >= readPos_) {
+         if (capacity_ - writePos_ >= length) {
+            return writePos_;
+         }
+         if (readPos_ > length) {
+            // The space left at the end is skipped, and counted as used until read past
+            if (capacity_ - writePos_ >= 4) {
+               ring_.putInt(writePos_, WRAP_MARKER);
+            }
+            usedBytes_ += capacity_ - writePos_;
+            writePos_ = 0;
+            return 0;
+         }
+         return -1;
+      }
+      return readPos_ - writePos_ > length ? writePos_ : -1;
+   }
+
+   private void write(int pos, TaggedImage image, byte[] tags) {
+      ring_.putInt(pos, tags == null ? -1 : tags.length);
+      ring_.position(pos + HEADER_BYTES);
+      if (tags != null) {
+         ring_.put(tags);
+      }
+      Object pix = image.pix;
+      if (pix == null) {
+         ring_.putInt(pos + 4, PIX_NONE);
+         ring_.putInt(pos + 8, 0);
+      } else if (pix instanceof byte[]) {
+         ring_.putInt(pos + 4, PIX_BYTE);
+         ring_.putInt(pos + 8, ((byte[]) pix).length);
+         ring_.put((byte[]) pix);
+      } else if (pix instanceof short[]) {
+         ring_.putInt(pos + 4, PIX_SHORT);
+         ring_.putInt(pos + 8, ((short[]) pix).length);
+         ring_.asShortBuffer().put((short[]) pix);
+      } else if (pix instanceof int[]) {
+         ring_.putInt(pos + 4, PIX_INT);
+         ring_.putInt(pos + 8, ((int[]) pix).length);
+         ring_.asIntBuffer().put((int[]) pix);
+      } else if (pix instanceof float[]) {
+         ring_.putInt(pos + 4, PIX_FLOAT);
+         ring_.putInt(pos + 8, ((float[]) pix).length);
+         ring_.asFloatBuffer().put((float[]) pix);
+      } else {
+         throw new RuntimeException("Can't spill pixels of type " + pix.getClass());
+      }
+   }
+
+   /**
+    * Read the record at readPos_, skipping to the start of the file if the writer
+    * wrapped there.
+    *
+    * @return the image and the position just past its record
+    */
+   private TaggedImage read(int[] nextPos) throws JSONException {
+      if (capacity_ - readPos_ < HEADER_BYTES || ring_.getInt(readPos_) == WRAP_MARKER) {
+         usedBytes_ -= capacity_ - readPos_;
+         readPos_ = 0;
+      }
+      int pos = readPos_;
+      int tagsLength = ring_.getInt(pos);
+      int pixType = ring_.getInt(pos + 4);
+      int pixLength = ring_.getInt(pos + 8);
+      ring_.position(pos + HEADER_BYTES);
+      JSONObject tags = null;
+      if (tagsLength >= 0) {
+         byte[] tagBytes = new byte[tagsLength];
+         ring_.get(tagBytes);
+         tags = new JSONObject(new String(tagBytes, StandardCharsets.UTF_8));
+      }
+      Object pix;
+      int pixBytes;
+      if (pixType == PIX_BYTE) {
+         byte[] array = new byte[pixLength];
+         ring_.get(array);
+         pix = array;
+         pixBytes = pixLength;
+      } else if (pixType == PIX_SHORT) {
+         short[] array = new short[pixLength];
+         ring_.asShortBuffer().get(array);
+         pix = array;
+         pixBytes = 2 * pixLength;
+      } else if (pixType == PIX_INT) {
+         int[] array = new int[pixLength];
+         ring_.asIntBuffer().get(array);
+         pix = array;
+         pixBytes = 4 * pixLength;
+      } else if (pixType == PIX_FLOAT) {
+         float[] array = new float[pixLength];
+         ring_.asFloatBuffer().get(array);
+         pix = array;
+         pixBytes = 4 * pixLength;
+      } else {
+         pix = null;
+         pixBytes = 0;
+      }
+      nextPos[0] = pos + HEADER_BYTES + Math.max(0, tagsLength) + pixBytes;
+      return new TaggedImage(pix, tags);
+   }
+
+   private void drain() {
+      int[] nextPos = new int[1];
+      try {
+         while (true) {
+            TaggedImage image;
+            synchronized (this) {
+               while (count_ == 0 && !closed_ && !finishPassedOn_) {
+                  wait();
+               }
+               if (closed_ || count_ == 0) {
+                  return;
+               }
+               image = read(nextPos);
+            }
+            // Still counted as in the file while being handed over, so that put doesn't
+            // let a newer image overtake it
+            queue_.putLast(image);
+            synchronized (this) {
+               usedBytes_ -= nextPos[0] - readPos_;
+               readPos_ = nextPos[0];
+               count_--;
+               notifyAll();
+            }
+            if (isFinishSignal(image)) {
+               return;
+            }
+         }
+      } catch (InterruptedException e) {
+         // closed
+      } catch (JSONException e) {
+         throw new RuntimeException(e);
+      } finally {
+         synchronized (this) {
+            closed_ = true;
+            notifyAll();
+         }
+         // The mapping itself goes once the buffer is garbage collected
+         try {
+            raf_.close();
+         } catch (IOException e) {
+            // nothing to do
+         }
+         // May fail while still mapped on some platforms, in which case it goes on exit
+         file_.delete();
+      }
+   }
+}
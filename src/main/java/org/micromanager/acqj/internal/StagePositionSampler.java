@@ -0,0 +1,181 @@
+package org.micromanager.acqj.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import mmcorej.CMMCore;
+import mmcorej.org.json.JSONException;
+import mmcorej.org.json.JSONObject;
+import org.micromanager.acqj.main.AcqEngMetadata;
+import org.micromanager.acqj.util.MetadataClock;
+import org.micromanager.acqj.util.TimeSeriesRing;
+
+/**
+ * Reads the actual positions of stages on a thread of its own at a fixed rate, so that
+ * image metadata can have the positions at the time each image was taken without the
+ * acquisition engine waiting on the stages. Positions are interpolated between the
+ * readings before and after the image, and the last minute of readings is kept.
+ *
+ * <p>The core XY stage's position goes under {@link AcqEngMetadata#X_UM} and
+ * {@link AcqEngMetadata#Y_UM}, the core focus's under {@link AcqEngMetadata#Z_UM}, and
+ * that of other stages under their name followed by
+ * {@link AcqEngMetadata#GENERIC_UM_SUFFIX} (with "-X"/"-Y" before it for XY stages).
+ */
+public class StagePositionSampler {
+
+   private static final long HISTORY_MS = 60000;
+
+   private final CMMCore core_;
+   private final long periodMs_;
+   private final List<Stage> stages_ = new ArrayList<>();
+   private final AtomicLong failedReads_ = new AtomicLong();
+   private ScheduledExecutorService executor_ = null;
+
+   /**
+    * @param core core to read positions from
+    * @param periodMs time between readings
+    * @param devices stages to read. If none are given, the core XY stage and focus
+    *                (whichever are set)
+    */
+   public StagePositionSampler(CMMCore core, long periodMs, String... devices) {
+      if (periodMs < 1) {
+         throw new RuntimeException("Stage position sampling period must be at least 1 ms");
+      }
+      core_ = core;
+      periodMs_ = periodMs;
+      int capacity = (int) Math.min(1 << 20, Math.max(64, HISTORY_MS / periodMs + 1));
+      try {
+         String xyStage = core.getXYStageDevice();
+         String focus = core.getFocusDevice();
+         List<String> names = new ArrayList<>();
+         if (devices.length > 0) {
+            for (String device : devices) {
+               names.add(device);
+            }
+         } else {
+            for (String device : new String[] {xyStage, focus}) {
+               if (device != null && !device.isEmpty()) {
+                  names.add(device);
+               }
+            }
+         }
+         for (String device : names) {
+            if (device.equals(xyStage)) {
+               stages_.add(new Stage(device, true, AcqEngMetadata.X_UM, AcqEngMetadata.Y_UM,
+                     capacity));
+            } else if (device.equals(focus)) {
+               stages_.add(new Stage(device, false, AcqEngMetadata.Z_UM, null, capacity));
+            } else if (core.getDeviceType(device).toString().equals("XYStageDevice")) {
+               stages_.add(new Stage(device, true,
+                     device + "-X" + AcqEngMetadata.GENERIC_UM_SUFFIX,
+                     device + "-Y" + AcqEngMetadata.GENERIC_UM_SUFFIX, capacity));
+            } else {
+               stages_.add(new Stage(device, false,
+                     device + AcqEngMetadata.GENERIC_UM_SUFFIX, null, capacity));
+            }
+         }
+      } catch (Exception e) {
+         throw new RuntimeException("Couldn't set up stage position sampling", e);
+      }
+   }
+
+   /**
+    * Start reading positions.
+    */
+   public synchronized void start() {
+      if (executor_ != null) {
+         return;
+      }
+      executor_ = Executors.newSingleThreadScheduledExecutor((Runnable r) -> {
+         Thread thread = new Thread(r, "Stage position sampler");
+         thread.setDaemon(true);
+         return thread;
+      });
+      executor_.scheduleAtFixedRate(this::sample, 0, periodMs_, TimeUnit.MILLISECONDS);
+   }
+
+   /**
+    * Stop reading positions. Those read so far can still be used.
+    */
+   public synchronized void stop() {
+      if (executor_ != null) {
+         executor_.shutdownNow();
+      }
+   }
+
+   /**
+    * Number of times reading the position of a stage failed.
+    */
+   public long getFailedReadCount() {
+      return failedReads_.get();
+   }
+
+   /**
+    * Read each stage once. Called on the sampling thread.
+    */
+   void sample() {
+      double[] x = new double[1];
+      double[] y = new double[1];
+      for (Stage stage : stages_) {
+         try {
+            long before = MetadataClock.nanoTime();
+            if (stage.xy_) {
+               core_.getXYPosition(stage.device_, x, y);
+            } else {
+               x[0] = core_.getPosition(stage.device_);
+            }
+            // The position is somewhere between the start and end of the read
+            long time = before + (MetadataClock.nanoTime() - before) / 2;
+            stage.first_.add(time, x[0]);
+            if (stage.xy_) {
+               stage.second_.add(time, y[0]);
+            }
+         } catch (Exception e) {
+            failedReads_.incrementAndGet();
+         }
+      }
+   }
+
+   /**
+    * Add the positions of the stages at the given time to image metadata. Stages
+    * without readings from that time are left out.
+    *
+    * @param tags image metadata
+    * @param nanos time, from {@link MetadataClock#nanoTime()}
+    */
+   public void addPositions(JSONObject tags, long nanos) throws JSONException {
+      for (Stage stage : stages_) {
+         double first = stage.first_.valueAt(nanos);
+         if (!Double.isNaN(first)) {
+            tags.put(stage.firstKey_, first);
+         }
+         if (stage.xy_) {
+            double second = stage.second_.valueAt(nanos);
+            if (!Double.isNaN(second)) {
+               tags.put(stage.secondKey_, second);
+            }
+         }
+      }
+   }
+
+   private static final class Stage {
+      final String device_;
+      final boolean xy_;
+      final String firstKey_;
+      final String secondKey_;
+      final TimeSeriesRing first_;
+      final TimeSeriesRing second_;
+
+      Stage(String device, boolean xy, String firstKey, String secondKey, int capacity) {
+         device_ = device;
+         xy_ = xy;
+         firstKey_ = firstKey;
+         secondKey_ = secondKey;
+         first_ = new TimeSeriesRing(capacity);
+         second_ = xy ? new TimeSeriesRing(capacity) : null;
+      }
+   }
+}
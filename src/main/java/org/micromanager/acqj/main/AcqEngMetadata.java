@@ -18,14 +18,12 @@
 package org.micromanager.acqj.main;
 
 import java.awt.geom.AffineTransform;
-import java.text.DateFormat;
 import java.text.DecimalFormat;
 import java.text.ParseException;
-import java.text.SimpleDateFormat;
-import java.util.Calendar;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.TreeSet;
+import mmcorej.CMMCore;
 import mmcorej.Configuration;
 import mmcorej.PropertySetting;
 import mmcorej.org.json.JSONArray;
@@ -34,6 +32,8 @@ import mmcorej.org.json.JSONObject;
 import org.micromanager.acqj.api.AcquisitionAPI;
 import org.micromanager.acqj.internal.AffineTransformUtils;
 import org.micromanager.acqj.internal.Engine;
+import org.micromanager.acqj.internal.StagePositionSampler;
+import org.micromanager.acqj.util.MetadataClock;
 
 /**
  * Convenience/standardization for Acq Engine metadata
@@ -55,6 +55,7 @@ public class AcqEngMetadata {
    public static final String Y_UM_INTENDED = "YPosition_um_Intended";
    public static final String Z_UM_INTENDED = "ZPosition_um_Intended";
    public static final String GENERIC_UM_INTENDED_SUFFIX = "Position_um_Intended";
+   public static final String GENERIC_UM_SUFFIX = "Position_um";
 
    public static final String X_UM = "XPosition_um";
    public static final String Y_UM = "YPosition_um";
@@ -90,9 +91,21 @@ public class AcqEngMetadata {
    public static final String SYSTEM_STATE_CACHE = "SystemStateCache";
 
 
-   private static final String ACQUISITION_EVENT = "Event";
+   static final String ACQUISITION_EVENT = "Event";
+   public static final String SEQUENCE_ID = "SequenceId";
+   public static final String SEQUENCE_INDEX = "SequenceIndex";
 
 
+   /**
+    * Core of the microscope the acquisition runs on, or of the default engine if unknown.
+    */
+   private static CMMCore getCore(AcquisitionAPI acq) {
+      if (acq instanceof Acquisition && ((Acquisition) acq).getCore() != null) {
+         return ((Acquisition) acq).getCore();
+      }
+      return Engine.getCore();
+   }
+
    /**
     * Add the core set of image metadata that should be present in any
     * acquisition
@@ -104,14 +117,66 @@ public class AcqEngMetadata {
     */
    public static void addImageMetadata(JSONObject tags, AcquisitionEvent event,
             long elapsedMs, double exposure) {
+      createImageMetadata(tags, event, elapsedMs, exposure).getJSON();
+   }
+
+   /**
+    * Version of {@link #addImageMetadata} that only captures the values of the core set
+    * of image metadata, and writes them into the JSON once it is needed.
+    *
+    * @param tags image metadata from the core
+    * @param event event
+    * @param elapsedMs time since acq start
+    * @param exposure camera exposure in ms
+    * @return the image metadata to use in place of tags
+    */
+   public static ImageMetadata createImageMetadata(JSONObject tags, AcquisitionEvent event,
+            long elapsedMs, double exposure) {
+      CMMCore core = getCore(event.acquisition_);
+      StaticImageContext context;
       try {
+         // Only the pixel size and focus device are used
+         context = new StaticImageContext(core.getPixelSizeUm(), core.getFocusDevice(),
+               exposure, 1);
+      } catch (Exception e) {
+         e.printStackTrace();
+         throw new RuntimeException("Problem adding image metadata");
+      }
+      return createImageMetadata(tags, event, elapsedMs, MetadataClock.nanoTime(), exposure,
+            context);
+   }
+
+   /**
+    * Version of {@link #createImageMetadata(JSONObject, AcquisitionEvent, long, double)}
+    * that takes the values that stay the same for a sequence from context rather than
+    * the core.
+    *
+    * @param tags image metadata from the core
+    * @param event event
+    * @param elapsedMs time since acq start
+    * @param frameNanos time the image came out of the core, from
+    *                   {@link MetadataClock#nanoTime()}
+    * @param exposure camera exposure in ms
+    * @param context pixel size and focus device the image was taken with
+    * @return the image metadata to use in place of tags
+    */
+   public static ImageMetadata createImageMetadata(JSONObject tags, AcquisitionEvent event,
+            long elapsedMs, long frameNanos, double exposure, StaticImageContext context) {
+      try {
+         ImageMetadata metadata = new ImageMetadata(tags);
 
-         AcqEngMetadata.setPixelSizeUm(tags, Engine.getCore().getPixelSizeUm());
+         metadata.setPixelSizeUm(context.getPixelSizeUm());
 
          //////////  Date and time   //////////////
-         AcqEngMetadata.setElapsedTimeMs(tags, event, elapsedMs);
-         AcqEngMetadata.setImageTime(tags, (new SimpleDateFormat(
-               "yyyy-MM-dd HH:mm:ss -")).format(Calendar.getInstance().getTime()));
+         long imageTimeMs = MetadataClock.toEpochMs(frameNanos);
+         long elapsedTimeMs;
+         if (hasElapsedTimeMs(tags)) {
+            // Relative to the camera's time stamp
+            elapsedTimeMs = getElapsedTimeMs(tags) + elapsedMs;
+         } else {
+            elapsedTimeMs = imageTimeMs - event.acquisition_.getStartTimeMs();
+         }
+         metadata.setTimes(elapsedTimeMs, imageTimeMs);
 
          //////// Info about all hardware that the core specifically knows about ///////
          // e.g. Core focus, core XYStage, core Camera etc
@@ -120,66 +185,59 @@ public class AcqEngMetadata {
          //.setStageX(tags, Engine.getCore().getXPosition());
          //AcqEngMetadata.setStageY(tags, Engine.getCore().getYPosition());
          //AcqEngMetadata.setZPositionUm(tags, Engine.getCore().getPosition());
+         // so they are read in the background instead, see setStagePositionSampling
 
 
-         //Axes (i.e. channel. z, t, or arbitrary other indices)
-         AcqEngMetadata.createAxes(tags);
          ////// Axes positions /////
          for (String s : event.getDefinedAxes()) {
-            AcqEngMetadata.setAxisPosition(tags, s, event.getAxisPosition(s));
+            metadata.setAxisPosition(s, event.getAxisPosition(s));
          }
 
 
          /////////  XY Stage Positions (with optional support for grid layout) ////////
          if (event.getXPosition() != null && event.getYPosition() != null) {
             //infer Stage position index at acquisition time to support on the fly modification
-            AcqEngMetadata.setStageXIntended(tags, event.getXPosition());
-            AcqEngMetadata.setStageYIntended(tags, event.getYPosition());
+            metadata.setStageXYIntended(event.getXPosition(), event.getYPosition());
          }
          if (event.getPositionName() != null) {
-            AcqEngMetadata.setPositionName(tags, event.getPositionName());
+            metadata.setPositionName(event.getPositionName());
          }
 
 
+         String focusDevice = context.getFocusDevice();
          if (event.getZPosition() != null) {
-            AcqEngMetadata.setStageZIntended(tags, event.getZPosition());
-         } else if (event.getStageSingleAxisStagePosition(Engine.getCore().getFocusDevice())
-               != null) {
-            AcqEngMetadata.setStageZIntended(tags, event.getStageSingleAxisStagePosition(
-                  Engine.getCore().getFocusDevice()));
+            metadata.setStageZIntended(event.getZPosition());
+         } else if (event.getStageSingleAxisStagePosition(focusDevice) != null) {
+            metadata.setStageZIntended(event.getStageSingleAxisStagePosition(focusDevice));
          }
          // Other non-coreFocusZ positions
          for (String name : event.getStageDeviceNames()) {
-            if (!name.equals(Engine.getCore().getFocusDevice())) {
-               AcqEngMetadata.setStagePositionIntended(tags, name,
+            if (!name.equals(focusDevice)) {
+               metadata.setStagePositionIntended(name,
                      event.getStageSingleAxisStagePosition(name));
             }
          }
 
 
-         if (event.getSequence() != null) {
-            // Dont add the event to image metadata if it is a sequence, because it could
-            // potentially be very large
-            // Could probably pop out the individual event in the sequence this corresponds to
-            AcqEngMetadata.addAcquisitionEvent(tags, event);
-         }
-
-         AcqEngMetadata.setExposure(tags, exposure);
+         // Dont add the event to image metadata if it is a sequence, because it could
+         // potentially be very large. Images of a sequence get its id and their index in
+         // it instead, see setSequencePosition
 
+         metadata.setExposure(exposure);
+         StagePositionSampler sampler = event.acquisition_ == null
+               ? null : event.acquisition_.getStagePositionSampler();
+         if (sampler != null) {
+            // Read positions are only looked up once the JSON is needed, by which time
+            // the sampler has usually read them after the image too
+            metadata.setStagePositions(sampler, frameNanos);
+         }
+         return metadata;
       } catch (Exception e) {
          e.printStackTrace();
          throw new RuntimeException("Problem adding image metadata");
       }
    }
 
-   private static void addAcquisitionEvent(JSONObject tags, AcquisitionEvent event) {
-      try {
-         tags.put(ACQUISITION_EVENT, event.toJSON());
-      } catch (JSONException e) {
-         throw new RuntimeException(e);
-      }
-   }
-
    /**
     * Make the core set of tags needed in summary metadata. Specific types of
     * acquistitions can add to this as needed
@@ -189,36 +247,37 @@ public class AcqEngMetadata {
     */
    public static JSONObject makeSummaryMD(AcquisitionAPI acq) {
       JSONObject summary = new JSONObject();
+      CMMCore core = getCore(acq);
 
       AcqEngMetadata.setAcqDate(summary, getCurrentDateAndTime());
 
       //General information the core-camera
-      int byteDepth = (int) Engine.getCore().getBytesPerPixel();
+      int byteDepth = (int) core.getBytesPerPixel();
       if (byteDepth == 0) {
          throw new RuntimeException("Camera byte depth cannot be zero");
       }
       AcqEngMetadata.setPixelTypeFromByteDepth(summary, byteDepth);
-      AcqEngMetadata.setPixelSizeUm(summary, Engine.getCore().getPixelSizeUm());
+      AcqEngMetadata.setPixelSizeUm(summary, core.getPixelSizeUm());
 
 
 
       /////// Info about core devices ////////
       try {
-         AcqEngMetadata.setCoreXY(summary, Engine.getCore().getXYStageDevice());
-         AcqEngMetadata.setCoreFocus(summary, Engine.getCore().getFocusDevice());
-         AcqEngMetadata.setCoreAutofocus(summary, Engine.getCore().getAutoFocusDevice());
-         AcqEngMetadata.setCoreCamera(summary, Engine.getCore().getCameraDevice());
-         AcqEngMetadata.setCoreGalvo(summary, Engine.getCore().getGalvoDevice());
-         AcqEngMetadata.setCoreImageProcessor(summary, Engine.getCore().getImageProcessorDevice());
-         AcqEngMetadata.setCoreSLM(summary, Engine.getCore().getSLMDevice());
-         AcqEngMetadata.setCoreShutter(summary, Engine.getCore().getShutterDevice());
+         AcqEngMetadata.setCoreXY(summary, core.getXYStageDevice());
+         AcqEngMetadata.setCoreFocus(summary, core.getFocusDevice());
+         AcqEngMetadata.setCoreAutofocus(summary, core.getAutoFocusDevice());
+         AcqEngMetadata.setCoreCamera(summary, core.getCameraDevice());
+         AcqEngMetadata.setCoreGalvo(summary, core.getGalvoDevice());
+         AcqEngMetadata.setCoreImageProcessor(summary, core.getImageProcessorDevice());
+         AcqEngMetadata.setCoreSLM(summary, core.getSLMDevice());
+         AcqEngMetadata.setCoreShutter(summary, core.getShutterDevice());
       } catch (Exception e) {
          throw new RuntimeException("couldn't get info from corea about devices");
       }
 
       //affine transform
-      if (AffineTransformUtils.isAffineTransformDefined()) {
-         AffineTransform at = AffineTransformUtils.getAffineTransform(0, 0);
+      if (AffineTransformUtils.isAffineTransformDefined(core)) {
+         AffineTransform at = AffineTransformUtils.getAffineTransform(core, 0, 0);
          AcqEngMetadata.setAffineTransformString(summary,
                AffineTransformUtils.transformToString(at));
       } else {
@@ -227,7 +286,7 @@ public class AcqEngMetadata {
 
       // Add system state cache
       try {
-         Configuration config = Engine.getCore().getSystemStateCache();
+         Configuration config = core.getSystemStateCache();
          JSONObject cache = new JSONObject();
          for (int i = 0; i < config.size(); ++i) {
             PropertySetting setting = config.getSetting(i);
@@ -244,9 +303,7 @@ public class AcqEngMetadata {
    }
 
    protected static String getCurrentDateAndTime() {
-      DateFormat df = new SimpleDateFormat("yyyy/MM/dd HH:mm:ss");
-      Calendar calobj = Calendar.getInstance();
-      return df.format(calobj.getTime());
+      return MetadataClock.formatDateTime(System.currentTimeMillis());
    }
 
    public static int[] getIndices(String imageLabel) {
@@ -1063,6 +1120,9 @@ public class AcqEngMetadata {
    }
    
    public static HashMap<String, Object> getAxes(JSONObject tags) {
+      if (tags instanceof ImageMetadata) {
+         return ((ImageMetadata) tags).getAxes();
+      }
       try {
          JSONObject axes = tags.getJSONObject(AXES);
          Iterator<String> iter = axes.keys();
@@ -1106,6 +1166,10 @@ public class AcqEngMetadata {
    }
 
    public static void setAxisPosition(JSONObject tags, String axis, Object position) {
+      if (tags instanceof ImageMetadata) {
+         ((ImageMetadata) tags).setAxisPosition(axis, position);
+         return;
+      }
       if (position == null) {
          if (hasAxis(tags, axis)) {
             try {
@@ -1126,7 +1190,63 @@ public class AcqEngMetadata {
       }
    }
 
+   /**
+    * Record which hardware sequence an image came from, and its place in it.
+    *
+    * @param tags image metadata
+    * @param sequenceId id of the sequence within the acquisition
+    * @param index index of the image's event in the sequence
+    */
+   public static void setSequencePosition(JSONObject tags, int sequenceId, int index) {
+      if (tags instanceof ImageMetadata) {
+         ((ImageMetadata) tags).setSequencePosition(sequenceId, index);
+         return;
+      }
+      try {
+         tags.put(SEQUENCE_ID, sequenceId);
+         tags.put(SEQUENCE_INDEX, index);
+      } catch (JSONException ex) {
+         throw new RuntimeException("Couldn't set sequence position");
+      }
+   }
+
+   public static boolean hasSequencePosition(JSONObject tags) {
+      return tags.has(SEQUENCE_ID);
+   }
+
+   public static int getSequenceId(JSONObject tags) {
+      try {
+         return tags.getInt(SEQUENCE_ID);
+      } catch (JSONException ex) {
+         throw new RuntimeException("Missing sequence id tag");
+      }
+   }
+
+   public static int getSequenceIndex(JSONObject tags) {
+      try {
+         return tags.getInt(SEQUENCE_INDEX);
+      } catch (JSONException ex) {
+         throw new RuntimeException("Missing sequence index tag");
+      }
+   }
+
+   /**
+    * The hardware sequence an image came from, which its acquisition keeps a single
+    * description of (see {@link Acquisition#getEventSequence(int)}).
+    *
+    * @return the sequence, or null if the image isn't from one
+    */
+   public static AcquisitionEvent getEventSequence(JSONObject tags, Acquisition acq) {
+      if (acq == null || !hasSequencePosition(tags)) {
+         return null;
+      }
+      return acq.getEventSequence(getSequenceId(tags));
+   }
+
    public static boolean hasAxis(JSONObject tags, String axis) {
+      if (tags instanceof ImageMetadata) {
+         return ((ImageMetadata) tags).hasAxis(axis);
+      }
       try {
          return tags.getJSONObject(AXES).has(axis);
       } catch (JSONException ex) {
@@ -1135,6 +1255,9 @@ public class AcqEngMetadata {
    }
 
    public static Object getAxisPosition(JSONObject tags, String axis) {
+      if (tags instanceof ImageMetadata) {
+         return ((ImageMetadata) tags).getAxisPosition(axis);
+      }
       try {
          return tags.getJSONObject(AXES).get(axis);
       } catch (JSONException ex) {
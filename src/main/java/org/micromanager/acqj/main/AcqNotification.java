@@ -1,5 +1,7 @@
 package org.micromanager.acqj.main;
 
+import java.util.List;
+import mmcorej.org.json.JSONArray;
 import mmcorej.org.json.JSONException;
 import mmcorej.org.json.JSONObject;
 
@@ -28,6 +30,7 @@ public class AcqNotification {
 
    public class Image {
       public static final String IMAGE_SAVED = "image_saved";
+      public static final String IMAGES_SAVED = "images_saved";
       public static final String DATA_SINK_FINISHED = "data_sink_finished";
    }
 
@@ -72,6 +75,15 @@ public class AcqNotification {
       return new AcqNotification(Image.class, imageDescriptor, Image.IMAGE_SAVED);
    }
 
+   /**
+    * One notification for a batch of images saved together. The payload is a JSON array
+    * of the image descriptors.
+    */
+   public static AcqNotification createImagesSavedNotification(List<String> imageDescriptors) {
+      return new AcqNotification(Image.class, new JSONArray(imageDescriptors).toString(),
+            Image.IMAGES_SAVED);
+   }
+
    public JSONObject toJSON() throws JSONException {
       JSONObject message = new JSONObject();
       message.put("type", type_);
@@ -98,4 +110,8 @@ public class AcqNotification {
    public boolean isImageSavedNotification() {
       return type_.equals(Image.IMAGE_SAVED);
    }
+
+   public boolean isImagesSavedNotification() {
+      return Image.IMAGES_SAVED.equals(milestone_);
+   }
 }
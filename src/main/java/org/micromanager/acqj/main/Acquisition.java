@@ -17,9 +17,19 @@
 
 package org.micromanager.acqj.main;
 
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CountDownLatch;
@@ -28,6 +38,7 @@ import java.util.concurrent.LinkedBlockingDeque;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 import mmcorej.CMMCore;
 import mmcorej.TaggedImage;
@@ -37,9 +48,20 @@ import org.micromanager.acqj.api.AcqEngJDataSink;
 import org.micromanager.acqj.api.AcqNotificationListener;
 import org.micromanager.acqj.api.AcquisitionAPI;
 import org.micromanager.acqj.api.AcquisitionHook;
+import org.micromanager.acqj.api.AsyncAcqEngJDataSink;
+import org.micromanager.acqj.api.DataSinkOverflowPolicy;
+import org.micromanager.acqj.api.HardwareRetryPolicy;
 import org.micromanager.acqj.api.TaggedImageProcessor;
+import org.micromanager.acqj.internal.CameraLane;
+import org.micromanager.acqj.internal.DataSinkLane;
 import org.micromanager.acqj.internal.Engine;
+import org.micromanager.acqj.internal.ImageTransferQueue;
 import org.micromanager.acqj.internal.NotificationHandler;
+import org.micromanager.acqj.internal.SpillBuffer;
+import org.micromanager.acqj.internal.StagePositionSampler;
+import org.micromanager.acqj.util.MetadataClock;
+import org.micromanager.acqj.util.MetricsRegistry;
+import org.micromanager.acqj.util.PixelBufferPool;
 
 /**
  * This is the main class for using AcqEngJ. AcquisitionAPI defines its public API.
@@ -48,6 +70,7 @@ import org.micromanager.acqj.internal.NotificationHandler;
 public class Acquisition implements AcquisitionAPI {
 
    private static final int IMAGE_QUEUE_SIZE = 30;
+   private static final long DEFAULT_SPILL_CAPACITY_BYTES = 1L << 30;
 
    protected String xyStage_;
    protected String zStage_;
@@ -56,10 +79,12 @@ public class Acquisition implements AcquisitionAPI {
    protected volatile CountDownLatch abortRequested_ = new CountDownLatch(1);
    protected JSONObject summaryMetadata_;
    private long startTimeMs_ = -1;
+   private long startTimeNanos_ = 0;
    private volatile boolean paused_ = false;
    protected AcqEngJDataSink dataSink_;
    private Consumer<JSONObject> summaryMetadataProcessor_;
    public final CMMCore core_;
+   private Engine engine_;
    private CopyOnWriteArrayList<AcquisitionHook> eventGenerationHooks_ =
          new CopyOnWriteArrayList<>();
    private CopyOnWriteArrayList<AcquisitionHook> beforeHardwareHooks_ =
@@ -74,9 +99,11 @@ public class Acquisition implements AcquisitionAPI {
          new CopyOnWriteArrayList<>();
    private CopyOnWriteArrayList<TaggedImageProcessor> imageProcessors_ =
          new CopyOnWriteArrayList<>();
-   protected LinkedBlockingDeque<TaggedImage> firstDequeue_
-           = new LinkedBlockingDeque<>(IMAGE_QUEUE_SIZE);
-   private ConcurrentHashMap<TaggedImageProcessor, LinkedBlockingDeque<TaggedImage>>
+   private volatile int imageQueueFrameLimit_ = IMAGE_QUEUE_SIZE;
+   private volatile long imageQueueByteBudget_ = Long.MAX_VALUE;
+   protected ImageTransferQueue firstDequeue_
+           = new ImageTransferQueue(IMAGE_QUEUE_SIZE, Long.MAX_VALUE);
+   private ConcurrentHashMap<TaggedImageProcessor, ImageTransferQueue>
          processorOutputQueues_ = new ConcurrentHashMap<>();
    public boolean debugMode_ = false;
    private ThreadPoolExecutor savingExecutor_ = null;
@@ -84,6 +111,39 @@ public class Acquisition implements AcquisitionAPI {
    private Consumer<JSONObject> imageMetadataProcessor_;
    private NotificationHandler notificationHandler_ = new NotificationHandler();
    protected volatile boolean started_ = false;
+   private volatile int eventPipelineDepth_ = 1;
+   private volatile boolean concurrentHardwareMoves_ = false;
+   private CopyOnWriteArrayList<String[]> hardwareOrderingConstraints_ =
+         new CopyOnWriteArrayList<>();
+   private volatile HardwareRetryPolicy hardwareRetryPolicy_ = HardwareRetryPolicy.DEFAULT;
+   private ConcurrentHashMap<String, HardwareRetryPolicy> hardwareRetryPolicies_ =
+         new ConcurrentHashMap<>();
+   private volatile int deviceFailureBudget_ = Integer.MAX_VALUE;
+   private final MetricsRegistry metrics_ = new MetricsRegistry();
+   private final AtomicInteger sequenceCount_ = new AtomicInteger();
+   // Hardware sequences by id, so that each is described once rather than with its images
+   private final ConcurrentHashMap<Integer, AcquisitionEvent> eventSequences_ =
+         new ConcurrentHashMap<>();
+   private final MetadataCodec metadataCodec_ = new MetadataCodec();
+   private volatile long stageSamplingPeriodMs_ = 0;
+   private volatile String[] stageSamplingDevices_ = new String[0];
+   private volatile StagePositionSampler stagePositionSampler_ = null;
+   private volatile PixelBufferPool pixelBufferPool_ = null;
+   private volatile SpillBuffer spillBuffer_ = null;
+   private volatile int imageSavingBatchSize_ = 1;
+   private CopyOnWriteArrayList<DataSinkLane> dataSinkLanes_ = new CopyOnWriteArrayList<>();
+   private volatile boolean parallelCameraLanes_ = false;
+   private ConcurrentHashMap<String, CameraLane> cameraLanes_ = new ConcurrentHashMap<>();
+   // Number of holders (data sinks, processor branches) still holding each pooled pixel
+   // array that was handed to more than one
+   private final IdentityHashMap<Object, Integer> pixelReferences_ = new IdentityHashMap<>();
+   private volatile int maxOutstandingWrites_ = 4;
+   // Writes handed to an asynchronous data sink, oldest first. Only used by the saving
+   // thread
+   private final ArrayDeque<CompletableFuture<Object>> outstandingWrites_ = new ArrayDeque<>();
+   // Completes once the saved notification of the latest write has been posted. Each
+   // write's notification is chained onto the previous one, so they are posted in order
+   private CompletableFuture<Void> savedNotifications_ = CompletableFuture.completedFuture(null);
 
    /**
     * Primary constructor for creating Acquisitons. If DataSink is null, then a
@@ -103,23 +163,65 @@ public class Acquisition implements AcquisitionAPI {
     * Version of the constructor that accepts a function that can modify SummaryMetadata as needed.
     */
    public Acquisition(AcqEngJDataSink sink, Consumer<JSONObject> summaryMetadataProcessor) {
-      core_ = Engine.getCore();
-      summaryMetadataProcessor_ = summaryMetadataProcessor;
-      dataSink_ = sink;
-      initialize();
+      this(Engine.getInstance(), sink, summaryMetadataProcessor);
    }
 
    /**
     * Version in which initialization can be handled by a subclass.
     */
    public Acquisition(AcqEngJDataSink sink, boolean initialize) {
-      core_ = Engine.getCore();
+      this(Engine.getInstance(), sink, initialize);
+   }
+
+   /**
+    * Versions of the constructors above for an acquisition that runs on a specific
+    * engine, and therefore on the microscope of that engine's core. The ones without
+    * an engine use the default engine.
+    */
+   public Acquisition(Engine engine, AcqEngJDataSink sink) {
+      this(engine, sink, null);
+   }
+
+   public Acquisition(Engine engine, AcqEngJDataSink sink,
+                      Consumer<JSONObject> summaryMetadataProcessor) {
+      engine_ = engine;
+      core_ = engine == null ? null : engine.getEngineCore();
+      summaryMetadataProcessor_ = summaryMetadataProcessor;
+      dataSink_ = sink;
+      initialize();
+   }
+
+   public Acquisition(Engine engine, AcqEngJDataSink sink, boolean initialize) {
+      engine_ = engine;
+      core_ = engine == null ? null : engine.getEngineCore();
       dataSink_ = sink;
       if (initialize) {
          initialize();
       }
    }
 
+   /**
+    * The engine this acquisition runs on. If no engine existed when the acquisition was
+    * created, this is the default engine at the time of the first call.
+    */
+   public Engine getEngine() {
+      if (engine_ == null) {
+         engine_ = Engine.getInstance();
+      }
+      return engine_;
+   }
+
+   /**
+    * The core of the microscope this acquisition runs on.
+    */
+   public CMMCore getCore() {
+      if (core_ != null) {
+         return core_;
+      }
+      Engine engine = getEngine();
+      return engine == null ? null : engine.getEngineCore();
+   }
+
    public void postNotification(AcqNotification notification) {
       notificationHandler_.postNotification(notification);
    }
@@ -147,6 +249,425 @@ public class Acquisition implements AcquisitionAPI {
       return debugMode_;
    }
 
+   /**
+    * Copy the pixels of each image into arrays recycled from the given pool as they
+    * enter the acquisition, rather than keeping the core's newly allocated ones. The
+    * data sink (or an image processor that drops images) must then call
+    * {@link #releaseImage(TaggedImage)} once it is done with each image. Must be set
+    * before the acquisition starts. Off (null) by default.
+    *
+    * @param pool pool to recycle pixel arrays from, or null to not recycle them
+    */
+   public void setPixelBufferPool(PixelBufferPool pool) {
+      if (started_) {
+         throw new RuntimeException("Cannot set pixel buffer pool after acquisiton started");
+      }
+      pixelBufferPool_ = pool;
+   }
+
+   /**
+    * Hand images to the data sink in batches of up to the given size, through
+    * {@link AcqEngJDataSink#putImages(List)}. Each batch is made up of the images that
+    * are already waiting to be saved, so it never waits for more images to arrive. One
+    * {@link AcqNotification.Image#IMAGES_SAVED} notification is posted per batch, rather
+    * than an {@link AcqNotification.Image#IMAGE_SAVED} one per image. Can be changed at
+    * any time. Defaults to 1, which saves images one at a time. An
+    * {@link AsyncAcqEngJDataSink} is always given images one at a time, since its writes
+    * overlap anyway.
+    *
+    * @param maxImages most images to hand to the sink at once
+    */
+   public void setImageSavingBatchSize(int maxImages) {
+      if (maxImages < 1) {
+         throw new RuntimeException("Image saving batch size must be at least 1");
+      }
+      imageSavingBatchSize_ = maxImages;
+   }
+
+   public int getImageSavingBatchSize() {
+      return imageSavingBatchSize_;
+   }
+
+   /**
+    * Most writes an {@link AsyncAcqEngJDataSink} may have in flight at once. Once this
+    * many are outstanding, the saving thread waits for the oldest one before handing over
+    * the next image. Can be changed at any time. Defaults to 4. Has no effect on other
+    * data sinks, which write one image at a time.
+    *
+    * @param maxWrites most outstanding writes
+    */
+   public void setMaxOutstandingWrites(int maxWrites) {
+      if (maxWrites < 1) {
+         throw new RuntimeException("Max outstanding writes must be at least 1");
+      }
+      maxOutstandingWrites_ = maxWrites;
+   }
+
+   public int getMaxOutstandingWrites() {
+      return maxOutstandingWrites_;
+   }
+
+   public PixelBufferPool getPixelBufferPool() {
+      return pixelBufferPool_;
+   }
+
+   @Override
+   public void releaseImage(TaggedImage image) {
+      PixelBufferPool pool = pixelBufferPool_;
+      if (pool == null || image == null) {
+         return;
+      }
+      synchronized (pixelReferences_) {
+         Integer references = pixelReferences_.get(image.pix);
+         if (references != null && references > 1) {
+            // Something else still holds it
+            pixelReferences_.put(image.pix, references - 1);
+            return;
+         }
+         pixelReferences_.remove(image.pix);
+      }
+      pool.release(image.pix);
+   }
+
+   @Override
+   public void retainImage(TaggedImage image, int holders) {
+      if (pixelBufferPool_ == null || image == null || image.pix == null || holders < 1) {
+         return;
+      }
+      synchronized (pixelReferences_) {
+         Integer references = pixelReferences_.get(image.pix);
+         pixelReferences_.put(image.pix, (references == null ? 1 : references) + holders);
+      }
+   }
+
+   /**
+    * Also send every image to another data sink, which saves on its own thread, from its
+    * own queue, so that a slow sink doesn't hold up the others (unless its policy is to
+    * block). The data sink finished notification is posted once all sinks are finished,
+    * but image saved notifications are only posted for the main data sink. Must be called
+    * before the acquisition starts, and the acquisition must have a main data sink.
+    *
+    * @param sink the additional sink
+    * @param policy what to do when the sink falls behind and its queue is full
+    */
+   public void addDataSink(AcqEngJDataSink sink, DataSinkOverflowPolicy policy) {
+      addDataSink(sink, policy, IMAGE_QUEUE_SIZE, DEFAULT_SPILL_CAPACITY_BYTES);
+   }
+
+   /**
+    * @param queueSize most images waiting for the sink in memory
+    * @param spillCapacityBytes size of the spill file, for the SPILL policy
+    * @see #addDataSink(AcqEngJDataSink, DataSinkOverflowPolicy)
+    */
+   public void addDataSink(AcqEngJDataSink sink, DataSinkOverflowPolicy policy,
+                           int queueSize, long spillCapacityBytes) {
+      if (started_) {
+         throw new RuntimeException("Cannot add data sink after acquisiton started");
+      }
+      if (dataSink_ == null) {
+         throw new RuntimeException("Additional data sinks need a main data sink");
+      }
+      DataSinkLane lane = new DataSinkLane(sink, policy, queueSize, spillCapacityBytes);
+      dataSinkLanes_.add(lane);
+      if (summaryMetadata_ != null) {
+         initializeDataSink(sink);
+      }
+   }
+
+   /**
+    * Read the actual positions of stages on a background thread while the acquisition
+    * runs, and add their positions at the time of each image to its metadata. See
+    * {@link StagePositionSampler}. Must be set before the acquisition starts. Off by
+    * default.
+    *
+    * @param periodMs time between readings, or 0 to turn sampling off
+    * @param devices stages to read. If none are given, the core XY stage and focus
+    */
+   public void setStagePositionSampling(long periodMs, String... devices) {
+      if (started_) {
+         throw new RuntimeException("Cannot change stage sampling after acquisiton started");
+      }
+      if (periodMs < 0) {
+         throw new RuntimeException("Stage position sampling period can't be negative");
+      }
+      stageSamplingPeriodMs_ = periodMs;
+      stageSamplingDevices_ = devices.clone();
+   }
+
+   /**
+    * Sampler of stage positions, or null if stage positions aren't sampled.
+    */
+   public StagePositionSampler getStagePositionSampler() {
+      return stagePositionSampler_;
+   }
+
+   /**
+    * Add metadata to images, and pass them on, on a separate thread for each camera
+    * rather than on the acquisition engine's thread, so that the images of several
+    * cameras acquired at once are handled in parallel. The images of each camera stay in
+    * order, but those of different cameras may be interleaved differently than they
+    * were acquired. Must be set before the acquisition starts. Off by default.
+    */
+   public void setParallelCameraLanes(boolean parallel) {
+      if (started_) {
+         throw new RuntimeException("Cannot change camera lanes after acquisiton started");
+      }
+      parallelCameraLanes_ = parallel;
+   }
+
+   /**
+    * Send the images of the given camera through their own chain of image processors to
+    * their own data sink, rather than to the acquisition's main output, in a lane of
+    * their own (see {@link #setParallelCameraLanes(boolean)}). The data sink finished
+    * notification is posted once this sink is finished too. Must be called before the
+    * acquisition starts.
+    *
+    * @param cameraDeviceName camera whose images go to the lane
+    * @param sink where the images of the camera are saved
+    * @param processors processors applied to the images of the camera, in order
+    */
+   public void addCameraLane(String cameraDeviceName, AcqEngJDataSink sink,
+                             TaggedImageProcessor... processors) {
+      if (started_) {
+         throw new RuntimeException("Cannot add camera lane after acquisiton started");
+      }
+      if (sink == null) {
+         throw new RuntimeException("Camera lane needs a data sink");
+      }
+      CameraLane lane = new CameraLane(cameraDeviceName, sink, Arrays.asList(processors),
+            this, imageQueueFrameLimit_);
+      if (cameraLanes_.putIfAbsent(cameraDeviceName, lane) != null) {
+         throw new RuntimeException("Camera " + cameraDeviceName + " already has a lane");
+      }
+      if (summaryMetadata_ != null) {
+         initializeDataSink(sink);
+      }
+   }
+
+   /**
+    * Lane the acquisition engine hands images of the given camera to, or null if they
+    * are to be handled on the engine's thread.
+    */
+   public CameraLane getCameraLane(String cameraDeviceName) {
+      CameraLane lane = cameraLanes_.get(cameraDeviceName);
+      if (lane != null || !parallelCameraLanes_ || cameraDeviceName == null) {
+         return lane;
+      }
+      return cameraLanes_.computeIfAbsent(cameraDeviceName, CameraLane::new);
+   }
+
+   /**
+    * Number of images an additional data sink skipped because it was behind.
+    */
+   public long getDroppedImageCount(AcqEngJDataSink sink) {
+      for (DataSinkLane lane : dataSinkLanes_) {
+         if (lane.getSink() == sink) {
+            return lane.getDroppedCount();
+         }
+      }
+      return 0;
+   }
+
+   /**
+    * When the queue from the engine to the image processors or data sink is full, write
+    * further images to a memory-mapped ring file rather than blocking the engine, and
+    * move them back onto the queue, in order, as the sink catches up. This keeps short
+    * slowdowns of the sink (e.g. a network drive) from stalling the engine until the
+    * camera's sequence buffer overflows. The engine only blocks once the file is full
+    * too. Must be set before the acquisition starts. Off by default.
+    *
+    * @param directory where to create the file, or null for the system temp directory
+    * @param capacityBytes size of the file, at most Integer.MAX_VALUE
+    */
+   public void setSpillToDisk(File directory, long capacityBytes) {
+      if (started_) {
+         throw new RuntimeException("Cannot set spill to disk after acquisiton started");
+      }
+      if (spillBuffer_ != null) {
+         spillBuffer_.close();
+      }
+      spillBuffer_ = new SpillBuffer(firstDequeue_, directory, capacityBytes);
+   }
+
+   /**
+    * Number of images currently spilled to disk, 0 if spilling isn't enabled.
+    */
+   public int getSpilledImageCount() {
+      SpillBuffer spill = spillBuffer_;
+      return spill == null ? 0 : spill.size();
+   }
+
+   /**
+    * Most bytes of the spill file that have been in use at once, 0 if spilling isn't
+    * enabled.
+    */
+   public long getSpillHighWaterBytes() {
+      SpillBuffer spill = spillBuffer_;
+      return spill == null ? 0 : spill.getHighWaterBytes();
+   }
+
+   /**
+    * Timings and counts of each phase of the acquisition so far (hooks, hardware
+    * control, camera, metadata and output). Can be read while the acquisition runs.
+    */
+   public MetricsRegistry getMetrics() {
+      return metrics_;
+   }
+
+   /**
+    * Codec for the compact binary encoding of the metadata of this acquisition's images,
+    * for sinks that implement {@link org.micromanager.acqj.api.CompactMetadataDataSink}.
+    */
+   public MetadataCodec getMetadataCodec() {
+      return metadataCodec_;
+   }
+
+   /**
+    * Record a hardware sequence of the acquisition, so that its images only need to be
+    * tagged with its id and their index in it. Called by the acquisition engine.
+    *
+    * @param sequence event holding the sequence
+    * @return id of the sequence, counting up from 0
+    */
+   public int addEventSequence(AcquisitionEvent sequence) {
+      int id = sequenceCount_.getAndIncrement();
+      eventSequences_.put(id, sequence);
+      return id;
+   }
+
+   /**
+    * Hardware sequence with the given id (see {@link AcqEngMetadata#getSequenceId}), or
+    * null if there is none.
+    */
+   public AcquisitionEvent getEventSequence(int sequenceId) {
+      return eventSequences_.get(sequenceId);
+   }
+
+   /**
+    * Descriptions of the hardware sequences of the acquisition so far, keyed by id. Since
+    * images only hold the id of their sequence, data sinks that want to keep the
+    * descriptions should save this alongside the images, e.g. when finishing.
+    */
+   public JSONObject getEventSequencesJSON() {
+      JSONObject json = new JSONObject();
+      try {
+         for (Map.Entry<Integer, AcquisitionEvent> sequence : eventSequences_.entrySet()) {
+            json.put(sequence.getKey().toString(), sequence.getValue().toJSON());
+         }
+      } catch (JSONException e) {
+         throw new RuntimeException(e);
+      }
+      return json;
+   }
+
+   /**
+    * Set the maximum number of events that can be in flight on the acquisition engine
+    * thread at once. With the default of 1, each event must finish before the next one
+    * is pulled from the event iterator. Larger values let the engine prepare the next
+    * event while the current one is executing, which removes per-event dead time for
+    * fast acquisitions with many events.
+    *
+    * @param depth maximum number of events in flight, must be at least 1
+    */
+   public void setEventPipelineDepth(int depth) {
+      if (depth < 1) {
+         throw new RuntimeException("Event pipeline depth must be at least 1");
+      }
+      eventPipelineDepth_ = depth;
+   }
+
+   public int getEventPipelineDepth() {
+      return eventPipelineDepth_;
+   }
+
+   /**
+    * By default, the engine changes hardware one device type at a time (other stages,
+    * then XY stage, channel, exposure, SLM, additional properties), waiting for each to
+    * finish before moving on to the next. When set to true, all of these commands are
+    * sent first and then waited on together, so e.g. an XY move and a filter wheel change
+    * overlap. Devices that must not move at the same time can be ordered with
+    * {@link #addHardwareOrderingConstraint(String, String)}. The z drive is always moved
+    * after everything else, so that autofocus hooks still run in between.
+    *
+    * @param concurrent true to send hardware commands concurrently
+    */
+   public void setConcurrentHardwareMoves(boolean concurrent) {
+      concurrentHardwareMoves_ = concurrent;
+   }
+
+   public boolean isConcurrentHardwareMoves() {
+      return concurrentHardwareMoves_;
+   }
+
+   /**
+    * When hardware moves are concurrent, require that any command to one device has
+    * finished before a command is sent to another (e.g. filter wheel before shutter).
+    *
+    * @param firstDevice label of the device that must finish first
+    * @param thenDevice label of the device that must wait for it
+    */
+   public void addHardwareOrderingConstraint(String firstDevice, String thenDevice) {
+      hardwareOrderingConstraints_.add(new String[] {firstDevice, thenDevice});
+   }
+
+   public List<String[]> getHardwareOrderingConstraints() {
+      return hardwareOrderingConstraints_;
+   }
+
+   /**
+    * Set how hardware commands that throw an exception are retried. Defaults to
+    * {@link HardwareRetryPolicy#DEFAULT}.
+    */
+   public void setHardwareRetryPolicy(HardwareRetryPolicy policy) {
+      hardwareRetryPolicy_ = policy;
+   }
+
+   /**
+    * Set how commands to one device, or one step of hardware control (e.g. "Moving XY
+    * stage"), are retried, overriding the acquisition-wide policy.
+    *
+    * @param deviceOrStep device label or step name
+    * @param policy retry policy, or null to go back to the acquisition-wide one
+    */
+   public void setHardwareRetryPolicy(String deviceOrStep, HardwareRetryPolicy policy) {
+      if (policy == null) {
+         hardwareRetryPolicies_.remove(deviceOrStep);
+      } else {
+         hardwareRetryPolicies_.put(deviceOrStep, policy);
+      }
+   }
+
+   /**
+    * Retry policy for a step of hardware control: the one set for the step if there is
+    * one, otherwise the one set for the first of its devices that has one, otherwise the
+    * acquisition-wide one.
+    */
+   public HardwareRetryPolicy getHardwareRetryPolicy(String step, String... devices) {
+      HardwareRetryPolicy policy = hardwareRetryPolicies_.get(step);
+      for (int i = 0; policy == null && i < devices.length; i++) {
+         policy = hardwareRetryPolicies_.get(devices[i]);
+      }
+      return policy == null ? hardwareRetryPolicy_ : policy;
+   }
+
+   /**
+    * Set how many failed attempts each device is allowed during the acquisition before
+    * its commands are no longer retried. A successful command to the device restores its
+    * budget. By default, there is no limit.
+    *
+    * @param failures number of failed attempts allowed per device
+    */
+   public void setDeviceFailureBudget(int failures) {
+      if (failures < 1) {
+         throw new RuntimeException("Device failure budget must be at least 1");
+      }
+      deviceFailureBudget_ = failures;
+   }
+
+   public int getDeviceFailureBudget() {
+      return deviceFailureBudget_;
+   }
+
    public boolean isAbortRequested() {
       return abortRequested_.getCount() == 0;
    }
@@ -176,7 +697,7 @@ public class Acquisition implements AcquisitionAPI {
       if (this.isPaused()) {
          this.setPaused(false);
       }
-      Engine.getInstance().finishAcquisition(this);
+      getEngine().finishAcquisition(this);
    }
 
    private void addToSummaryMetadata(JSONObject summaryMetadata) {
@@ -217,10 +738,23 @@ public class Acquisition implements AcquisitionAPI {
 
    @Override
    public Future submitEventIterator(Iterator<AcquisitionEvent> evt) {
+      return submitEventIterator(evt, 0);
+   }
+
+   /**
+    * Submit events, interleaving them with those of any other iterators the engine is
+    * still working through rather than waiting for those to finish. Iterators with a
+    * higher priority go first; those of equal priority take turns.
+    *
+    * @param evt events to acquire
+    * @param priority priority of these events relative to other iterators (default 0)
+    * @return a Future that can be gotten once all the events are executed
+    */
+   public Future submitEventIterator(Iterator<AcquisitionEvent> evt, int priority) {
       if (!started_) {
          start();
       }
-      return Engine.getInstance().submitEventIterator(evt);
+      return getEngine().submitEventIterator(evt, priority);
    }
 
    private void startSavingThread() {
@@ -248,7 +782,9 @@ public class Acquisition implements AcquisitionAPI {
                   if (img.pix == null && img.tags == null) {
                      break;
                   }
-                  saveImage(img);
+                  if (saveImages(img, firstDequeue_)) {
+                     break;
+                  }
                } else {
                   // get the last processor
                   LinkedBlockingDeque<TaggedImage> dequeue = processorOutputQueues_.get(
@@ -261,10 +797,13 @@ public class Acquisition implements AcquisitionAPI {
                      if (img.pix == null && img.tags == null) {
                         break;
                      }
-                     saveImage(img);
+                     boolean finished = saveImages(img, dequeue);
                      if (debugMode_) {
                         core_.logMessage("Finished saving image");
                      }
+                     if (finished) {
+                        break;
+                     }
                   }
                }
             }
@@ -275,6 +814,11 @@ public class Acquisition implements AcquisitionAPI {
             ex.printStackTrace();
             this.abort(ex);
          } finally {
+            // Nothing more comes through the spill file, whether or not saving failed
+            SpillBuffer spill = spillBuffer_;
+            if (spill != null) {
+               spill.close();
+            }
             // Signal the storage to shutdown and then shut down the executor
             saveImage(new TaggedImage(null, null));
             savingExecutor_.shutdown();
@@ -288,7 +832,7 @@ public class Acquisition implements AcquisitionAPI {
          throw new RuntimeException("Cannot add processor after acquisiton started");
       }
       imageProcessors_.add(p);
-      processorOutputQueues_.put(p, new LinkedBlockingDeque<TaggedImage>(IMAGE_QUEUE_SIZE));
+      processorOutputQueues_.put(p, new ImageTransferQueue(imageQueueFrameLimit_, imageQueueByteBudget_));
 
       if (imageProcessors_.size() == 1) {
          p.setAcqAndQueues(this, firstDequeue_, processorOutputQueues_.get(p));
@@ -366,25 +910,132 @@ public class Acquisition implements AcquisitionAPI {
             //It could be null if not using saving and viewing and diverting with custom processor
             dataSink_.initialize(this, summaryMetadata);
          }
+         for (DataSinkLane lane : dataSinkLanes_) {
+            initializeDataSink(lane.getSink());
+         }
+         for (CameraLane lane : cameraLanes_.values()) {
+            initializeDataSink(lane.getSink());
+         }
+      }
+   }
+
+   private void initializeDataSink(AcqEngJDataSink sink) {
+      try {
+         // Each sink gets its own copy in case it modifies it
+         sink.initialize(this, new JSONObject(summaryMetadata_.toString()));
+      } catch (JSONException ex) {
+         throw new RuntimeException(ex);
       }
    }
 
    public void  start() {
+      // Image times are converted to wall clock time from here
+      MetadataClock.resynchronize();
+      if (stageSamplingPeriodMs_ > 0) {
+         CMMCore core = getCore() == null ? Engine.getCore() : getCore();
+         stagePositionSampler_ = new StagePositionSampler(core, stageSamplingPeriodMs_,
+               stageSamplingDevices_);
+         stagePositionSampler_.start();
+      }
       if (dataSink_ != null) {
+         for (DataSinkLane lane : dataSinkLanes_) {
+            lane.start(this::abort);
+         }
          startSavingThread();
       }
+      for (CameraLane lane : cameraLanes_.values()) {
+         lane.start(this::abort);
+      }
       postNotification(AcqNotification.createAcqStartedNotification());
       started_ = true;
    }
 
 
+   /**
+    * Save the given image, along with whatever images are already waiting behind it, up
+    * to the saving batch size.
+    *
+    * @return true if the finishing signal was among the waiting images. It isn't saved
+    */
+   private boolean saveImages(TaggedImage first, BlockingDeque<TaggedImage> queue) {
+      int batchSize = imageSavingBatchSize_;
+      if (batchSize <= 1 || dataSink_ instanceof AsyncAcqEngJDataSink) {
+         // Asynchronous sinks already overlap consecutive writes
+         saveImage(first);
+         return false;
+      }
+      List<TaggedImage> batch = new ArrayList<>(Math.min(batchSize, queue.size() + 1));
+      batch.add(first);
+      addToDataSinkLanes(first);
+      boolean finished = false;
+      TaggedImage next;
+      while (batch.size() < batchSize && (next = queue.pollFirst()) != null) {
+         if (next.pix == null && next.tags == null) {
+            finished = true;
+            break;
+         }
+         batch.add(next);
+         addToDataSinkLanes(next);
+      }
+      long start = System.nanoTime();
+      //this method doesn't return until all images have been written to disk
+      List<Object> imageSaveDescriptors = dataSink_.putImages(batch);
+      metrics_.recordSince("output.putImages", start);
+      List<String> descriptors = new ArrayList<>(batch.size());
+      for (int i = 0; i < batch.size(); i++) {
+         Object descriptor = imageSaveDescriptors == null || i >= imageSaveDescriptors.size()
+               ? null : imageSaveDescriptors.get(i);
+         descriptors.add(descriptor == null ? "" : descriptor.toString());
+      }
+      postNotification(AcqNotification.createImagesSavedNotification(descriptors));
+      return finished;
+   }
+
    /**
     * Called by acquisition engine to save an image.
     */
    private void saveImage(TaggedImage image) {
       if (image.tags == null && image.pix == null) {
+         addToDataSinkLanes(image);
+         finishOutstandingWrites();
          dataSink_.finish();
+         try {
+            for (DataSinkLane lane : dataSinkLanes_) {
+               lane.awaitFinished();
+            }
+            for (CameraLane lane : cameraLanes_.values()) {
+               lane.awaitFinished();
+            }
+         } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+         }
          postNotification(AcqNotification.createDataSinkFinishedNotification());
+         return;
+      }
+      addToDataSinkLanes(image);
+      if (dataSink_ instanceof AsyncAcqEngJDataSink) {
+         // Forget writes that are already done, then wait for a free slot
+         while (!outstandingWrites_.isEmpty() && outstandingWrites_.peekFirst().isDone()) {
+            awaitOldestWrite();
+         }
+         while (outstandingWrites_.size() >= maxOutstandingWrites_) {
+            awaitOldestWrite();
+         }
+         long start = System.nanoTime();
+         CompletableFuture<Object> write = ((AsyncAcqEngJDataSink) dataSink_)
+               .putImageAsync(image);
+         write.whenComplete((descriptor, ex) -> metrics_.recordSince("output.write", start));
+         outstandingWrites_.addLast(write);
+         // Notify as soon as the write and all those before it are done, without waiting
+         // for the next image to come in. Failed writes are rethrown by awaitOldestWrite
+         savedNotifications_ = savedNotifications_.thenCompose(v ->
+               write.handle((descriptor, ex) -> {
+                  if (ex == null) {
+                     postNotification(AcqNotification.createImageSavedNotification(
+                           descriptor == null ? "" : descriptor.toString()));
+                  }
+                  return null;
+               }));
       } else {
          //this method doesn't return until all images have been written to disk
          Object imageSaveDescriptor = dataSink_.putImage(image);
@@ -393,14 +1044,75 @@ public class Acquisition implements AcquisitionAPI {
       }
    }
 
+   /**
+    * Hand the image to every additional data sink. Pooled pixels are only released once
+    * every sink that got this very image has released them.
+    */
+   private void addToDataSinkLanes(TaggedImage image) {
+      if (dataSinkLanes_.isEmpty()) {
+         return;
+      }
+      boolean pooled = pixelBufferPool_ != null && image.pix != null;
+      if (pooled) {
+         retainImage(image, dataSinkLanes_.size());
+      }
+      for (DataSinkLane lane : dataSinkLanes_) {
+         boolean holdsImage;
+         try {
+            holdsImage = lane.add(image);
+         } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+         }
+         if (pooled && !holdsImage) {
+            releaseImage(image);
+         }
+      }
+   }
+
+   /**
+    * Wait for the oldest outstanding write of an asynchronous sink. Rethrows if the
+    * write failed.
+    */
+   private void awaitOldestWrite() {
+      outstandingWrites_.pollFirst().join();
+   }
+
+   /**
+    * Wait for all outstanding writes of an asynchronous sink, so that the sink is only
+    * finished once they are done, even if some of them failed, and for their
+    * notifications to be posted.
+    */
+   private void finishOutstandingWrites() {
+      while (!outstandingWrites_.isEmpty()) {
+         try {
+            awaitOldestWrite();
+         } catch (CompletionException | CancellationException e) {
+            System.err.println(e);
+            e.printStackTrace();
+         }
+      }
+      savedNotifications_.join();
+   }
+
    public long getStartTimeMs() {
       return startTimeMs_;
    }
 
    public void setStartTimeMs(long time) {
+      // Keep a System.nanoTime equivalent for precise scheduling of events
+      startTimeNanos_ = System.nanoTime()
+            - TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis() - time);
       startTimeMs_ = time;
    }
 
+   /**
+    * Start time of the acquisition in System.nanoTime terms. Only meaningful once
+    * {@link #getStartTimeMs()} is no longer -1.
+    */
+   public long getStartTimeNanos() {
+      return startTimeNanos_;
+   }
+
    public boolean isPaused() {
       return paused_;
    }
@@ -459,16 +1171,37 @@ public class Acquisition implements AcquisitionAPI {
       try {
          if (ti.tags == null && ti.pix == null) {
             //this is a shutdown signal
+            // Images still on their way through camera lanes come first
+            for (CameraLane lane : cameraLanes_.values()) {
+               lane.finish();
+            }
+            StagePositionSampler sampler = stagePositionSampler_;
+            if (sampler != null) {
+               sampler.stop();
+            }
             eventsFinished_.countDown();
          }
-         firstDequeue_.putLast(ti);
+         PixelBufferPool pool = pixelBufferPool_;
+         if (pool != null && ti.pix != null) {
+            ti = new TaggedImage(pool.copyOf(ti.pix), ti.tags);
+         }
+         long start = System.nanoTime();
+         SpillBuffer spill = spillBuffer_;
+         if (spill == null) {
+            firstDequeue_.putLast(ti);
+         } else if (spill.put(ti)) {
+            metrics_.increment("output.spilled");
+            // Comes back from the file in a new array
+            releaseImage(ti);
+         }
+         metrics_.recordSince("output.addToOutput", start);
       } catch (InterruptedException ex) {
          throw new RuntimeException(ex);
       }
    }
 
    public void finish() {
-      Engine.getInstance().finishAcquisition(this);
+      getEngine().finishAcquisition(this);
    }
 
    @Override
@@ -485,14 +1218,69 @@ public class Acquisition implements AcquisitionAPI {
       }
    }
 
+   /**
+    * Bound the queues that pass images from the engine to image processors and the data
+    * sink, both by number of images and by total bytes of pixels per queue. Adding an
+    * image blocks while either limit would be exceeded. Can be changed at any time. By
+    * default, each queue holds up to 30 images of any size.
+    *
+    * @param maxFrames most images each queue holds
+    * @param maxBytes most bytes of pixels each queue holds, or Long.MAX_VALUE for no limit.
+    *                 A single image bigger than this is still let through on its own
+    */
+   public void setImageTransferQueueLimits(int maxFrames, long maxBytes) {
+      if (maxFrames < 1 || maxBytes < 1) {
+         throw new RuntimeException("Image transfer queue limits must be at least 1");
+      }
+      imageQueueFrameLimit_ = maxFrames;
+      imageQueueByteBudget_ = maxBytes;
+      firstDequeue_.setLimits(maxFrames, maxBytes);
+      for (ImageTransferQueue queue : processorOutputQueues_.values()) {
+         queue.setLimits(maxFrames, maxBytes);
+      }
+   }
+
    public int getImageTransferQueueSize() {
-      return IMAGE_QUEUE_SIZE;
+      return imageQueueFrameLimit_;
+   }
+
+   public long getImageTransferQueueByteBudget() {
+      return imageQueueByteBudget_;
    }
 
    public int getImageTransferQueueCount() {
       return firstDequeue_.size();
    }
 
+   /**
+    * Bytes of pixels waiting in the queue from the engine to the first image processor
+    * (or the data sink, if there are none).
+    */
+   public long getImageTransferQueueBytes() {
+      return firstDequeue_.getBytes();
+   }
+
+   /**
+    * Most images that have been waiting in the queue from the engine at once.
+    */
+   public int getImageTransferQueueHighWaterCount() {
+      return firstDequeue_.getHighWaterFrames();
+   }
+
+   /**
+    * Most bytes of pixels that have been waiting in the queue from the engine at once.
+    */
+   public long getImageTransferQueueHighWaterBytes() {
+      return firstDequeue_.getHighWaterBytes();
+   }
+
+   /**
+    * Queue the given image processor puts its output on, to check its occupancy.
+    */
+   public ImageTransferQueue getProcessorOutputQueue(TaggedImageProcessor processor) {
+      return processorOutputQueues_.get(processor);
+   }
+
    public void blockUnlessAborted(long timeoutMs) {
       try {
          abortRequested_.await(timeoutMs, TimeUnit.MILLISECONDS);
@@ -27,6 +27,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
+import mmcorej.CMMCore;
 import mmcorej.org.json.JSONArray;
 import mmcorej.org.json.JSONException;
 import mmcorej.org.json.JSONObject;
@@ -144,6 +145,32 @@ public class AcquisitionEvent {
       }
    }
 
+   /**
+    * Constructor for a sequence whose sequenced device types are already known, as
+    * worked out by the engine while it built up the sequence. Saves another pass over
+    * the events.
+    *
+    * @param sequence events to run as one hardware sequence
+    * @param xySequenced whether the XY stage moves during the sequence
+    * @param zSequenced whether the z stage moves during the sequence
+    * @param exposureSequenced whether the exposure changes during the sequence
+    * @param configGroupSequenced whether the config preset changes during the sequence
+    */
+   public AcquisitionEvent(List<AcquisitionEvent> sequence, boolean xySequenced,
+                           boolean zSequenced, boolean exposureSequenced,
+                           boolean configGroupSequenced) {
+      acquisition_ = sequence.get(0).acquisition_;
+      miniumumStartTimeMs_ = sequence.get(0).miniumumStartTimeMs_;
+      sequence_ = new ArrayList<>(sequence);
+      xySequenced_ = xySequenced;
+      zSequenced_ = zSequenced;
+      exposureSequenced_ = exposureSequenced;
+      configGroupSequenced_ = configGroupSequenced;
+      if (sequence_.get(0).exposure_ != null && !exposureSequenced_) {
+         exposure_ = sequence.get(0).exposure_;
+      }
+   }
+
    public AcquisitionEvent copy() {
       AcquisitionEvent e = new AcquisitionEvent(this.acquisition_);
       e.axisPositions_ = (HashMap<String, Object>) axisPositions_.clone();
@@ -651,6 +678,15 @@ public class AcquisitionEvent {
       return zPosition_;
    }
 
+   /**
+    * Get the minimum start time in ms relative to when the acq started.
+    *
+    * @return minimum start time, or null if the event has none
+    */
+   public Long getMinimumStartTime() {
+      return miniumumStartTimeMs_;
+   }
+
    /**
     * Get the minimum start time in system time.
     *
@@ -692,8 +728,9 @@ public class AcquisitionEvent {
       if (xPosition_ == null || yPosition_ == null) {
          throw new RuntimeException("xy position undefined");
       }
-      int width = (int) Engine.getCore().getImageWidth();
-      int height = (int) Engine.getCore().getImageHeight();
+      CMMCore core = acquisition_.getCore();
+      int width = (int) core.getImageWidth();
+      int height = (int) core.getImageHeight();
       Integer overlapX = AcqEngMetadata.getPixelOverlapX(acquisition_.getSummaryMetadata());
       Integer overlapY = AcqEngMetadata.getPixelOverlapY(acquisition_.getSummaryMetadata());
       final int displayTileWidth = width - (overlapX != null ? overlapX : 0);
@@ -705,7 +742,7 @@ public class AcquisitionEvent {
       displayedTileCorners[3] = new Point2D.Double();
       //this AT is centered at the stage position, becuase there no global translation relevant
       // to a single stage position
-      AffineTransform transform = AffineTransformUtils.getAffineTransform(
+      AffineTransform transform = AffineTransformUtils.getAffineTransform(core,
               xPosition_, yPosition_);
       transform.transform(new Point2D.Double(-displayTileWidth / 2,
             -displayTileHeight / 2), displayedTileCorners[0]);
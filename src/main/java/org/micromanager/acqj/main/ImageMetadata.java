@@ -0,0 +1,404 @@
+package org.micromanager.acqj.main;
+
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import mmcorej.org.json.JSONArray;
+import mmcorej.org.json.JSONException;
+import mmcorej.org.json.JSONObject;
+import org.micromanager.acqj.internal.StagePositionSampler;
+import org.micromanager.acqj.util.MetadataClock;
+
+/**
+ * Metadata of an image, as added by {@link AcqEngMetadata#createImageMetadata}. The
+ * standard acquisition engine fields (axes, intended and sampled stage positions, pixel
+ * size, exposure, times) are held as plain fields, and only written into JSON the first time
+ * something reads the JSON, which usually happens on the saving thread rather than the
+ * acquisition engine thread.
+ *
+ * <p>This is a JSONObject wrapping the metadata the core attached to the image: every
+ * JSONObject method works as it would on the core's metadata with the standard fields
+ * added. Reading or writing keys other than the standard ones doesn't require writing the
+ * standard fields, nor do the axis methods of {@link AcqEngMetadata}. The one gap is
+ * indented printing (toString(int)) of another JSONObject containing this one, which
+ * the JSON library doesn't let subclasses take part in.
+ *
+ * <p>Writing the standard fields can happen on whichever thread first reads them, so
+ * methods that change the JSON hold the same lock, and don't race with it. Beyond that,
+ * as with any JSONObject, the metadata shouldn't be changed on one thread while another
+ * reads it.
+ */
+public class ImageMetadata extends JSONObject {
+
+   private static final Set<String> STANDARD_KEYS = new HashSet<>(Arrays.asList(
+         AcqEngMetadata.PIX_SIZE, AcqEngMetadata.ELAPSED_TIME_MS, AcqEngMetadata.TIME,
+         AcqEngMetadata.AXES, AcqEngMetadata.POS_NAME, AcqEngMetadata.EXPOSURE,
+         AcqEngMetadata.SEQUENCE_ID,
+         AcqEngMetadata.SEQUENCE_INDEX, AcqEngMetadata.X_UM, AcqEngMetadata.Y_UM,
+         AcqEngMetadata.Z_UM));
+
+   private final JSONObject base_;
+   private volatile boolean materialized_ = false;
+   // Below are only used until the JSON is written. Guarded by this
+   private double pixelSizeUm_;
+   private long elapsedTimeMs_;
+   private long imageTimeMs_;
+   private final LinkedHashMap<String, Object> axes_ = new LinkedHashMap<>();
+   private Double stageXIntended_ = null;
+   private Double stageYIntended_ = null;
+   private Double stageZIntended_ = null;
+   private String positionName_ = null;
+   private final LinkedHashMap<String, Double> stagePositionsIntended_ = new LinkedHashMap<>();
+   private double exposure_;
+   private int sequenceId_ = -1;
+   private int sequenceIndex_ = -1;
+   private StagePositionSampler sampler_ = null;
+   private long frameNanos_;
+
+   /**
+    * @param base metadata of the image from the core, which the standard fields are
+    *             added to once needed
+    */
+   ImageMetadata(JSONObject base) {
+      base_ = base;
+   }
+
+   void setTimes(long elapsedTimeMs, long imageTimeMs) {
+      elapsedTimeMs_ = elapsedTimeMs;
+      imageTimeMs_ = imageTimeMs;
+   }
+
+   void setPixelSizeUm(double pixelSizeUm) {
+      pixelSizeUm_ = pixelSizeUm;
+   }
+
+   void setExposure(double exposure) {
+      exposure_ = exposure;
+   }
+
+   void setStageXYIntended(double x, double y) {
+      stageXIntended_ = x;
+      stageYIntended_ = y;
+   }
+
+   void setStageZIntended(double z) {
+      stageZIntended_ = z;
+   }
+
+   void setPositionName(String name) {
+      positionName_ = name;
+   }
+
+   void setStagePositionIntended(String stage, Double position) {
+      stagePositionsIntended_.put(stage, position);
+   }
+
+   void setStagePositions(StagePositionSampler sampler, long frameNanos) {
+      sampler_ = sampler;
+      frameNanos_ = frameNanos;
+   }
+
+   synchronized void setSequencePosition(int sequenceId, int index) {
+      if (materialized_) {
+         AcqEngMetadata.setSequencePosition(base_, sequenceId, index);
+         return;
+      }
+      sequenceId_ = sequenceId;
+      sequenceIndex_ = index;
+   }
+
+   /**
+    * Metadata of the image from the core, with the standard fields written into it.
+    */
+   public JSONObject getJSON() {
+      materialize();
+      return base_;
+   }
+
+   public synchronized void setAxisPosition(String axis, Object position) {
+      if (materialized_) {
+         AcqEngMetadata.setAxisPosition(base_, axis, position);
+         return;
+      }
+      if (position == null && axes_.containsKey(axis)) {
+         axes_.remove(axis);
+         return;
+      }
+      if (!(position instanceof String || position instanceof Integer)) {
+         throw new RuntimeException("position must be String or Integer");
+      }
+      axes_.put(axis, position);
+   }
+
+   public synchronized HashMap<String, Object> getAxes() {
+      return materialized_ ? AcqEngMetadata.getAxes(base_) : new HashMap<>(axes_);
+   }
+
+   public synchronized boolean hasAxis(String axis) {
+      return materialized_ ? AcqEngMetadata.hasAxis(base_, axis) : axes_.containsKey(axis);
+   }
+
+   public synchronized Object getAxisPosition(String axis) {
+      if (materialized_) {
+         return AcqEngMetadata.getAxisPosition(base_, axis);
+      }
+      if (!axes_.containsKey(axis)) {
+         throw new RuntimeException("couldnt create axes");
+      }
+      return axes_.get(axis);
+   }
+
+   private synchronized void materialize() {
+      if (materialized_) {
+         return;
+      }
+      try {
+         AcqEngMetadata.setPixelSizeUm(base_, pixelSizeUm_);
+         base_.put(AcqEngMetadata.ELAPSED_TIME_MS, elapsedTimeMs_);
+         AcqEngMetadata.setImageTime(base_, MetadataClock.formatImageTime(imageTimeMs_));
+         JSONObject axes = new JSONObject();
+         for (Map.Entry<String, Object> axis : axes_.entrySet()) {
+            axes.put(axis.getKey(), axis.getValue());
+         }
+         base_.put(AcqEngMetadata.AXES, axes);
+         if (stageXIntended_ != null && stageYIntended_ != null) {
+            AcqEngMetadata.setStageXIntended(base_, stageXIntended_);
+            AcqEngMetadata.setStageYIntended(base_, stageYIntended_);
+         }
+         if (positionName_ != null) {
+            AcqEngMetadata.setPositionName(base_, positionName_);
+         }
+         if (stageZIntended_ != null) {
+            AcqEngMetadata.setStageZIntended(base_, stageZIntended_);
+         }
+         for (Map.Entry<String, Double> stage : stagePositionsIntended_.entrySet()) {
+            AcqEngMetadata.setStagePositionIntended(base_, stage.getKey(), stage.getValue());
+         }
+         if (sequenceId_ != -1) {
+            AcqEngMetadata.setSequencePosition(base_, sequenceId_, sequenceIndex_);
+         }
+         AcqEngMetadata.setExposure(base_, exposure_);
+         if (sampler_ != null) {
+            sampler_.addPositions(base_, frameNanos_);
+         }
+      } catch (JSONException e) {
+         throw new RuntimeException("Problem adding image metadata", e);
+      }
+      materialized_ = true;
+   }
+
+   /**
+    * The JSON to use for the given key, writing the standard fields first if it is one
+    * of them.
+    */
+   private JSONObject jsonFor(String key) {
+      if (!materialized_ && key != null && (STANDARD_KEYS.contains(key)
+            || key.endsWith(AcqEngMetadata.GENERIC_UM_INTENDED_SUFFIX)
+            || (sampler_ != null && key.endsWith(AcqEngMetadata.GENERIC_UM_SUFFIX)))) {
+         materialize();
+      }
+      return base_;
+   }
+
+   @Override
+   public synchronized JSONObject accumulate(String key, Object value) throws JSONException {
+      jsonFor(key).accumulate(key, value);
+      return this;
+   }
+
+   @Override
+   public Object get(String key) throws JSONException {
+      return jsonFor(key).get(key);
+   }
+
+   @Override
+   public boolean getBoolean(String key) throws JSONException {
+      return jsonFor(key).getBoolean(key);
+   }
+
+   @Override
+   public double getDouble(String key) throws JSONException {
+      return jsonFor(key).getDouble(key);
+   }
+
+   @Override
+   public int getInt(String key) throws JSONException {
+      return jsonFor(key).getInt(key);
+   }
+
+   @Override
+   public JSONArray getJSONArray(String key) throws JSONException {
+      return jsonFor(key).getJSONArray(key);
+   }
+
+   @Override
+   public JSONObject getJSONObject(String key) throws JSONException {
+      return jsonFor(key).getJSONObject(key);
+   }
+
+   @Override
+   public long getLong(String key) throws JSONException {
+      return jsonFor(key).getLong(key);
+   }
+
+   @Override
+   public String getString(String key) throws JSONException {
+      return jsonFor(key).getString(key);
+   }
+
+   @Override
+   public boolean has(String key) {
+      return jsonFor(key).has(key);
+   }
+
+   @Override
+   public boolean isNull(String key) {
+      return jsonFor(key).isNull(key);
+   }
+
+   @Override
+   public Iterator<String> keys() {
+      return getJSON().keys();
+   }
+
+   @Override
+   public int length() {
+      return getJSON().length();
+   }
+
+   @Override
+   public JSONArray names() {
+      return getJSON().names();
+   }
+
+   @Override
+   public Object opt(String key) {
+      return jsonFor(key).opt(key);
+   }
+
+   @Override
+   public boolean optBoolean(String key) {
+      return jsonFor(key).optBoolean(key);
+   }
+
+   @Override
+   public boolean optBoolean(String key, boolean defaultValue) {
+      return jsonFor(key).optBoolean(key, defaultValue);
+   }
+
+   @Override
+   public double optDouble(String key) {
+      return jsonFor(key).optDouble(key);
+   }
+
+   @Override
+   public double optDouble(String key, double defaultValue) {
+      return jsonFor(key).optDouble(key, defaultValue);
+   }
+
+   @Override
+   public int optInt(String key) {
+      return jsonFor(key).optInt(key);
+   }
+
+   @Override
+   public int optInt(String key, int defaultValue) {
+      return jsonFor(key).optInt(key, defaultValue);
+   }
+
+   @Override
+   public JSONArray optJSONArray(String key) {
+      return jsonFor(key).optJSONArray(key);
+   }
+
+   @Override
+   public JSONObject optJSONObject(String key) {
+      return jsonFor(key).optJSONObject(key);
+   }
+
+   @Override
+   public long optLong(String key) {
+      return jsonFor(key).optLong(key);
+   }
+
+   @Override
+   public long optLong(String key, long defaultValue) {
+      return jsonFor(key).optLong(key, defaultValue);
+   }
+
+   @Override
+   public String optString(String key) {
+      return jsonFor(key).optString(key);
+   }
+
+   @Override
+   public String optString(String key, String defaultValue) {
+      return jsonFor(key).optString(key, defaultValue);
+   }
+
+   @Override
+   public synchronized JSONObject put(String key, boolean value) throws JSONException {
+      jsonFor(key).put(key, value);
+      return this;
+   }
+
+   @Override
+   public synchronized JSONObject put(String key, double value) throws JSONException {
+      jsonFor(key).put(key, value);
+      return this;
+   }
+
+   @Override
+   public synchronized JSONObject put(String key, int value) throws JSONException {
+      jsonFor(key).put(key, value);
+      return this;
+   }
+
+   @Override
+   public synchronized JSONObject put(String key, long value) throws JSONException {
+      jsonFor(key).put(key, value);
+      return this;
+   }
+
+   @Override
+   public synchronized JSONObject put(String key, Object value) throws JSONException {
+      jsonFor(key).put(key, value);
+      return this;
+   }
+
+   @Override
+   public synchronized JSONObject putOpt(String key, Object value) throws JSONException {
+      jsonFor(key).putOpt(key, value);
+      return this;
+   }
+
+   @Override
+   public synchronized Object remove(String key) {
+      return jsonFor(key).remove(key);
+   }
+
+   @Override
+   public JSONArray toJSONArray(JSONArray names) throws JSONException {
+      return getJSON().toJSONArray(names);
+   }
+
+   @Override
+   public String toString() {
+      return getJSON().toString();
+   }
+
+   @Override
+   public String toString(int indentFactor) throws JSONException {
+      return getJSON().toString(indentFactor);
+   }
+
+   @Override
+   public Writer write(Writer writer) throws JSONException {
+      return getJSON().write(writer);
+   }
+}
@@ -0,0 +1,306 @@
+package org.micromanager.acqj.main;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import mmcorej.org.json.JSONArray;
+import mmcorej.org.json.JSONException;
+import mmcorej.org.json.JSONObject;
+
+/**
+ * Compact binary encoding of image metadata, for data sinks that would otherwise turn
+ * the metadata of every image into a JSON string. See
+ * {@link org.micromanager.acqj.api.CompactMetadataDataSink}.
+ *
+ * <p>Each acquisition has one codec. Its schema, the names of the metadata fields (and
+ * of the fields of nested objects like the axes), is taken from the metadata of the
+ * first image encoded, and stays the same after that. Records then only hold the value
+ * of each field, with a one byte type tag. Fields an image doesn't have take one byte,
+ * and fields that aren't in the schema are written with their names, so that decoding
+ * gives back the same JSON whatever the metadata of later images holds.
+ *
+ * <p>The schema can be saved with {@link #getSchema()} to decode records later with
+ * {@link #MetadataCodec(JSONObject)}. Encoding and decoding are safe to do from several
+ * threads at once.
+ */
+public class MetadataCodec {
+
+   private static final byte ABSENT = 0;
+   private static final byte NULL = 1;
+   private static final byte FALSE = 2;
+   private static final byte TRUE = 3;
+   private static final byte INT = 4;
+   private static final byte LONG = 5;
+   private static final byte DOUBLE = 6;
+   private static final byte STRING = 7;
+   private static final byte OBJECT = 8;
+   // Anything else, as a JSON string
+   private static final byte JSON = 9;
+
+   private static final String KEYS = "keys";
+   private static final String OBJECTS = "objects";
+
+   private volatile Schema schema_;
+
+   /**
+    * Codec whose schema is taken from the first image it encodes.
+    */
+   public MetadataCodec() {
+      schema_ = null;
+   }
+
+   /**
+    * Codec for decoding records written with the given schema.
+    *
+    * @param schema schema from {@link #getSchema()}
+    */
+   public MetadataCodec(JSONObject schema) {
+      try {
+         schema_ = Schema.fromJSON(schema);
+      } catch (JSONException e) {
+         throw new RuntimeException("Invalid metadata schema", e);
+      }
+   }
+
+   /**
+    * Schema needed to decode records, or null if nothing has been encoded yet.
+    */
+   public JSONObject getSchema() {
+      Schema schema = schema_;
+      try {
+         return schema == null ? null : schema.toJSON();
+      } catch (JSONException e) {
+         throw new RuntimeException(e);
+      }
+   }
+
+   /**
+    * Encode the given image metadata.
+    *
+    * @return record, positioned at its start
+    */
+   public ByteBuffer encode(JSONObject tags) {
+      Schema schema = schema_;
+      if (schema == null) {
+         synchronized (this) {
+            if (schema_ == null) {
+               schema_ = Schema.of(tags);
+            }
+            schema = schema_;
+         }
+      }
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 * schema.keys_.length);
+      try (DataOutputStream out = new DataOutputStream(bytes)) {
+         writeObject(out, tags, schema);
+      } catch (IOException | JSONException e) {
+         throw new RuntimeException("Problem encoding image metadata", e);
+      }
+      return ByteBuffer.wrap(bytes.toByteArray());
+   }
+
+   /**
+    * The JSON of an encoded record, as it was before encoding.
+    *
+    * @param record record from {@link #encode(JSONObject)}. Read from its position to its
+    *               limit, without changing the position
+    */
+   public JSONObject decode(ByteBuffer record) {
+      Schema schema = schema_;
+      if (schema == null) {
+         throw new RuntimeException("No metadata has been encoded with this codec");
+      }
+      ByteBuffer buffer = record.duplicate();
+      byte[] bytes = new byte[buffer.remaining()];
+      buffer.get(bytes);
+      try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes))) {
+         return readObject(in, schema);
+      } catch (IOException | JSONException e) {
+         throw new RuntimeException("Problem decoding image metadata", e);
+      }
+   }
+
+   private static void writeObject(DataOutputStream out, JSONObject json, Schema schema)
+         throws IOException, JSONException {
+      for (int i = 0; i < schema.keys_.length; i++) {
+         writeValue(out, json.opt(schema.keys_[i]), schema.children_[i], true);
+      }
+      List<String> extraKeys = new ArrayList<>();
+      Iterator<String> keys = json.keys();
+      while (keys.hasNext()) {
+         String key = keys.next();
+         if (!schema.index_.containsKey(key)) {
+            extraKeys.add(key);
+         }
+      }
+      out.writeInt(extraKeys.size());
+      for (String key : extraKeys) {
+         writeString(out, key);
+         writeValue(out, json.opt(key), null, false);
+      }
+   }
+
+   private static void writeValue(DataOutputStream out, Object value, Schema child,
+                                  boolean optional) throws IOException, JSONException {
+      if (value == null) {
+         if (!optional) {
+            throw new JSONException("Missing value");
+         }
+         out.writeByte(ABSENT);
+      } else if (value == JSONObject.NULL) {
+         out.writeByte(NULL);
+      } else if (value instanceof Boolean) {
+         out.writeByte((Boolean) value ? TRUE : FALSE);
+      } else if (value instanceof Integer) {
+         out.writeByte(INT);
+         out.writeInt((Integer) value);
+      } else if (value instanceof Long) {
+         out.writeByte(LONG);
+         out.writeLong((Long) value);
+      } else if (value instanceof Double) {
+         out.writeByte(DOUBLE);
+         out.writeDouble((Double) value);
+      } else if (value instanceof String) {
+         out.writeByte(STRING);
+         writeString(out, (String) value);
+      } else if (value instanceof JSONObject && child != null) {
+         out.writeByte(OBJECT);
+         writeObject(out, (JSONObject) value, child);
+      } else {
+         out.writeByte(JSON);
+         writeString(out, new JSONArray().put(value).toString());
+      }
+   }
+
+   private static JSONObject readObject(DataInputStream in, Schema schema)
+         throws IOException, JSONException {
+      JSONObject json = new JSONObject();
+      for (int i = 0; i < schema.keys_.length; i++) {
+         Object value = readValue(in, schema.children_[i]);
+         if (value != null) {
+            json.put(schema.keys_[i], value);
+         }
+      }
+      int extraCount = in.readInt();
+      for (int i = 0; i < extraCount; i++) {
+         String key = readString(in);
+         json.put(key, readValue(in, null));
+      }
+      return json;
+   }
+
+   private static Object readValue(DataInputStream in, Schema child)
+         throws IOException, JSONException {
+      byte tag = in.readByte();
+      switch (tag) {
+         case ABSENT:
+            return null;
+         case NULL:
+            return JSONObject.NULL;
+         case FALSE:
+            return false;
+         case TRUE:
+            return true;
+         case INT:
+            return in.readInt();
+         case LONG:
+            return in.readLong();
+         case DOUBLE:
+            return in.readDouble();
+         case STRING:
+            return readString(in);
+         case OBJECT:
+            if (child == null) {
+               throw new JSONException("Object without a schema");
+            }
+            return readObject(in, child);
+         case JSON:
+            return new JSONArray(readString(in)).get(0);
+         default:
+            throw new JSONException("Unknown value type " + tag);
+      }
+   }
+
+   private static void writeString(DataOutputStream out, String s) throws IOException {
+      byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+      out.writeInt(bytes.length);
+      out.write(bytes);
+   }
+
+   private static String readString(DataInputStream in) throws IOException {
+      byte[] bytes = new byte[in.readInt()];
+      in.readFully(bytes);
+      return new String(bytes, StandardCharsets.UTF_8);
+   }
+
+   /**
+    * Field names of an object, and the schemas of those that hold objects themselves.
+    */
+   private static final class Schema {
+      final String[] keys_;
+      final Schema[] children_;
+      final HashMap<String, Integer> index_ = new HashMap<>();
+
+      Schema(String[] keys, Schema[] children) {
+         keys_ = keys;
+         children_ = children;
+         for (int i = 0; i < keys.length; i++) {
+            index_.put(keys[i], i);
+         }
+      }
+
+      static Schema of(JSONObject json) {
+         List<String> keys = new ArrayList<>();
+         Iterator<String> it = json.keys();
+         while (it.hasNext()) {
+            keys.add(it.next());
+         }
+         // Sort so that the schema doesn't depend on the JSON's hashing
+         String[] keyArray = keys.toArray(new String[0]);
+         Arrays.sort(keyArray);
+         Schema[] children = new Schema[keyArray.length];
+         for (int i = 0; i < keyArray.length; i++) {
+            Object value = json.opt(keyArray[i]);
+            if (value instanceof JSONObject) {
+               children[i] = of((JSONObject) value);
+            }
+         }
+         return new Schema(keyArray, children);
+      }
+
+      JSONObject toJSON() throws JSONException {
+         JSONObject json = new JSONObject();
+         json.put(KEYS, new JSONArray(Arrays.asList(keys_)));
+         JSONObject objects = new JSONObject();
+         for (int i = 0; i < keys_.length; i++) {
+            if (children_[i] != null) {
+               objects.put(keys_[i], children_[i].toJSON());
+            }
+         }
+         json.put(OBJECTS, objects);
+         return json;
+      }
+
+      static Schema fromJSON(JSONObject json) throws JSONException {
+         JSONArray keyArray = json.getJSONArray(KEYS);
+         JSONObject objects = json.getJSONObject(OBJECTS);
+         String[] keys = new String[keyArray.length()];
+         Schema[] children = new Schema[keys.length];
+         for (int i = 0; i < keys.length; i++) {
+            keys[i] = keyArray.getString(i);
+            if (objects.has(keys[i])) {
+               children[i] = fromJSON(objects.getJSONObject(keys[i]));
+            }
+         }
+         return new Schema(keys, children);
+      }
+   }
+}
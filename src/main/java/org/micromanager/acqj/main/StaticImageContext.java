@@ -0,0 +1,55 @@
+package org.micromanager.acqj.main;
+
+import mmcorej.CMMCore;
+
+/**
+ * Values needed for the metadata of every image that stay the same for a whole
+ * sequence, read from the core once rather than for every image. The acquisition engine
+ * takes a new one only when an event changes the state of the hardware they depend on.
+ */
+public final class StaticImageContext {
+
+   private final double pixelSizeUm_;
+   private final String focusDevice_;
+   private final double exposure_;
+   private final long numCameraChannels_;
+
+   public StaticImageContext(double pixelSizeUm, String focusDevice, double exposure,
+                             long numCameraChannels) {
+      pixelSizeUm_ = pixelSizeUm;
+      focusDevice_ = focusDevice;
+      exposure_ = exposure;
+      numCameraChannels_ = numCameraChannels;
+   }
+
+   /**
+    * Read the current values from the core.
+    */
+   public static StaticImageContext capture(CMMCore core) {
+      try {
+         return new StaticImageContext(core.getPixelSizeUm(), core.getFocusDevice(),
+               core.getExposure(), core.getNumberOfCameraChannels());
+      } catch (Exception e) {
+         throw new RuntimeException("Couldn't get image context from core", e);
+      }
+   }
+
+   public double getPixelSizeUm() {
+      return pixelSizeUm_;
+   }
+
+   public String getFocusDevice() {
+      return focusDevice_;
+   }
+
+   /**
+    * Exposure of the core camera, for events that don't set their own.
+    */
+   public double getExposure() {
+      return exposure_;
+   }
+
+   public long getNumberOfCameraChannels() {
+      return numCameraChannels_;
+   }
+}
@@ -50,7 +50,16 @@ public class XYTiledAcquisition extends Acquisition implements XYTiledAcquisitio
 
    public XYTiledAcquisition(AcqEngJDataSink sink, Integer overlapX, Integer overlapY, Double zStep,
                              Consumer<JSONObject> summaryMDAdder) {
-      super(sink, false);
+      this(Engine.getInstance(), sink, overlapX, overlapY, zStep, summaryMDAdder);
+   }
+
+   /**
+    * Version for an acquisition that runs on a specific engine.
+    */
+   public XYTiledAcquisition(Engine engine, AcqEngJDataSink sink, Integer overlapX,
+                             Integer overlapY, Double zStep,
+                             Consumer<JSONObject> summaryMDAdder) {
+      super(engine, sink, false);
       overlapX_ = overlapX;
       overlapY_ = overlapY;
       summaryMDAdder_ = summaryMDAdder;
@@ -68,7 +77,7 @@ public class XYTiledAcquisition extends Acquisition implements XYTiledAcquisitio
          // ? Engine.getCore().getPosition(zDeviceName) : zDeviceOrigins.get(zDeviceName);
          double currentZPos;
          try {
-            currentZPos = Engine.getCore().getPosition(zDeviceName);
+            currentZPos = core_.getPosition(zDeviceName);
          } catch (Exception e) {
             throw new RuntimeException(e);
          }
@@ -100,11 +109,11 @@ public class XYTiledAcquisition extends Acquisition implements XYTiledAcquisitio
          ex.printStackTrace();
       }
 
-      pixelStageTranslator_ = new CameraTilingStageTranslator(AcqEngMetadata.getAffineTransform(
-            getSummaryMetadata()),
+      pixelStageTranslator_ = new CameraTilingStageTranslator(core_,
+            AcqEngMetadata.getAffineTransform(getSummaryMetadata()),
             xyStage_,
-            (int) Engine.getCore().getImageWidth(),
-            (int) Engine.getCore().getImageHeight(),
+            (int) core_.getImageWidth(),
+            (int) core_.getImageHeight(),
             overlapX_,
             overlapY_);
 
@@ -5,6 +5,7 @@ import java.util.List;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
+import mmcorej.CMMCore;
 import org.micromanager.acqj.internal.Engine;
 import org.micromanager.acqj.main.AcqEngMetadata;
 import org.micromanager.acqj.main.AcquisitionEvent;
@@ -136,6 +137,8 @@ public class AcqEventModules {
             @Override
             public AcquisitionEvent next() {
                AcquisitionEvent channelEvent = event.copy();
+               CMMCore core = channelEvent.acquisition_ == null
+                     ? Engine.getCore() : channelEvent.acquisition_.getCore();
                channelEvent.setConfigGroup(channelList.get(index).group_);
                channelEvent.setConfigPreset(channelList.get(index).config_);
                channelEvent.setChannelName(channelList.get(index).config_);
@@ -145,21 +148,21 @@ public class AcqEventModules {
                if (channelEvent.getZPosition() != null) {
                   zPos = channelEvent.getZPosition();
                }
-               if (channelEvent.getStageSingleAxisStagePosition(Engine.getCore().getFocusDevice())
+               if (channelEvent.getStageSingleAxisStagePosition(core.getFocusDevice())
                      != null) {
                   if (zPos != null) {
                      throw new RuntimeException(
                            "Can't have both a z position and a named axis focus position");
                   } else {
                      zPos = channelEvent.getStageSingleAxisStagePosition(
-                           Engine.getCore().getFocusDevice());
+                           core.getFocusDevice());
                   }
                }
 
                if (zPos == null) {
                   if (hasZOffsets) {
                      try {
-                        zPos = Engine.getCore().getPosition() + channelList.get(index).offset_;
+                        zPos = core.getPosition() + channelList.get(index).offset_;
                      } catch (Exception e) {
                         throw new RuntimeException(e);
                      }
@@ -172,8 +175,8 @@ public class AcqEventModules {
                if (zPos != null) {
                   // Its either stored as a named stage or as "z", keep it con
                   if (channelEvent.getStageSingleAxisStagePosition(
-                        Engine.getCore().getFocusDevice()) != null) {
-                     channelEvent.setStageCoordinate(Engine.getCore().getFocusDevice(), zPos);
+                        core.getFocusDevice()) != null) {
+                     channelEvent.setStageCoordinate(core.getFocusDevice(), zPos);
                   } else {
                      channelEvent.setZ(channelEvent.getZIndex(), zPos);
                   }
@@ -0,0 +1,213 @@
+package org.micromanager.acqj.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import mmcorej.TaggedImage;
+import org.micromanager.acqj.api.AcquisitionAPI;
+import org.micromanager.acqj.api.TaggedImageProcessor;
+import org.micromanager.acqj.internal.ImageTransferQueue;
+
+/**
+ * Image processor that sends every image down several branches at once, each a chain of
+ * image processors, rather than through a single chain. For example, one branch can pass
+ * images on to saving while another runs live analysis, without the analysis slowing
+ * down saving.
+ *
+ * <p>Each branch has its own input queue and threads, so branches run independently of
+ * each other. The output of a merged branch is passed on downstream as soon as it is
+ * ready, so a cheap branch's results don't wait behind an expensive one's. The output of
+ * the other branches is discarded. Merged outputs are therefore interleaved in whatever
+ * order they finish. A lossy branch skips images when its input queue is full rather than
+ * holding up the rest, which suits branches that only need to see the latest images.
+ * An empty branch passes images through unchanged.
+ *
+ * <p>The shutdown signal, TaggedImage(null, null), is sent down every branch, and passed
+ * on downstream once, after every branch has shut down. Since all branches see the same
+ * TaggedImage objects, processors in a branch must not modify images in place. If the
+ * acquisition recycles pixel buffers, each branch holds its own reference to an image's
+ * pixels, and the output of branches that isn't passed on is released, so the pixels are
+ * only reused once every branch is done with them.
+ *
+ * <p>Branches must be added before this processor is added to an acquisition.
+ */
+public class BranchingImageProcessor implements TaggedImageProcessor {
+
+   private static final int DEFAULT_QUEUE_SIZE = 30;
+
+   private final List<Branch> branches_ = new ArrayList<>();
+   private final LongAdder skipped_ = new LongAdder();
+   private ExecutorService executor_;
+   private AcquisitionAPI acq_;
+   private volatile BlockingQueue<TaggedImage> source_;
+   private volatile BlockingQueue<TaggedImage> sink_;
+
+   private static class Branch {
+      final List<TaggedImageProcessor> processors_;
+      final boolean merged_;
+      final boolean lossy_;
+      final ImageTransferQueue input_;
+      ImageTransferQueue output_;
+
+      Branch(List<TaggedImageProcessor> processors, boolean merged, boolean lossy,
+             int queueSize) {
+         processors_ = processors;
+         merged_ = merged;
+         lossy_ = lossy;
+         input_ = new ImageTransferQueue(queueSize, Long.MAX_VALUE);
+      }
+   }
+
+   /**
+    * Add a branch whose output is passed on downstream, and that holds up the others
+    * when it falls behind.
+    *
+    * @param processors chain of processors, applied in order. May be empty
+    */
+   public BranchingImageProcessor addBranch(TaggedImageProcessor... processors) {
+      return addBranch(Arrays.asList(processors), true, false, DEFAULT_QUEUE_SIZE);
+   }
+
+   /**
+    * Add a branch.
+    *
+    * @param processors chain of processors, applied in order. May be empty
+    * @param merged whether the output of the branch is passed on downstream
+    * @param lossy whether images are skipped, rather than waited for, when the branch's
+    *              input queue is full
+    * @param queueSize most images waiting at the start of the branch and between its
+    *                  processors
+    */
+   public synchronized BranchingImageProcessor addBranch(List<TaggedImageProcessor> processors,
+         boolean merged, boolean lossy, int queueSize) {
+      if (source_ != null) {
+         throw new RuntimeException("Cannot add branch after processor added to acquisition");
+      }
+      branches_.add(new Branch(new ArrayList<>(processors), merged, lossy, queueSize));
+      return this;
+   }
+
+   /**
+    * Number of images lossy branches skipped because they were behind.
+    */
+   public long getSkippedCount() {
+      return skipped_.sum();
+   }
+
+   @Override
+   public synchronized void setAcqAndQueues(AcquisitionAPI acq, BlockingQueue<TaggedImage> source,
+                                            BlockingQueue<TaggedImage> sink) {
+      // This function is called automatically by the acquisition engine on startup.
+      // Once it is called and the queues are set, processing can begin
+      if (branches_.isEmpty()) {
+         throw new RuntimeException("Branching image processor has no branches");
+      }
+      acq_ = acq;
+      source_ = source;
+      sink_ = sink;
+      // One thread to fan out, and one per branch to collect its output
+      executor_ = Executors.newFixedThreadPool(branches_.size() + 1,
+            (Runnable r) -> new Thread(r, "Branching image processor thread"));
+      AtomicInteger running = new AtomicInteger(branches_.size());
+      for (Branch branch : branches_) {
+         ImageTransferQueue in = branch.input_;
+         for (TaggedImageProcessor p : branch.processors_) {
+            ImageTransferQueue out = new ImageTransferQueue(branch.input_.getMaxFrames(),
+                  Long.MAX_VALUE);
+            p.setAcqAndQueues(acq, in, out);
+            in = out;
+         }
+         branch.output_ = in;
+         executor_.submit(() -> collect(branch, running));
+      }
+      executor_.submit(this::fanOut);
+      executor_.shutdown();
+   }
+
+   @Override
+   public void setAcqAndDequeues(AcquisitionAPI acq,
+         LinkedBlockingDeque<TaggedImage> source, LinkedBlockingDeque<TaggedImage> sink) {
+      // This is deprecated
+   }
+
+   private void fanOut() {
+      try {
+         while (true) {
+            TaggedImage img = source_.take();
+            boolean shutdown = img.tags == null && img.pix == null;
+            if (!shutdown && acq_ != null) {
+               // Every branch releases the image once done with it
+               acq_.retainImage(img, branches_.size() - 1);
+            }
+            for (Branch branch : branches_) {
+               if (branch.lossy_ && !shutdown) {
+                  if (!branch.input_.offer(img)) {
+                     skipped_.increment();
+                     release(img);
+                  }
+               } else {
+                  branch.input_.put(img);
+               }
+            }
+            if (shutdown) {
+               break;
+            }
+         }
+      } catch (InterruptedException e) {
+         // This should never happen
+         throw new RuntimeException("Unexpected problem in image processor");
+      }
+   }
+
+   /**
+    * Pass on or discard the output of the branch until it shuts down. The last branch to
+    * shut down passes on the shutdown signal. If passing on an image fails, the branch
+    * keeps being drained, so that the shutdown signal still gets through.
+    */
+   private void collect(Branch branch, AtomicInteger running) {
+      boolean failed = false;
+      try {
+         while (true) {
+            TaggedImage img = branch.output_.take();
+            if (img.tags == null && img.pix == null) {
+               break;
+            }
+            try {
+               if (branch.merged_ && !failed) {
+                  sink_.put(img);
+               } else {
+                  release(img);
+               }
+            } catch (RuntimeException e) {
+               failed = true;
+               if (acq_ != null) {
+                  acq_.abort(e);
+               }
+            }
+         }
+      } catch (InterruptedException e) {
+         // This should never happen
+         throw new RuntimeException("Unexpected problem in image processor");
+      } finally {
+         if (running.decrementAndGet() == 0) {
+            try {
+               sink_.put(new TaggedImage(null, null));
+            } catch (InterruptedException e) {
+               throw new RuntimeException("Unexpected problem in image processor");
+            }
+         }
+      }
+   }
+
+   private void release(TaggedImage img) {
+      if (acq_ != null) {
+         acq_.releaseImage(img);
+      }
+   }
+}
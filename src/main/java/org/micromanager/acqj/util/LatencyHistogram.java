@@ -0,0 +1,111 @@
+package org.micromanager.acqj.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of durations, with power-of-two microsecond buckets: bucket 0
+ * holds durations under 1 us, and bucket i durations from 2^(i-1) up to 2^i us.
+ * Recording is cheap enough to do for every frame; percentiles are approximate, to
+ * within a factor of two.
+ */
+public class LatencyHistogram {
+
+   private static final int NUM_BUCKETS = 40;
+
+   private final AtomicLongArray buckets_ = new AtomicLongArray(NUM_BUCKETS);
+   private final LongAdder count_ = new LongAdder();
+   private final LongAdder totalNs_ = new LongAdder();
+   private final AtomicLong maxNs_ = new AtomicLong();
+
+   /**
+    * Record a duration.
+    *
+    * @param nanos duration in ns
+    */
+   public void record(long nanos) {
+      if (nanos < 0) {
+         nanos = 0;
+      }
+      long micros = nanos / 1000;
+      int bucket = Math.min(64 - Long.numberOfLeadingZeros(micros), NUM_BUCKETS - 1);
+      buckets_.incrementAndGet(bucket);
+      count_.increment();
+      totalNs_.add(nanos);
+      long max = maxNs_.get();
+      while (nanos > max && !maxNs_.compareAndSet(max, nanos)) {
+         max = maxNs_.get();
+      }
+   }
+
+   public long getCount() {
+      return count_.sum();
+   }
+
+   public double getMeanUs() {
+      long count = count_.sum();
+      return count == 0 ? 0 : totalNs_.sum() / (double) count / 1000.0;
+   }
+
+   public double getMaxUs() {
+      return maxNs_.get() / 1000.0;
+   }
+
+   public double getTotalMs() {
+      return totalNs_.sum() / 1e6;
+   }
+
+   /**
+    * Upper bound of the bucket containing the given percentile.
+    *
+    * @param percentile between 0 and 100
+    * @return duration in us, or 0 if nothing was recorded
+    */
+   public double getPercentileUs(double percentile) {
+      long total = 0;
+      long[] counts = new long[NUM_BUCKETS];
+      for (int i = 0; i < NUM_BUCKETS; i++) {
+         counts[i] = buckets_.get(i);
+         total += counts[i];
+      }
+      if (total == 0) {
+         return 0;
+      }
+      long rank = (long) Math.ceil(percentile / 100.0 * total);
+      long seen = 0;
+      for (int i = 0; i < NUM_BUCKETS; i++) {
+         seen += counts[i];
+         if (seen >= rank && counts[i] > 0) {
+            return Math.min(1L << i, getMaxUs());
+         }
+      }
+      return getMaxUs();
+   }
+
+   /**
+    * Number of durations recorded in each bucket.
+    */
+   public long[] getBucketCounts() {
+      long[] counts = new long[NUM_BUCKETS];
+      for (int i = 0; i < NUM_BUCKETS; i++) {
+         counts[i] = buckets_.get(i);
+      }
+      return counts;
+   }
+
+   public void reset() {
+      for (int i = 0; i < NUM_BUCKETS; i++) {
+         buckets_.set(i, 0);
+      }
+      count_.reset();
+      totalNs_.reset();
+      maxNs_.set(0);
+   }
+
+   @Override
+   public String toString() {
+      return String.format("n=%d mean=%.1fus p50=%.0fus p99=%.0fus max=%.1fus", getCount(),
+            getMeanUs(), getPercentileUs(50), getPercentileUs(99), getMaxUs());
+   }
+}
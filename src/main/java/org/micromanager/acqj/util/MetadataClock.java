@@ -0,0 +1,119 @@
+package org.micromanager.acqj.util;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time stamps for metadata. Images are timed with System.nanoTime when they come out of
+ * the core, which is cheap and monotonic, and converted to wall clock time only when
+ * their metadata is written. Formatted dates are cached for the current second, so
+ * formatting the time of each image in a fast sequence usually doesn't allocate.
+ *
+ * <p>The wall clock drifts from nanoTime over time, and jumps when it is adjusted, so
+ * the reference used to convert between them is taken again when each acquisition
+ * starts, with {@link #resynchronize()}.
+ *
+ * <p>All methods are safe to call from any thread.
+ */
+public final class MetadataClock {
+
+   /**
+    * Format of the time of each image, e.g. "2024-01-31 13:45:12 -".
+    */
+   public static final String IMAGE_TIME_PATTERN = "yyyy-MM-dd HH:mm:ss -";
+   /**
+    * Format of the date of an acquisition in its summary metadata.
+    */
+   public static final String DATE_TIME_PATTERN = "yyyy/MM/dd HH:mm:ss";
+
+   private static final SecondFormat IMAGE_TIME = new SecondFormat(IMAGE_TIME_PATTERN);
+   private static final SecondFormat DATE_TIME = new SecondFormat(DATE_TIME_PATTERN);
+   private static volatile Reference reference_ = new Reference();
+
+   private MetadataClock() {
+   }
+
+   /**
+    * Current time to stamp an image with, in System.nanoTime terms.
+    */
+   public static long nanoTime() {
+      return System.nanoTime();
+   }
+
+   /**
+    * Read the wall clock and nanoTime together again, to convert times from now on.
+    */
+   public static void resynchronize() {
+      reference_ = new Reference();
+   }
+
+   /**
+    * Wall clock time, in ms since the epoch, of a time in System.nanoTime terms.
+    */
+   public static long toEpochMs(long nanos) {
+      Reference reference = reference_;
+      return reference.ms_ + Math.floorDiv(nanos - reference.nanos_,
+            TimeUnit.MILLISECONDS.toNanos(1));
+   }
+
+   /**
+    * The given time in the format of {@link #IMAGE_TIME_PATTERN}.
+    *
+    * @param epochMs ms since the epoch
+    */
+   public static String formatImageTime(long epochMs) {
+      return IMAGE_TIME.format(epochMs);
+   }
+
+   /**
+    * The given time in the format of {@link #DATE_TIME_PATTERN}.
+    *
+    * @param epochMs ms since the epoch
+    */
+   public static String formatDateTime(long epochMs) {
+      return DATE_TIME.format(epochMs);
+   }
+
+   /**
+    * Wall clock and nanoTime read together, to convert one into the other.
+    */
+   private static final class Reference {
+      final long ms_ = System.currentTimeMillis();
+      final long nanos_ = System.nanoTime();
+   }
+
+   /**
+    * Formatter with second resolution that remembers the last second it formatted.
+    */
+   private static final class SecondFormat {
+      private final DateTimeFormatter formatter_;
+      private volatile Formatted last_ = new Formatted(Long.MIN_VALUE, null);
+
+      SecondFormat(String pattern) {
+         formatter_ = DateTimeFormatter.ofPattern(pattern).withZone(ZoneId.systemDefault());
+      }
+
+      String format(long epochMs) {
+         long second = Math.floorDiv(epochMs, 1000);
+         Formatted last = last_;
+         if (last.second_ == second) {
+            return last.text_;
+         }
+         String text = formatter_.format(Instant.ofEpochSecond(second));
+         last_ = new Formatted(second, text);
+         return text;
+      }
+   }
+
+   private static final class Formatted {
+      final long second_;
+      final String text_;
+
+      Formatted(long second, String text) {
+         second_ = second;
+         text_ = text;
+      }
+   }
+}
@@ -0,0 +1,94 @@
+package org.micromanager.acqj.util;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Named counters and latency histograms, filled in by the acquisition engine as an
+ * acquisition runs and safe to read from any thread while it does.
+ *
+ * <p>Names are dot separated by phase, e.g. "hook.beforeHardware", "hardware.Moving XY
+ * stage", "startZDrive", "camera.snap", "camera.framePop", "metadata.addImageMetadata"
+ * and "output.addToOutput". Entries are created the first time something is recorded
+ * under their name.
+ */
+public class MetricsRegistry {
+
+   private final ConcurrentHashMap<String, LatencyHistogram> histograms_ =
+         new ConcurrentHashMap<>();
+   private final ConcurrentHashMap<String, LongAdder> counters_ = new ConcurrentHashMap<>();
+
+   /**
+    * Record the time since startNanos under the given name.
+    *
+    * @param name name of the histogram
+    * @param startNanos start of the phase, from System.nanoTime
+    */
+   public void recordSince(String name, long startNanos) {
+      histogram(name).record(System.nanoTime() - startNanos);
+   }
+
+   public void increment(String name) {
+      counter(name).increment();
+   }
+
+   /**
+    * Histogram with the given name, created if it doesn't exist yet.
+    */
+   public LatencyHistogram histogram(String name) {
+      LatencyHistogram histogram = histograms_.get(name);
+      return histogram != null ? histogram
+            : histograms_.computeIfAbsent(name, n -> new LatencyHistogram());
+   }
+
+   /**
+    * Counter with the given name, created if it doesn't exist yet.
+    */
+   public LongAdder counter(String name) {
+      LongAdder counter = counters_.get(name);
+      return counter != null ? counter : counters_.computeIfAbsent(name, n -> new LongAdder());
+   }
+
+   /**
+    * Current value of a counter, 0 if nothing was counted.
+    */
+   public long getCount(String name) {
+      LongAdder counter = counters_.get(name);
+      return counter == null ? 0 : counter.sum();
+   }
+
+   /**
+    * All histograms, sorted by name.
+    */
+   public Map<String, LatencyHistogram> getHistograms() {
+      return new TreeMap<>(histograms_);
+   }
+
+   /**
+    * Values of all counters, sorted by name.
+    */
+   public Map<String, Long> getCounts() {
+      TreeMap<String, Long> counts = new TreeMap<>();
+      counters_.forEach((name, counter) -> counts.put(name, counter.sum()));
+      return counts;
+   }
+
+   public void reset() {
+      histograms_.values().forEach(LatencyHistogram::reset);
+      counters_.values().forEach(LongAdder::reset);
+   }
+
+   /**
+    * One line per counter and histogram, e.g. for logging.
+    */
+   @Override
+   public String toString() {
+      StringBuilder sb = new StringBuilder();
+      getCounts().forEach((name, count) -> sb.append(name).append(": ").append(count).append('\n'));
+      getHistograms().forEach((name, histogram) ->
+            sb.append(name).append(": ").append(histogram).append('\n'));
+      return sb.toString();
+   }
+}
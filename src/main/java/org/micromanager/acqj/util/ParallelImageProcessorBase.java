@@ -0,0 +1,137 @@
+package org.micromanager.acqj.util;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import mmcorej.TaggedImage;
+import org.micromanager.acqj.api.AcquisitionAPI;
+import org.micromanager.acqj.api.TaggedImageProcessor;
+
+/**
+ * Version of {@link ImageProcessorBase} that processes several images at once on a pool
+ * of worker threads, for processing that is too slow for a single core to keep up with.
+ *
+ * <p>Images are still passed on in the order they arrived: results wait in a reorder
+ * buffer until every image before them is done. Up to twice as many images as there are
+ * threads are taken from the source queue ahead of the oldest unfinished one. Since it
+ * is called from several threads at once, {@link #processImage(TaggedImage)} must be
+ * thread safe. The shutdown signal, TaggedImage(null, null), is passed to it on its own,
+ * after all other images have been passed on, and then propagated downstream.
+ */
+public abstract class ParallelImageProcessorBase implements TaggedImageProcessor {
+
+   private final ExecutorService dispatchExecutor_;
+   private final ExecutorService workerExecutor_;
+   private final ExecutorService outputExecutor_;
+   // Results in the order the images arrived
+   private final BlockingQueue<Future<TaggedImage>> reorderBuffer_;
+
+   AcquisitionAPI acq_;
+   protected volatile BlockingQueue<TaggedImage> source_;
+   protected volatile BlockingQueue<TaggedImage> sink_;
+
+   /**
+    * @param numThreads number of images to process at once
+    */
+   public ParallelImageProcessorBase(int numThreads) {
+      if (numThreads < 1) {
+         throw new RuntimeException("Image processor needs at least one thread");
+      }
+      AtomicInteger workerIndex = new AtomicInteger();
+      dispatchExecutor_ = Executors.newSingleThreadExecutor(
+            (Runnable r) -> new Thread(r, "Image processor dispatch thread"));
+      workerExecutor_ = Executors.newFixedThreadPool(numThreads, (Runnable r) ->
+            new Thread(r, "Image processor thread " + workerIndex.getAndIncrement()));
+      outputExecutor_ = Executors.newSingleThreadExecutor(
+            (Runnable r) -> new Thread(r, "Image processor output thread"));
+      reorderBuffer_ = new ArrayBlockingQueue<>(2 * numThreads);
+   }
+
+   /**
+    * Process an image. Called from several threads at once.
+    *
+    * @return the processed image, or null to drop it
+    */
+   protected abstract TaggedImage processImage(TaggedImage img);
+
+   @Override
+   public void setAcqAndQueues(AcquisitionAPI acq, BlockingQueue<TaggedImage> source,
+                               BlockingQueue<TaggedImage> sink) {
+      // This function is called automatically by the acquisition engine on startup.
+      // Once it is called and the queues are set, processing can begin
+      acq_ = acq;
+      source_ = source;
+      sink_ = sink;
+      dispatchExecutor_.submit(this::dispatch);
+      outputExecutor_.submit(this::output);
+   }
+
+   @Override
+   public void setAcqAndDequeues(AcquisitionAPI acq,
+         LinkedBlockingDeque<TaggedImage> source, LinkedBlockingDeque<TaggedImage> sink) {
+      // This is deprecated
+   }
+
+   private void dispatch() {
+      try {
+         while (true) {
+            TaggedImage img = source_.take();
+            if (img.tags == null && img.pix == null) {
+               // Goes through the reorder buffer so that it comes out last
+               reorderBuffer_.put(CompletableFuture.completedFuture(img));
+               break;
+            }
+            reorderBuffer_.put(workerExecutor_.submit(() -> processImage(img)));
+         }
+      } catch (InterruptedException e) {
+         // This should never happen
+         throw new RuntimeException("Unexpected problem in image processor");
+      } finally {
+         dispatchExecutor_.shutdown();
+      }
+   }
+
+   private void output() {
+      try {
+         while (true) {
+            TaggedImage result;
+            try {
+               result = reorderBuffer_.take().get();
+            } catch (ExecutionException e) {
+               // Uncaught exception in image processor
+               acq_.abort(e.getCause() instanceof Exception
+                     ? (Exception) e.getCause() : e);
+               continue;
+            }
+            if (result != null && result.tags == null && result.pix == null) {
+               // time to shut down
+               // tell the subclass
+               try {
+                  processImage(result);
+               } catch (Exception e) {
+                  acq_.abort(e);
+               }
+               // propagate shutdown signal forward so that anything
+               // downstream also shuts down
+               sink_.put(result);
+               break;
+            }
+            if (result != null) {
+               sink_.put(result);
+            }
+         }
+      } catch (InterruptedException e) {
+         // This should never happen
+         throw new RuntimeException("Unexpected problem in image processor");
+      } finally {
+         workerExecutor_.shutdown();
+         outputExecutor_.shutdown();
+      }
+   }
+}
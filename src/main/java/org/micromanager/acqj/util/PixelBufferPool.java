@@ -0,0 +1,240 @@
+package org.micromanager.acqj.util;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Array;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Recycles the pixel arrays of images flowing through an acquisition.
+ *
+ * <p>The core hands out a new array for every image. Those are short lived, but images
+ * waiting in the acquisition's queues live long enough to be promoted out of the young
+ * generation, so at high frame rates they cause frequent full garbage collections. With a
+ * pool, each image is copied once into a recycled array as it enters the acquisition,
+ * so the core's array dies young and the long lived arrays are reused. Whatever holds
+ * the image last (the data sink, or an image processor that drops it) must hand the
+ * array back with {@link #release(Object)} once it is done with it.
+ *
+ * <p>Arrays that are never released are detected when they are garbage collected, and
+ * reported by {@link #getLeakCount()}. The pool keeps at most maxRetainedBytes of free
+ * arrays, and stops copying into pooled arrays while more than maxOutstandingBytes are
+ * handed out, so a sink that never releases doesn't make the pool grow without bound.
+ *
+ * <p>byte[], short[] and int[] pixels are pooled. Anything else is passed through as is.
+ * Safe to use from multiple threads.
+ */
+public class PixelBufferPool {
+
+   /**
+    * An array that has been handed out. Weakly references the array, so that it is
+    * enqueued if the array is collected without being released.
+    */
+   private static final class Lease extends WeakReference<Object> {
+      final Key key_;
+      final int hash_;
+
+      Lease(Object array, Key key, ReferenceQueue<Object> queue) {
+         super(array, queue);
+         key_ = key;
+         hash_ = System.identityHashCode(array);
+      }
+   }
+
+   /**
+    * Type and length of an array.
+    */
+   private static final class Key {
+      final Class<?> type_;
+      final int length_;
+      final long bytes_;
+
+      Key(Class<?> type, int length, int bytesPerElement) {
+         type_ = type;
+         length_ = length;
+         bytes_ = (long) length * bytesPerElement;
+      }
+
+      @Override
+      public boolean equals(Object o) {
+         return o instanceof Key && ((Key) o).type_ == type_ && ((Key) o).length_ == length_;
+      }
+
+      @Override
+      public int hashCode() {
+         return type_.hashCode() * 31 + length_;
+      }
+   }
+
+   private final long maxRetainedBytes_;
+   private final long maxOutstandingBytes_;
+   private final HashMap<Key, ArrayDeque<Object>> free_ = new HashMap<>();
+   // Leases by identity hash code of their array
+   private final HashMap<Integer, List<Lease>> outstanding_ = new HashMap<>();
+   private final ReferenceQueue<Object> collected_ = new ReferenceQueue<>();
+   private long retainedBytes_ = 0;
+   private long outstandingBytes_ = 0;
+   private long allocations_ = 0;
+   private long reuses_ = 0;
+   private long bypasses_ = 0;
+   private long leaks_ = 0;
+
+   /**
+    * @param maxRetainedBytes most bytes of free arrays to keep for reuse
+    * @param maxOutstandingBytes most bytes of pooled arrays handed out at once. Beyond
+    *                            this, images are passed through without pooling
+    */
+   public PixelBufferPool(long maxRetainedBytes, long maxOutstandingBytes) {
+      maxRetainedBytes_ = maxRetainedBytes;
+      maxOutstandingBytes_ = maxOutstandingBytes;
+   }
+
+   /**
+    * Copy pixels into a pooled array.
+    *
+    * @param pix pixels of an image, as given by the core
+    * @return a pooled copy, or pix itself if it can't be pooled (unsupported type, or
+    *         too many bytes handed out already)
+    */
+   public synchronized Object copyOf(Object pix) {
+      Key key = keyOf(pix);
+      if (key == null) {
+         return pix;
+      }
+      reclaimLeaks();
+      if (outstandingBytes_ + key.bytes_ > maxOutstandingBytes_) {
+         bypasses_++;
+         return pix;
+      }
+      Object array;
+      ArrayDeque<Object> free = free_.get(key);
+      if (free != null && !free.isEmpty()) {
+         array = free.pollFirst();
+         retainedBytes_ -= key.bytes_;
+         reuses_++;
+      } else {
+         array = Array.newInstance(key.type_, key.length_);
+         allocations_++;
+      }
+      System.arraycopy(pix, 0, array, 0, key.length_);
+      Lease lease = new Lease(array, key, collected_);
+      outstanding_.computeIfAbsent(lease.hash_, h -> new ArrayList<>(1)).add(lease);
+      outstandingBytes_ += key.bytes_;
+      return array;
+   }
+
+   /**
+    * Give an array back to the pool. Arrays that didn't come from the pool, or were
+    * already released, are ignored.
+    *
+    * @param pix pixels of an image, as returned by {@link #copyOf(Object)}
+    */
+   public synchronized void release(Object pix) {
+      if (pix == null) {
+         return;
+      }
+      Lease lease = removeLease(pix);
+      if (lease == null) {
+         return;
+      }
+      lease.clear();
+      outstandingBytes_ -= lease.key_.bytes_;
+      if (retainedBytes_ + lease.key_.bytes_ <= maxRetainedBytes_) {
+         free_.computeIfAbsent(lease.key_, k -> new ArrayDeque<>()).addLast(pix);
+         retainedBytes_ += lease.key_.bytes_;
+      }
+   }
+
+   /**
+    * Number of pooled arrays that were garbage collected without being released.
+    */
+   public synchronized long getLeakCount() {
+      reclaimLeaks();
+      return leaks_;
+   }
+
+   public synchronized long getOutstandingBytes() {
+      return outstandingBytes_;
+   }
+
+   public synchronized long getRetainedBytes() {
+      return retainedBytes_;
+   }
+
+   /**
+    * Number of arrays that had to be newly allocated.
+    */
+   public synchronized long getAllocationCount() {
+      return allocations_;
+   }
+
+   /**
+    * Number of images copied into a recycled array.
+    */
+   public synchronized long getReuseCount() {
+      return reuses_;
+   }
+
+   /**
+    * Number of images passed through unpooled because too many bytes were handed out.
+    */
+   public synchronized long getBypassCount() {
+      return bypasses_;
+   }
+
+   /**
+    * Drop all free arrays.
+    */
+   public synchronized void clear() {
+      free_.clear();
+      retainedBytes_ = 0;
+   }
+
+   private Lease removeLease(Object array) {
+      int hash = System.identityHashCode(array);
+      List<Lease> leases = outstanding_.get(hash);
+      if (leases == null) {
+         return null;
+      }
+      for (Iterator<Lease> it = leases.iterator(); it.hasNext(); ) {
+         Lease lease = it.next();
+         if (lease.get() == array) {
+            it.remove();
+            if (leases.isEmpty()) {
+               outstanding_.remove(hash);
+            }
+            return lease;
+         }
+      }
+      return null;
+   }
+
+   private void reclaimLeaks() {
+      Lease lease;
+      while ((lease = (Lease) collected_.poll()) != null) {
+         List<Lease> leases = outstanding_.get(lease.hash_);
+         if (leases != null && leases.remove(lease)) {
+            if (leases.isEmpty()) {
+               outstanding_.remove(lease.hash_);
+            }
+            leaks_++;
+            outstandingBytes_ -= lease.key_.bytes_;
+         }
+      }
+   }
+
+   private static Key keyOf(Object pix) {
+      if (pix instanceof byte[]) {
+         return new Key(byte.class, ((byte[]) pix).length, 1);
+      } else if (pix instanceof short[]) {
+         return new Key(short.class, ((short[]) pix).length, 2);
+      } else if (pix instanceof int[]) {
+         return new Key(int.class, ((int[]) pix).length, 4);
+      }
+      return null;
+   }
+}
@@ -0,0 +1,105 @@
+package org.micromanager.acqj.util;
+
+/**
+ * Fixed size ring of time stamped values, written by one thread and read by any number
+ * of others without locking. Once full, each new value replaces the oldest one.
+ *
+ * <p>Values must be added in order of time. Readers check after reading that the values
+ * they used weren't overwritten in the meantime, and try again if they were.
+ */
+public class TimeSeriesRing {
+
+   private final long[] times_;
+   private final double[] values_;
+   private final int mask_;
+   // Number of values added so far. Written after the value itself, so that reading it
+   // makes all values before it visible
+   private volatile long count_ = 0;
+
+   /**
+    * @param capacity most values kept. Rounded up to a power of 2
+    */
+   public TimeSeriesRing(int capacity) {
+      if (capacity < 2 || capacity > (1 << 30)) {
+         throw new IllegalArgumentException("Capacity must be between 2 and 2^30");
+      }
+      int size = Integer.highestOneBit(capacity - 1) << 1;
+      times_ = new long[size];
+      values_ = new double[size];
+      mask_ = size - 1;
+   }
+
+   public int getCapacity() {
+      return times_.length;
+   }
+
+   /**
+    * Number of values added so far, including those that have since been replaced.
+    */
+   public long getCount() {
+      return count_;
+   }
+
+   /**
+    * Add a value. Must only be called from one thread at a time.
+    *
+    * @param time time of the value, no earlier than that of the previous one
+    * @param value the value
+    */
+   public void add(long time, double value) {
+      long count = count_;
+      int slot = (int) (count & mask_);
+      times_[slot] = time;
+      values_[slot] = value;
+      count_ = count + 1;
+   }
+
+   /**
+    * The value at the given time, interpolated linearly between the values before and
+    * after it. Times after the latest value give the latest value.
+    *
+    * @return the value, or NaN if there are no values from that time or before it
+    */
+   public double valueAt(long time) {
+      while (true) {
+         long count = count_;
+         if (count == 0) {
+            return Double.NaN;
+         }
+         // Oldest value that can't be overwritten while it is read
+         long oldest = Math.max(0, count - times_.length + 1);
+         long latest = count - 1;
+         double result;
+         if (time >= times_[slot(latest)]) {
+            result = values_[slot(latest)];
+         } else if (time < times_[slot(oldest)]) {
+            result = Double.NaN;
+         } else {
+            // Last value at or before the time
+            long lo = oldest;
+            long hi = latest;
+            while (hi - lo > 1) {
+               long mid = (lo + hi) >>> 1;
+               if (times_[slot(mid)] <= time) {
+                  lo = mid;
+               } else {
+                  hi = mid;
+               }
+            }
+            long t0 = times_[slot(lo)];
+            long t1 = times_[slot(hi)];
+            double v0 = values_[slot(lo)];
+            double v1 = values_[slot(hi)];
+            result = t1 == t0 ? v1 : v0 + (v1 - v0) * (time - t0) / (double) (t1 - t0);
+         }
+         if (count_ - times_.length < oldest) {
+            return result;
+         }
+         // The writer got to values that were being read, try again
+      }
+   }
+
+   private int slot(long index) {
+      return (int) (index & mask_);
+   }
+}
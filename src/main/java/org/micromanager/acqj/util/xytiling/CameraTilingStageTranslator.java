@@ -6,6 +6,7 @@ import java.awt.geom.NoninvertibleTransformException;
 import java.awt.geom.Point2D;
 import java.util.ArrayList;
 import java.util.List;
+import mmcorej.CMMCore;
 import org.micromanager.acqj.internal.Engine;
 
 /**
@@ -30,9 +31,20 @@ public class CameraTilingStageTranslator {
    private int  overlapX_;
    private int overlapY_;
    private List<XYStagePosition> positionList_ = new ArrayList<XYStagePosition>();
+   private final CMMCore core_;
 
    public CameraTilingStageTranslator(AffineTransform transform, String xyStageName, int width,
                                       int height, int overlapX, int overlapY) {
+      this(Engine.getCore(), transform, xyStageName, width, height, overlapX, overlapY);
+   }
+
+   /**
+    * Version for a specific microscope, whose core is used to read the current stage
+    * position and camera image size.
+    */
+   public CameraTilingStageTranslator(CMMCore core, AffineTransform transform, String xyStageName,
+                                      int width, int height, int overlapX, int overlapY) {
+      core_ = core;
       affine_ = transform;
       xyStageName_ = xyStageName;
       tileWidth_ = width;
@@ -197,8 +209,8 @@ public class CameraTilingStageTranslator {
          try {
             // create position 0 based on current XY stage position--happens at start
             // of explore acquisition
-            return new Point2D.Double(Engine.getCore().getXPosition(xyStageName_),
-                  Engine.getCore().getYPosition(xyStageName_));
+            return new Point2D.Double(core_.getXPosition(xyStageName_),
+                  core_.getYPosition(xyStageName_));
          } catch (Exception ex) {
             throw new RuntimeException("Couldn't create position 0");
          }
@@ -209,9 +221,9 @@ public class CameraTilingStageTranslator {
          double existingRow = existingPosition.getGridRow();
          double existingColumn = existingPosition.getGridCol();
 
-         double xPixelOffset = (col - existingColumn) * (Engine.getCore().getImageWidth()
+         double xPixelOffset = (col - existingColumn) * (core_.getImageWidth()
                - pixelOverlapX);
-         double yPixelOffset = (row - existingRow) * (Engine.getCore().getImageHeight()
+         double yPixelOffset = (row - existingRow) * (core_.getImageHeight()
                - pixelOverlapY);
 
          Point2D.Double stagePos = new Point2D.Double();
@@ -4,11 +4,11 @@ import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import org.micromanager.acqj.api.AcquisitionHook;
 import org.micromanager.acqj.main.Acquisition;
 import org.micromanager.acqj.main.AcquisitionEvent;
+import org.micromanager.acqj.main.StaticImageContext;
 
 /**
  * Test harness that drives the real {@link Engine} hardware-control code against
@@ -19,7 +19,7 @@ import org.micromanager.acqj.main.AcquisitionEvent;
  * "what hardware commands get issued":
  * <ol>
  *   <li>the queue/merge loop from {@code Engine.processAcquisitionEvent}
- *       ({@code isSequencable} + {@code mergeSequenceEvent}), and</li>
+ *       ({@code addToSequence}), driving a {@link SequenceBuilder} directly, and</li>
  *   <li>the per-event order from {@code Engine.executeAcquisitionEvent}:
  *       {@code prepareHardware} -> before-Z-drive hooks -> {@code startZDrive},
  *       updating {@code lastEvent_} between events exactly as the engine does.</li>
@@ -33,18 +33,22 @@ public class EngineTestHarness {
    private final Engine engine_;
    private final RecordingCMMCore core_;
    private final Acquisition acquisition_;
+   private final SequenceBuilder sequenceBuilder_;
+   private final HardwareCapabilities capabilities_;
 
    private final Method prepareHardware_;
    private final Method startZDrive_;
-   private final Method isSequencable_;
-   private final Method mergeSequenceEvent_;
+   private final Field executingSequenceBuilder_;
    private final Field lastEvent_;
+   private final Field imageContext_;
 
    public EngineTestHarness(RecordingCMMCore core, Acquisition acquisition) throws Exception {
       core_ = core;
       acquisition_ = acquisition;
       resetEngineSingleton();
       engine_ = new Engine(core);
+      sequenceBuilder_ = new SequenceBuilder(core);
+      capabilities_ = new CachedHardwareCapabilities(core);
       if (Engine.getCore() != core) {
          throw new IllegalStateException("Engine is not using the recording core");
       }
@@ -55,14 +59,12 @@ public class EngineTestHarness {
       startZDrive_ = Engine.class.getDeclaredMethod(
             "startZDrive", AcquisitionEvent.class, HardwareSequences.class);
       startZDrive_.setAccessible(true);
-      isSequencable_ = Engine.class.getDeclaredMethod(
-            "isSequencable", List.class, AcquisitionEvent.class, int.class);
-      isSequencable_.setAccessible(true);
-      mergeSequenceEvent_ = Engine.class.getDeclaredMethod(
-            "mergeSequenceEvent", List.class);
-      mergeSequenceEvent_.setAccessible(true);
+      executingSequenceBuilder_ = Engine.class.getDeclaredField("executingSequenceBuilder_");
+      executingSequenceBuilder_.setAccessible(true);
       lastEvent_ = Engine.class.getDeclaredField("lastEvent_");
       lastEvent_.setAccessible(true);
+      imageContext_ = Engine.class.getDeclaredField("imageContext_");
+      imageContext_.setAccessible(true);
    }
 
    public RecordingCMMCore core() {
@@ -76,33 +78,7 @@ public class EngineTestHarness {
     * "shots" occurred and which were hardware-sequenced).
     */
    public List<AcquisitionEvent> run(Iterator<AcquisitionEvent> events) throws Exception {
-      List<AcquisitionEvent> dispatched = new ArrayList<>();
-      LinkedList<AcquisitionEvent> queue = new LinkedList<>();
-      while (events.hasNext()) {
-         AcquisitionEvent event = events.next();
-         if (event == null) {
-            continue;
-         }
-         if (queue.isEmpty()) {
-            queue.add(event);
-         } else if (isSequencable(queue, event, queue.size() + 1)) {
-            queue.add(event);
-         } else {
-            dispatched.add(executeMerged(queue));
-            queue.clear();
-            queue.add(event);
-         }
-      }
-      if (!queue.isEmpty()) {
-         dispatched.add(executeMerged(queue));
-      }
-      return dispatched;
-   }
-
-   private AcquisitionEvent executeMerged(List<AcquisitionEvent> queue) throws Exception {
-      AcquisitionEvent merged = mergeSequenceEvent(queue);
-      executeEvent(merged);
-      return merged;
+      return dispatch(events, true);
    }
 
    /**
@@ -117,25 +93,33 @@ public class EngineTestHarness {
     * sequenced, which is native-free.
     */
    public List<AcquisitionEvent> merge(Iterator<AcquisitionEvent> events) throws Exception {
+      return dispatch(events, false);
+   }
+
+   private List<AcquisitionEvent> dispatch(Iterator<AcquisitionEvent> events, boolean execute)
+         throws Exception {
       List<AcquisitionEvent> dispatched = new ArrayList<>();
-      LinkedList<AcquisitionEvent> queue = new LinkedList<>();
       while (events.hasNext()) {
          AcquisitionEvent event = events.next();
          if (event == null) {
             continue;
          }
-         if (queue.isEmpty()) {
-            queue.add(event);
-         } else if (isSequencable(queue, event, queue.size() + 1)) {
-            queue.add(event);
-         } else {
-            dispatched.add(mergeSequenceEvent(queue));
-            queue.clear();
-            queue.add(event);
+         AcquisitionEvent merged = addToSequence(event);
+         if (merged != null) {
+            dispatched.add(merged);
+            if (execute) {
+               executeEvent(merged);
+            }
          }
       }
-      if (!queue.isEmpty()) {
-         dispatched.add(mergeSequenceEvent(queue));
+      // The engine flushes the last sequence with a sequence end event
+      AcquisitionEvent merged = addToSequence(
+            AcquisitionEvent.createAcquisitionSequenceEndEvent(acquisition_));
+      if (merged != null) {
+         dispatched.add(merged);
+         if (execute) {
+            executeEvent(merged);
+         }
       }
       return dispatched;
    }
@@ -159,19 +143,36 @@ public class EngineTestHarness {
             : event.getSequence().get(event.getSequence().size() - 1));
    }
 
-   public boolean isSequencable(List<AcquisitionEvent> previous,
-                                AcquisitionEvent next, int newSeqLength) throws Exception {
-      return (Boolean) isSequencable_.invoke(null, previous, next, newSeqLength);
-   }
-
-   public AcquisitionEvent mergeSequenceEvent(List<AcquisitionEvent> list) throws Exception {
-      return (AcquisitionEvent) mergeSequenceEvent_.invoke(engine_, list);
+   /**
+    * Merge the event into the sequence being built, as the engine's
+    * {@code addToSequence} does.
+    *
+    * @return the completed sequence (or single event), or null if the event was merged
+    */
+   public AcquisitionEvent addToSequence(AcquisitionEvent event) throws Exception {
+      if (sequenceBuilder_.tryAppend(event, capabilities_)) {
+         return null;
+      }
+      AcquisitionEvent sequenceEvent = sequenceBuilder_.build();
+      // prepareHardware reads the values of the sequence from the builder that built it
+      executingSequenceBuilder_.set(engine_, sequenceBuilder_);
+      sequenceBuilder_.tryAppend(event, capabilities_);
+      return sequenceEvent;
    }
 
    public void setLastEvent(AcquisitionEvent event) throws Exception {
       lastEvent_.set(engine_, event);
    }
 
+   /** Values for image metadata the engine is holding on to, or null. */
+   public StaticImageContext getImageContext() throws Exception {
+      return (StaticImageContext) imageContext_.get(engine_);
+   }
+
+   public void setImageContext(StaticImageContext context) throws Exception {
+      imageContext_.set(engine_, context);
+   }
+
    private void invoke(Method m, Object... args) throws Exception {
       try {
          m.invoke(engine_, args);
@@ -184,12 +185,11 @@ public class EngineTestHarness {
       }
    }
 
+   /** Shut down the default engine, so the next one created takes its place. */
    public static void resetEngineSingleton() throws Exception {
-      Field singleton = Engine.class.getDeclaredField("singleton_");
-      singleton.setAccessible(true);
-      singleton.set(null, null);
-      Field core = Engine.class.getDeclaredField("core_");
-      core.setAccessible(true);
-      core.set(null, null);
+      Engine previous = Engine.getInstance();
+      if (previous != null) {
+         previous.shutdown();
+      }
    }
 }
@@ -0,0 +1,101 @@
+package org.micromanager.acqj.internal;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import mmcorej.TaggedImage;
+import mmcorej.org.json.JSONObject;
+import org.micromanager.acqj.api.AcqEngJDataSink;
+import org.micromanager.acqj.main.Acquisition;
+
+/**
+ * Images and data sinks shared by the tests of the image pipeline.
+ */
+public final class Fixtures {
+
+   private Fixtures() {
+   }
+
+   /**
+    * Image tagged with its index under "Index". Its 16 pixels start with the index and
+    * end with minus the index, to check that they arrive intact.
+    */
+   public static TaggedImage image(int index) throws Exception {
+      short[] pix = new short[16];
+      pix[0] = (short) index;
+      pix[15] = (short) -index;
+      JSONObject tags = new JSONObject();
+      tags.put("Index", index);
+      return new TaggedImage(pix, tags);
+   }
+
+   /**
+    * Image of the given number of bytes, without tags.
+    */
+   public static TaggedImage imageOfSize(int bytes) {
+      return new TaggedImage(new byte[bytes], null);
+   }
+
+   /**
+    * Sink that waits for a gate before saving each image, and records the index of each
+    * image saved and the size of each batch it was given.
+    */
+   public static class GatedSink implements AcqEngJDataSink {
+      public final CountDownLatch gate_;
+      /** Counted down when the first image reaches the sink. */
+      public final CountDownLatch reached_ = new CountDownLatch(1);
+      /** Counted down for each image saved. */
+      public final CountDownLatch saving_;
+      public final List<Integer> saved_ = Collections.synchronizedList(new ArrayList<>());
+      public final List<Integer> batchSizes_ = Collections.synchronizedList(new ArrayList<>());
+      private volatile boolean finished_ = false;
+
+      /**
+       * @param gate gate to wait for before saving each image
+       * @param images number of images {@link #saving_} counts down from
+       */
+      public GatedSink(CountDownLatch gate, int images) {
+         gate_ = gate;
+         saving_ = new CountDownLatch(images);
+      }
+
+      @Override
+      public void initialize(Acquisition acq, JSONObject summaryMetadata) {
+      }
+
+      @Override
+      public void finish() {
+         finished_ = true;
+      }
+
+      @Override
+      public boolean isFinished() {
+         return finished_;
+      }
+
+      @Override
+      public Object putImage(TaggedImage image) {
+         reached_.countDown();
+         try {
+            gate_.await();
+            saved_.add(image.tags.getInt("Index"));
+         } catch (Exception e) {
+            throw new RuntimeException(e);
+         }
+         saving_.countDown();
+         return "image " + saved_.size();
+      }
+
+      @Override
+      public List<Object> putImages(List<TaggedImage> images) {
+         batchSizes_.add(images.size());
+         return AcqEngJDataSink.super.putImages(images);
+      }
+
+      @Override
+      public boolean anythingAcquired() {
+         return !saved_.isEmpty();
+      }
+   }
+}
@@ -1,7 +1,9 @@
 package org.micromanager.acqj.internal;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import mmcorej.CMMCore;
 import mmcorej.Configuration;
 import mmcorej.DoubleVector;
@@ -36,9 +38,14 @@ public class RecordingCMMCore extends CMMCore {
    private boolean xyStageSequenceable_ = false;
    private boolean exposureSequenceable_ = false;
    private int sequenceMaxLength_ = 1000;
+   // Number of upcoming setXYPosition calls that throw, to simulate a flaky stage.
+   private int xyMoveFailures_ = 0;
 
    // Current focus position reported by getPosition() (used for channel offsets).
    private double currentZ_ = 0.0;
+   // Current XY position reported by getXYPosition().
+   private double currentX_ = 0.0;
+   private double currentY_ = 0.0;
 
    /** Ordered record of every hardware command issued. */
    public final List<String> commands = new ArrayList<>();
@@ -46,6 +53,9 @@ public class RecordingCMMCore extends CMMCore {
    /** Structured record of every setPosition(device, pos) call, in order. */
    public final List<StagePositionCommand> setPositionCalls = new ArrayList<>();
 
+   /** Number of times each capability query (e.g. "isStageSequenceable") was made. */
+   public final Map<String, Integer> capabilityQueries = new HashMap<>();
+
    public static final class StagePositionCommand {
       public final String device;
       public final double position;
@@ -93,6 +103,12 @@ public class RecordingCMMCore extends CMMCore {
       return this;
    }
 
+   /** Make the next {@code n} XY moves throw (after being recorded). */
+   public RecordingCMMCore withFailingXYMoves(int n) {
+      xyMoveFailures_ = n;
+      return this;
+   }
+
    // ----- query helpers for assertions ---------------------------------------
 
    /** Positions (in call order) that were commanded for a given device. */
@@ -106,6 +122,15 @@ public class RecordingCMMCore extends CMMCore {
       return result;
    }
 
+   /** Number of times the named capability query was made. */
+   public int capabilityQueryCount(String query) {
+      return capabilityQueries.getOrDefault(query, 0);
+   }
+
+   private void recordQuery(String query) {
+      capabilityQueries.merge(query, 1, Integer::sum);
+   }
+
    /** Count of commands whose text starts with the given prefix. */
    public int countCommands(String prefix) {
       int n = 0;
@@ -120,6 +145,7 @@ public class RecordingCMMCore extends CMMCore {
    public void clearRecords() {
       commands.clear();
       setPositionCalls.clear();
+      capabilityQueries.clear();
    }
 
    // ----- device identity -----------------------------------------------------
@@ -153,7 +179,8 @@ public class RecordingCMMCore extends CMMCore {
 
    @Override
    public void waitForDevice(String device) {
-      // no-op: nothing to wait for
+      // nothing to wait for, but record it so the ordering of waits can be checked
+      commands.add("waitForDevice " + device);
    }
 
    @Override
@@ -176,8 +203,20 @@ public class RecordingCMMCore extends CMMCore {
    }
 
    @Override
-   public void setXYPosition(String device, double x, double y) {
+   public void setXYPosition(String device, double x, double y) throws Exception {
       commands.add("setXYPosition " + device + " " + x + " " + y);
+      if (xyMoveFailures_ > 0) {
+         xyMoveFailures_--;
+         throw new Exception("XY stage not responding");
+      }
+      currentX_ = x;
+      currentY_ = y;
+   }
+
+   @Override
+   public void getXYPosition(String device, double[] x, double[] y) {
+      x[0] = currentX_;
+      y[0] = currentY_;
    }
 
    @Override
@@ -192,11 +231,12 @@ public class RecordingCMMCore extends CMMCore {
 
    @Override
    public void waitForConfig(String group, String config) {
-      // no-op
+      commands.add("waitForConfig " + group + " " + config);
    }
 
    @Override
    public Configuration getConfigData(String group, String config) {
+      recordQuery("getConfigData");
       // Return an empty configuration: the engine only iterates over its
       // settings to compare/sequence individual properties. With no settings,
       // those loops are skipped (and we never touch native PropertySetting
@@ -220,11 +260,13 @@ public class RecordingCMMCore extends CMMCore {
 
    @Override
    public boolean isStageSequenceable(String device) {
+      recordQuery("isStageSequenceable");
       return stageSequenceable_;
    }
 
    @Override
    public int getStageSequenceMaxLength(String device) {
+      recordQuery("getStageSequenceMaxLength");
       return sequenceMaxLength_;
    }
 
@@ -245,26 +287,31 @@ public class RecordingCMMCore extends CMMCore {
 
    @Override
    public boolean isXYStageSequenceable(String device) {
+      recordQuery("isXYStageSequenceable");
       return xyStageSequenceable_;
    }
 
    @Override
    public int getXYStageSequenceMaxLength(String device) {
+      recordQuery("getXYStageSequenceMaxLength");
       return sequenceMaxLength_;
    }
 
    @Override
    public boolean isExposureSequenceable(String device) {
+      recordQuery("isExposureSequenceable");
       return exposureSequenceable_;
    }
 
    @Override
    public int getExposureSequenceMaxLength(String device) {
+      recordQuery("getExposureSequenceMaxLength");
       return sequenceMaxLength_;
    }
 
    @Override
    public boolean isPropertySequenceable(String device, String prop) {
+      recordQuery("isPropertySequenceable");
       // Channels are never property-sequenced in these tests, which keeps the
       // engine away from getConfigData() (a native Configuration object).
       return false;
@@ -11,9 +11,11 @@ import org.junit.Before;
 import org.junit.Test;
 import org.micromanager.acqj.api.AcquisitionAPI;
 import org.micromanager.acqj.api.AcquisitionHook;
+import org.micromanager.acqj.api.HardwareRetryPolicy;
 import org.micromanager.acqj.example.BlackHoleDataSink;
 import org.micromanager.acqj.main.Acquisition;
 import org.micromanager.acqj.main.AcquisitionEvent;
+import org.micromanager.acqj.main.StaticImageContext;
 import org.micromanager.acqj.util.AcqEventModules;
 import org.micromanager.acqj.util.AcquisitionEventIterator;
 import org.micromanager.acqj.util.ChannelSetting;
@@ -160,6 +162,61 @@ public class TestAcquisitionScenarios {
       Assert.assertEquals(2, atPos2);
    }
 
+   @Test
+   public void sequenceabilityIsAskedOncePerAcquisition() throws Exception {
+      // Deciding whether each of the 40 events extends the current sequence needs
+      // to know whether the z stage and camera exposure can be sequenced. Those
+      // answers don't change during an acquisition, so the hardware should only
+      // be asked once.
+      core_.withStageSequenceable(true).withSequenceMaxLength(100);
+
+      List<XYStagePosition> positions = Arrays.asList(
+            xyPosition(100.0, 200.0, 0, 0),
+            xyPosition(300.0, 400.0, 0, 1));
+      List<ChannelSetting> channels =
+            Arrays.asList(channel("DAPI", 10.0), channel("FITC", 20.0));
+
+      harness_.merge(stream(Arrays.asList(
+            AcqEventModules.positions(positions),
+            AcqEventModules.channels(channels),
+            AcqEventModules.zStack(0, 10, 0.5, 0.0))));
+
+      Assert.assertEquals(1, core_.capabilityQueryCount("isStageSequenceable"));
+      Assert.assertEquals(1, core_.capabilityQueryCount("getStageSequenceMaxLength"));
+      Assert.assertEquals(1, core_.capabilityQueryCount("isExposureSequenceable"));
+   }
+
+   @Test
+   public void presetsWhoseNamesJoinTheSameWayAreCachedSeparately() throws Exception {
+      CachedHardwareCapabilities capabilities = new CachedHardwareCapabilities(core_);
+      ConfigPresetSettings first = capabilities.getConfigPreset("A-B", "C");
+      ConfigPresetSettings second = capabilities.getConfigPreset("A", "B-C");
+
+      Assert.assertNotSame(first, second);
+      Assert.assertSame(first, capabilities.getConfigPreset("A-B", "C"));
+      Assert.assertEquals(2, core_.capabilityQueryCount("getConfigData"));
+   }
+
+   @Test
+   public void sequencesAreSplitAtTheMaximumSequenceLength() throws Exception {
+      // A 10 step z stack on a stage that can only hold 4 positions at a time.
+      core_.withStageSequenceable(true).withSequenceMaxLength(4);
+
+      List<AcquisitionEvent> dispatched = harness_.merge(stream(Collections.singletonList(
+            AcqEventModules.zStack(0, 10, 0.5, 0.0))));
+
+      Assert.assertEquals(3, dispatched.size());
+      Assert.assertEquals(4, dispatched.get(0).getSequence().size());
+      Assert.assertEquals(4, dispatched.get(1).getSequence().size());
+      Assert.assertEquals(2, dispatched.get(2).getSequence().size());
+      Assert.assertEquals(2.0, dispatched.get(1).getSequence().get(0).getZPosition(), 1e-9);
+      for (AcquisitionEvent e : dispatched) {
+         Assert.assertTrue(e.isZSequenced());
+         Assert.assertFalse(e.isXYSequenced());
+         Assert.assertFalse(e.isExposureSequenced());
+      }
+   }
+
    // ---------------------------------------------------------------------------
    // Scenario 2b: same as above but z stage NOT sequenceable -> software z stack.
    // ---------------------------------------------------------------------------
@@ -295,6 +352,181 @@ public class TestAcquisitionScenarios {
       assertXyBeforeZForEachPoint(core_.commands, points);
    }
 
+   // ---------------------------------------------------------------------------
+   // Scenario 5: concurrent hardware moves. Everything is sent before anything is
+   // waited on, unless an ordering constraint says otherwise.
+   // ---------------------------------------------------------------------------
+   @Test
+   public void concurrentMovesSendAllCommandsBeforeWaiting() throws Exception {
+      acq_.setConcurrentHardwareMoves(true);
+
+      harness_.executeEvent(moveEvent());
+
+      Assert.assertEquals(Arrays.asList(
+            "setPosition Rotation 45.0",
+            "setXYPosition " + XY + " 10.0 20.0",
+            "setExposure 10.0",
+            "setConfig " + GROUP + " DAPI",
+            "setExposure 10.0",
+            "waitForDevice Rotation",
+            "waitForDevice " + XY,
+            "waitForConfig " + GROUP + " DAPI",
+            "waitForDevice " + CAM,
+            "waitForDevice " + FOCUS,
+            "setPosition " + FOCUS + " 1.0",
+            "waitForDevice " + FOCUS),
+            core_.commands);
+   }
+
+   @Test
+   public void orderingConstraintWaitsForEarlierDevice() throws Exception {
+      acq_.setConcurrentHardwareMoves(true);
+      acq_.addHardwareOrderingConstraint(XY, "Rotation");
+
+      harness_.executeEvent(moveEvent());
+
+      // The rotation stage now waits for the XY stage to finish; the channel
+      // change still overlaps with both.
+      Assert.assertEquals(Arrays.asList(
+            "setXYPosition " + XY + " 10.0 20.0",
+            "waitForDevice " + XY,
+            "setPosition Rotation 45.0",
+            "setExposure 10.0",
+            "setConfig " + GROUP + " DAPI",
+            "setExposure 10.0",
+            "waitForDevice Rotation",
+            "waitForConfig " + GROUP + " DAPI",
+            "waitForDevice " + CAM),
+            core_.commands.subList(0, 9));
+   }
+
+   // ---------------------------------------------------------------------------
+   // Scenario 6: a second engine for a second core. Acquisitions bound to it use
+   // its core, while the first engine stays the default.
+   // ---------------------------------------------------------------------------
+   @Test
+   public void secondEngineControlsItsOwnCore() throws Exception {
+      RecordingCMMCore otherCore = new RecordingCMMCore(FOCUS, XY, "", CAM);
+      Engine other = new Engine(otherCore);
+      try {
+         Acquisition otherAcq = new Acquisition(other, new BlackHoleDataSink(), false);
+
+         Assert.assertSame(core_, Engine.getCore());
+         Assert.assertSame(other, otherAcq.getEngine());
+         Assert.assertSame(otherCore, otherAcq.getCore());
+      } finally {
+         other.shutdown();
+      }
+      Assert.assertSame(core_, Engine.getCore());
+   }
+
+   // ---------------------------------------------------------------------------
+   // Scenario 7: a flaky XY stage. Failed moves are retried according to the
+   // retry policy, and a stage that keeps failing is no longer retried.
+   // ---------------------------------------------------------------------------
+   @Test
+   public void flakyDeviceIsRetriedByPolicy() throws Exception {
+      acq_.setHardwareRetryPolicy(XY, HardwareRetryPolicy.fixed(3, 0));
+      core_.withFailingXYMoves(2);
+
+      harness_.executeEvent(xyEvent(10.0));
+
+      Assert.assertEquals(3, core_.countCommands("setXYPosition"));
+      Assert.assertEquals(2, acq_.getMetrics().getCount("hardware.failures"));
+      Assert.assertEquals(2, acq_.getMetrics().getCount("hardware.retries"));
+      Assert.assertEquals(1, acq_.getMetrics().histogram("hardware.Moving XY stage").getCount());
+   }
+
+   @Test
+   public void deviceOverFailureBudgetFailsFast() throws Exception {
+      acq_.setHardwareRetryPolicy(HardwareRetryPolicy.fixed(6, 0));
+      acq_.setDeviceFailureBudget(2);
+      core_.withFailingXYMoves(Integer.MAX_VALUE);
+
+      assertHardwareFailure(xyEvent(10.0));
+      // Retrying stopped once the budget of 2 failures was used up
+      Assert.assertEquals(2, core_.countCommands("setXYPosition"));
+
+      assertHardwareFailure(xyEvent(20.0));
+      // The next move is attempted once, without retries
+      Assert.assertEquals(3, core_.countCommands("setXYPosition"));
+
+      // A successful move restores the budget
+      core_.withFailingXYMoves(0);
+      harness_.executeEvent(xyEvent(30.0));
+      core_.withFailingXYMoves(Integer.MAX_VALUE);
+      assertHardwareFailure(xyEvent(40.0));
+      Assert.assertEquals(6, core_.countCommands("setXYPosition"));
+   }
+
+   @Test
+   public void acquisitionsHaveTheirOwnFailureBudgets() throws Exception {
+      acq_.setHardwareRetryPolicy(HardwareRetryPolicy.fixed(6, 0));
+      acq_.setDeviceFailureBudget(2);
+      core_.withFailingXYMoves(Integer.MAX_VALUE);
+      assertHardwareFailure(xyEvent(10.0));
+      Assert.assertEquals(2, core_.countCommands("setXYPosition"));
+
+      // Another acquisition running on the same engine hasn't used up its budget
+      Acquisition other = new Acquisition(new BlackHoleDataSink(), false);
+      other.setHardwareRetryPolicy(HardwareRetryPolicy.fixed(6, 0));
+      other.setDeviceFailureBudget(2);
+      AcquisitionEvent otherEvent = new AcquisitionEvent((AcquisitionAPI) other);
+      otherEvent.setX(20.0);
+      otherEvent.setY(0.0);
+      assertHardwareFailure(otherEvent);
+      Assert.assertEquals(4, core_.countCommands("setXYPosition"));
+   }
+
+   // ---------------------------------------------------------------------------
+   // Scenario 8: the values read from the core for image metadata are kept while
+   // only the z stage moves, and read again when the channel changes.
+   // ---------------------------------------------------------------------------
+   @Test
+   public void imageContextIsOnlyReadAgainWhenTheChannelChanges() throws Exception {
+      List<AcquisitionEvent> events = new ArrayList<>();
+      stream(Arrays.asList(
+            AcqEventModules.channels(Arrays.asList(channel("DAPI", 10.0), channel("FITC", 10.0))),
+            AcqEventModules.zStack(0, 3, 1.0, 0.0))).forEachRemaining(events::add);
+
+      StaticImageContext context = new StaticImageContext(1.0, FOCUS, 10.0, 1);
+      List<Boolean> readAgain = new ArrayList<>();
+      for (AcquisitionEvent event : events) {
+         harness_.setImageContext(context);
+         harness_.executeEvent(event);
+         readAgain.add(harness_.getImageContext() == null);
+      }
+      Assert.assertEquals(Arrays.asList(true, false, false, true, false, false), readAgain);
+   }
+
+   private void assertHardwareFailure(AcquisitionEvent event) throws Exception {
+      try {
+         harness_.executeEvent(event);
+         Assert.fail("expected the XY move to fail");
+      } catch (HardwareControlException e) {
+         Assert.assertTrue(e.getMessage().startsWith("Moving XY stage unsuccessful"));
+      }
+   }
+
+   private AcquisitionEvent xyEvent(double x) {
+      AcquisitionEvent e = root();
+      e.setX(x);
+      e.setY(0.0);
+      return e;
+   }
+
+   private AcquisitionEvent moveEvent() {
+      AcquisitionEvent e = root();
+      e.setX(10.0);
+      e.setY(20.0);
+      e.setStageCoordinate("Rotation", 45.0);
+      e.setZ(0, 1.0);
+      e.setConfigGroup(GROUP);
+      e.setConfigPreset("DAPI");
+      e.setExposure(10.0);
+      return e;
+   }
+
    private void assertXyBeforeZForEachPoint(List<String> commands, double[][] points) {
       int pointIndex = 0;
       Integer xyAtOrAfter = null;
@@ -0,0 +1,100 @@
+package org.micromanager.acqj.internal;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import mmcorej.TaggedImage;
+import mmcorej.org.json.JSONObject;
+import org.junit.Assert;
+import org.junit.Test;
+import org.micromanager.acqj.api.AcqEngJDataSink;
+import org.micromanager.acqj.api.TaggedImageProcessor;
+import org.micromanager.acqj.main.Acquisition;
+import org.micromanager.acqj.util.ImageProcessorBase;
+
+/**
+ * Tests for {@link CameraLane}.
+ */
+public class TestCameraLane {
+
+   private static class RecordingSink implements AcqEngJDataSink {
+      final List<TaggedImage> saved_ = Collections.synchronizedList(new ArrayList<>());
+      volatile boolean finished_ = false;
+
+      @Override
+      public void initialize(Acquisition acq, JSONObject summaryMetadata) {
+      }
+
+      @Override
+      public void finish() {
+         finished_ = true;
+      }
+
+      @Override
+      public boolean isFinished() {
+         return finished_;
+      }
+
+      @Override
+      public Object putImage(TaggedImage image) {
+         saved_.add(image);
+         return null;
+      }
+
+      @Override
+      public boolean anythingAcquired() {
+         return !saved_.isEmpty();
+      }
+   }
+
+   /**
+    * Marks each image it passes on.
+    */
+   private static class MarkingProcessor extends ImageProcessorBase {
+      @Override
+      protected TaggedImage processImage(TaggedImage img) {
+         if (img.tags != null) {
+            try {
+               img.tags.put("Processed", true);
+            } catch (Exception e) {
+               throw new RuntimeException(e);
+            }
+         }
+         return img;
+      }
+   }
+
+   @Test
+   public void laneKeepsOrderAndShutsDownItsSink() throws Exception {
+      RecordingSink sink = new RecordingSink();
+      List<TaggedImageProcessor> processors = Collections.singletonList(new MarkingProcessor());
+      CameraLane lane = new CameraLane("CamB", sink, processors, null, 4);
+      lane.start(e -> Assert.fail(e.toString()));
+
+      int count = 30;
+      for (int i = 0; i < count; i++) {
+         final int index = i;
+         lane.submit(() -> {
+            try {
+               JSONObject tags = new JSONObject();
+               tags.put("Index", index);
+               tags.put("Thread", Thread.currentThread().getName());
+               lane.put(new TaggedImage(new byte[1], tags));
+            } catch (Exception e) {
+               throw new RuntimeException(e);
+            }
+         });
+      }
+      lane.finish();
+      lane.awaitFinished();
+
+      Assert.assertTrue(sink.isFinished());
+      Assert.assertEquals(count, sink.saved_.size());
+      for (int i = 0; i < count; i++) {
+         JSONObject tags = sink.saved_.get(i).tags;
+         Assert.assertEquals(i, tags.getInt("Index"));
+         Assert.assertTrue(tags.getBoolean("Processed"));
+         Assert.assertEquals("Camera lane thread CamB", tags.getString("Thread"));
+      }
+   }
+}
@@ -0,0 +1,102 @@
+package org.micromanager.acqj.internal;
+
+import java.util.ArrayDeque;
+import mmcorej.TaggedImage;
+import org.junit.Assert;
+import org.junit.Test;
+import org.micromanager.acqj.util.MetadataClock;
+
+/**
+ * Tests for {@link CircularBufferDrain} against a fake circular buffer, so no native
+ * MMCoreJ library is needed.
+ */
+public class TestCircularBufferDrain {
+
+   /** A core whose circular buffer is a plain queue that the test fills. */
+   private static class FakeBufferCore extends RecordingCMMCore {
+      final ArrayDeque<TaggedImage> buffer = new ArrayDeque<>();
+      int remainingCountCalls = 0;
+
+      FakeBufferCore() {
+         super("Z", "XY", "", "Cam");
+      }
+
+      @Override
+      public int getRemainingImageCount() {
+         remainingCountCalls++;
+         return buffer.size();
+      }
+
+      @Override
+      public TaggedImage popNextTaggedImage() throws Exception {
+         if (buffer.isEmpty()) {
+            throw new Exception("Circular buffer is empty");
+         }
+         return buffer.pollFirst();
+      }
+   }
+
+   @Test
+   public void emptyBufferReturnsNullWithoutPopping() throws Exception {
+      FakeBufferCore core = new FakeBufferCore();
+      CircularBufferDrain drain = new CircularBufferDrain(core, 3);
+
+      Assert.assertNull(drain.poll());
+      Assert.assertNull(drain.poll());
+      Assert.assertEquals(2, drain.getPollCount());
+      Assert.assertEquals(0, drain.getFramesPopped());
+   }
+
+   @Test
+   public void availableImagesArePoppedInOneBatchAndInOrder() throws Exception {
+      FakeBufferCore core = new FakeBufferCore();
+      for (int i = 0; i < 4; i++) {
+         core.buffer.add(Fixtures.image(i));
+      }
+      CircularBufferDrain drain = new CircularBufferDrain(core, 4);
+
+      for (int i = 0; i < 4; i++) {
+         TaggedImage ti = drain.poll();
+         Assert.assertNotNull(ti);
+         Assert.assertEquals(i, ti.tags.getInt("Index"));
+      }
+      // All four came out of a single query of the buffer
+      Assert.assertEquals(1, core.remainingCountCalls);
+      Assert.assertEquals(1.0 / 4, drain.getPollsPerFrame(), 1e-9);
+   }
+
+   @Test
+   public void imagesAreTimedWhenPoppedNotWhenReturned() throws Exception {
+      FakeBufferCore core = new FakeBufferCore();
+      core.buffer.add(Fixtures.image(0));
+      core.buffer.add(Fixtures.image(1));
+      CircularBufferDrain drain = new CircularBufferDrain(core, 2);
+
+      long before = MetadataClock.nanoTime();
+      drain.poll();
+      long first = drain.getPopNanos();
+      long afterBatch = MetadataClock.nanoTime();
+      Thread.sleep(5);
+      drain.poll();
+      long second = drain.getPopNanos();
+
+      Assert.assertTrue(first >= before);
+      Assert.assertTrue(second >= first);
+      // Popped along with the first one, even though it was returned later
+      Assert.assertTrue(second <= afterBatch);
+   }
+
+   @Test
+   public void batchNeverExceedsExpectedFrames() throws Exception {
+      FakeBufferCore core = new FakeBufferCore();
+      for (int i = 0; i < 5; i++) {
+         core.buffer.add(Fixtures.image(i));
+      }
+      CircularBufferDrain drain = new CircularBufferDrain(core, 2);
+
+      Assert.assertNotNull(drain.poll());
+      Assert.assertNotNull(drain.poll());
+      Assert.assertNull(drain.poll());
+      Assert.assertEquals(3, core.buffer.size());
+   }
+}
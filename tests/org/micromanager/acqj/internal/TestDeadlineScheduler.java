@@ -0,0 +1,49 @@
+package org.micromanager.acqj.internal;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.Assert;
+import org.junit.Test;
+import org.micromanager.acqj.api.AcquisitionAPI;
+import org.micromanager.acqj.example.BlackHoleDataSink;
+import org.micromanager.acqj.main.Acquisition;
+import org.micromanager.acqj.main.AcquisitionEvent;
+
+/**
+ * Tests for {@link DeadlineScheduler}.
+ */
+public class TestDeadlineScheduler {
+
+   @Test
+   public void waitsUntilMinimumStartTime() throws Exception {
+      // initialize=false avoids makeSummaryMD(), which needs the native core.
+      Acquisition acq = new Acquisition(new BlackHoleDataSink(), false);
+      acq.setStartTimeMs(System.currentTimeMillis());
+      AcquisitionEvent event = new AcquisitionEvent((AcquisitionAPI) acq);
+      event.setMinimumStartTime(30L);
+
+      DeadlineScheduler scheduler = new DeadlineScheduler();
+      Assert.assertTrue(scheduler.waitForStartTime(event));
+      long now = System.nanoTime();
+      Assert.assertTrue("returned before the deadline",
+            now >= DeadlineScheduler.getDeadlineNanos(event));
+
+      Long lateness = scheduler.recordStart(event);
+      Assert.assertNotNull(lateness);
+      Assert.assertTrue(lateness < TimeUnit.MILLISECONDS.toNanos(30));
+      Assert.assertEquals(1, scheduler.getStartCount());
+   }
+
+   @Test
+   public void noDeadlineBeforeAcquisitionStarts() throws Exception {
+      Acquisition acq = new Acquisition(new BlackHoleDataSink(), false);
+      AcquisitionEvent event = new AcquisitionEvent((AcquisitionAPI) acq);
+      event.setMinimumStartTime(60_000L);
+
+      // Start time is set when the first image is acquired, so there is nothing to wait for
+      DeadlineScheduler scheduler = new DeadlineScheduler();
+      Assert.assertNull(DeadlineScheduler.getDeadlineNanos(event));
+      Assert.assertTrue(scheduler.waitForStartTime(event));
+      Assert.assertNull(scheduler.recordStart(event));
+      Assert.assertEquals(0, scheduler.getStartCount());
+   }
+}
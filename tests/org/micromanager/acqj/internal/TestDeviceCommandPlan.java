@@ -0,0 +1,35 @@
+package org.micromanager.acqj.internal;
+
+import java.util.Arrays;
+import java.util.Collections;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for {@link DeviceCommandPlan}.
+ */
+public class TestDeviceCommandPlan {
+
+   @Test
+   public void commandAfterEarlierWaitsOnlyForItsOwnDevices() throws Exception {
+      RecordingCMMCore core = new RecordingCMMCore("Z", "XY", "", "Cam");
+      DeviceCommandPlan plan = new DeviceCommandPlan(core);
+      plan.add("Changing channels", Arrays.asList("Wheel", "Shutter"),
+            () -> core.commands.add("setConfig"), () -> core.commands.add("waitForConfig"));
+      plan.add("Moving XY stage", "XY", () -> core.commands.add("setXYPosition"));
+      plan.addAfterEarlier("Starting property sequences", Collections.singletonList("Wheel"),
+            () -> core.commands.add("startPropertySequence"));
+
+      plan.execute(Collections.emptyList(), (step, name, devices) -> step.run());
+
+      // The channel change is waited on first, the unrelated XY move is not
+      Assert.assertEquals(Arrays.asList(
+            "setConfig",
+            "setXYPosition",
+            "waitForConfig",
+            "startPropertySequence",
+            "waitForDevice XY",
+            "waitForDevice Wheel"),
+            core.commands);
+   }
+}
@@ -0,0 +1,164 @@
+package org.micromanager.acqj.internal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.micromanager.acqj.api.AcquisitionAPI;
+import org.micromanager.acqj.api.AcquisitionHook;
+import org.micromanager.acqj.example.BlackHoleDataSink;
+import org.micromanager.acqj.main.Acquisition;
+import org.micromanager.acqj.main.AcquisitionEvent;
+
+/**
+ * Tests for {@link EventDispatcher}: how the events of several iterators are
+ * interleaved, using a target that just records the order events arrive in.
+ */
+public class TestEventDispatcher {
+
+   private Acquisition acq_;
+   private ExecutorService generator_;
+   private final Map<AcquisitionEvent, String> names_ = new IdentityHashMap<>();
+   private final List<String> processed_ = new ArrayList<>();
+   private final Map<String, SequenceBuilder> builders_ = new HashMap<>();
+   private EventDispatcher dispatcher_;
+
+   @Before
+   public void setUp() {
+      // initialize=false avoids makeSummaryMD(), which needs the native core.
+      acq_ = new Acquisition(new BlackHoleDataSink(), false);
+      generator_ = Executors.newSingleThreadExecutor();
+      dispatcher_ = new EventDispatcher(null, generator_, new EventDispatcher.EventTarget() {
+         @Override
+         public void acquisitionActive(AcquisitionAPI acquisition) {
+         }
+
+         @Override
+         public Future<?> process(AcquisitionEvent event, SequenceBuilder builder) {
+            String name = event.isAcquisitionSequenceEndEvent() ? "end" : names_.get(event);
+            processed_.add(name);
+            if (!event.isAcquisitionSequenceEndEvent()) {
+               SequenceBuilder previous = builders_.put(name.substring(0, 1), builder);
+               Assert.assertTrue("events of one iterator share a builder",
+                     previous == null || previous == builder);
+            }
+            return CompletableFuture.completedFuture(null);
+         }
+      });
+   }
+
+   @After
+   public void tearDown() {
+      generator_.shutdownNow();
+   }
+
+   @Test
+   public void equalPrioritiesTakeTurns() throws Exception {
+      List<Future<?>> results = submitWhileBusy(0, 0);
+
+      Assert.assertEquals(Arrays.asList("a1", "b1", "a2", "b2", "a3", "b3", "end", "end"),
+            processed_);
+      Assert.assertNotSame(builders_.get("a"), builders_.get("b"));
+      for (Future<?> result : results) {
+         Assert.assertTrue(result.isDone());
+      }
+   }
+
+   @Test
+   public void higherPriorityGoesFirst() throws Exception {
+      submitWhileBusy(0, 1);
+
+      Assert.assertEquals(Arrays.asList("b1", "b2", "b3", "end", "a1", "a2", "a3", "end"),
+            processed_);
+   }
+
+   @Test
+   public void barrierOnlyWaitsForEarlierIteratorsOfItsAcquisition() throws Exception {
+      Acquisition other = new Acquisition(new BlackHoleDataSink(), false);
+      CountDownLatch release = new CountDownLatch(1);
+      generator_.submit(() -> {
+         release.await();
+         return null;
+      });
+      dispatcher_.submit(events("a", 3, acq_), 0);
+      Future<?> otherResult = dispatcher_.submit(events("b", 6, other), 0);
+      Future<String> finished = dispatcher_.submitBarrier(acq_, () -> {
+         processed_.add("finish");
+         return "finished";
+      });
+      // Submitted after the barrier, so doesn't hold it up
+      dispatcher_.submit(events("c", 3, acq_), 0);
+      release.countDown();
+
+      Assert.assertEquals("finished", finished.get(5, TimeUnit.SECONDS));
+      otherResult.get(5, TimeUnit.SECONDS);
+      Assert.assertEquals(Arrays.asList("a1", "b1", "c1", "a2", "b2", "c2", "a3", "b3", "c3",
+            "end", "finish", "b4", "end", "b5", "b6", "end"), processed_);
+   }
+
+   @Test
+   public void eventsMergedBeforeAHookCancelsOneAreStillExecuted() throws Exception {
+      acq_.addHook(new AcquisitionHook() {
+         @Override
+         public AcquisitionEvent run(AcquisitionEvent event) {
+            return "a3".equals(names_.get(event)) ? null : event;
+         }
+
+         @Override
+         public void close() {
+         }
+      }, AcquisitionAPI.EVENT_GENERATION_HOOK);
+
+      dispatcher_.submit(events("a", 4), 0).get(5, TimeUnit.SECONDS);
+
+      // The sequence end flushes what the iterator's builder already holds
+      Assert.assertEquals(Arrays.asList("a1", "a2", "end"), processed_);
+   }
+
+   /**
+    * Submit iterators "a" and "b" with the given priorities while the generator
+    * thread is busy, so neither gets a head start, and wait for both.
+    */
+   private List<Future<?>> submitWhileBusy(int priorityA, int priorityB) throws Exception {
+      CountDownLatch release = new CountDownLatch(1);
+      generator_.submit(() -> {
+         release.await();
+         return null;
+      });
+      List<Future<?>> results = new ArrayList<>();
+      results.add(dispatcher_.submit(events("a", 3), priorityA));
+      results.add(dispatcher_.submit(events("b", 3), priorityB));
+      release.countDown();
+      for (Future<?> result : results) {
+         result.get(5, TimeUnit.SECONDS);
+      }
+      return results;
+   }
+
+   private Iterator<AcquisitionEvent> events(String name, int count) {
+      return events(name, count, acq_);
+   }
+
+   private Iterator<AcquisitionEvent> events(String name, int count, Acquisition acq) {
+      List<AcquisitionEvent> events = new ArrayList<>();
+      for (int i = 1; i <= count; i++) {
+         AcquisitionEvent event = new AcquisitionEvent((AcquisitionAPI) acq);
+         names_.put(event, name + i);
+         events.add(event);
+      }
+      return events.iterator();
+   }
+}
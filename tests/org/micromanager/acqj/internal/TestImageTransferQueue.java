@@ -0,0 +1,110 @@
+package org.micromanager.acqj.internal;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import mmcorej.TaggedImage;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for {@link ImageTransferQueue}.
+ */
+public class TestImageTransferQueue {
+
+   @Test
+   public void byteBudgetBoundsTheQueue() throws Exception {
+      ImageTransferQueue queue = new ImageTransferQueue(30, 100);
+      Assert.assertTrue(queue.offer(Fixtures.imageOfSize(60)));
+      Assert.assertTrue(queue.offer(Fixtures.imageOfSize(40)));
+      // Full by bytes, even though far from full by frames
+      Assert.assertFalse(queue.offer(Fixtures.imageOfSize(1)));
+      Assert.assertFalse(queue.offerLast(Fixtures.imageOfSize(1), 10, TimeUnit.MILLISECONDS));
+      Assert.assertEquals(100, queue.getBytes());
+
+      queue.take();
+      Assert.assertEquals(40, queue.getBytes());
+      Assert.assertTrue(queue.offer(Fixtures.imageOfSize(60)));
+      Assert.assertEquals(2, queue.getHighWaterFrames());
+      Assert.assertEquals(100, queue.getHighWaterBytes());
+   }
+
+   @Test
+   public void oversizedImageIsAcceptedWhenEmpty() throws Exception {
+      ImageTransferQueue queue = new ImageTransferQueue(30, 100);
+      queue.put(Fixtures.imageOfSize(500));
+      Assert.assertFalse(queue.offer(Fixtures.imageOfSize(1)));
+      Assert.assertEquals(500, ImageTransferQueue.bytesOf(queue.take()));
+      Assert.assertEquals(0, queue.getBytes());
+   }
+
+   @Test
+   public void frameLimitAndDrainAreAccounted() throws Exception {
+      ImageTransferQueue queue = new ImageTransferQueue(2, Long.MAX_VALUE);
+      queue.put(new TaggedImage(new short[10], null));
+      queue.put(Fixtures.imageOfSize(5));
+      Assert.assertEquals(0, queue.remainingCapacity());
+      Assert.assertFalse(queue.offer(Fixtures.imageOfSize(1)));
+      Assert.assertEquals(25, queue.getBytes());
+
+      List<TaggedImage> drained = new ArrayList<>();
+      Assert.assertEquals(2, queue.drainTo(drained));
+      Assert.assertEquals(0, queue.getBytes());
+
+      // Limits can be raised while running
+      queue.setLimits(3, Long.MAX_VALUE);
+      for (int i = 0; i < 3; i++) {
+         Assert.assertTrue(queue.offer(Fixtures.imageOfSize(1)));
+      }
+      Assert.assertEquals(3, queue.getHighWaterFrames());
+   }
+
+   @Test
+   public void removalThatBypassesAccountingIsRefused() throws Exception {
+      ImageTransferQueue queue = new ImageTransferQueue(30, 100);
+      queue.put(Fixtures.imageOfSize(10));
+      queue.put(Fixtures.imageOfSize(20));
+      Iterator<TaggedImage> iterator = queue.iterator();
+      iterator.next();
+      assertUnsupported(iterator::remove);
+      assertUnsupported(() -> queue.removeIf(image -> true));
+      assertUnsupported(() -> queue.removeAll(new ArrayList<>(queue)));
+      assertUnsupported(() -> queue.retainAll(new ArrayList<>()));
+      Assert.assertEquals(2, queue.size());
+      Assert.assertEquals(30, queue.getBytes());
+
+      // Removing single images is still accounted for
+      Assert.assertTrue(queue.remove(queue.peekLast()));
+      Assert.assertEquals(10, queue.getBytes());
+   }
+
+   private static void assertUnsupported(Runnable removal) {
+      try {
+         removal.run();
+         Assert.fail("expected the removal to be refused");
+      } catch (UnsupportedOperationException e) {
+         // expected
+      }
+   }
+
+   @Test
+   public void blockedPutResumesWhenSpaceFrees() throws Exception {
+      ImageTransferQueue queue = new ImageTransferQueue(30, 10);
+      queue.put(Fixtures.imageOfSize(10));
+      Thread producer = new Thread(() -> {
+         try {
+            queue.put(Fixtures.imageOfSize(10));
+         } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+         }
+      });
+      producer.start();
+      producer.join(50);
+      Assert.assertTrue("put should block while over budget", producer.isAlive());
+      queue.takeFirst();
+      producer.join(5000);
+      Assert.assertFalse(producer.isAlive());
+      Assert.assertEquals(1, queue.size());
+   }
+}
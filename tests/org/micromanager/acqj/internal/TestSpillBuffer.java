@@ -0,0 +1,116 @@
+package org.micromanager.acqj.internal;
+
+import java.util.concurrent.TimeUnit;
+import mmcorej.TaggedImage;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for {@link SpillBuffer}.
+ */
+public class TestSpillBuffer {
+
+   @Test
+   public void spilledImagesComeBackInOrder() throws Exception {
+      ImageTransferQueue queue = new ImageTransferQueue(2, Long.MAX_VALUE);
+      // Only room for a few records, so the ring wraps around many times
+      SpillBuffer spill = new SpillBuffer(queue, null, 200);
+      int count = 100;
+      Thread producer = new Thread(() -> {
+         try {
+            for (int i = 0; i < count; i++) {
+               spill.put(Fixtures.image(i));
+            }
+            spill.put(new TaggedImage(null, null));
+         } catch (Exception e) {
+            throw new RuntimeException(e);
+         }
+      });
+      producer.start();
+
+      for (int i = 0; i < count; i++) {
+         TaggedImage image = queue.pollFirst(5, TimeUnit.SECONDS);
+         Assert.assertNotNull("image " + i + " never arrived", image);
+         Assert.assertEquals(i, image.tags.getInt("Index"));
+         Assert.assertEquals((short) i, ((short[]) image.pix)[0]);
+         Assert.assertEquals((short) -i, ((short[]) image.pix)[15]);
+         if (i % 10 == 0) {
+            // Let the producer get ahead
+            Thread.sleep(5);
+         }
+      }
+      TaggedImage finished = queue.pollFirst(5, TimeUnit.SECONDS);
+      Assert.assertNull(finished.pix);
+      Assert.assertNull(finished.tags);
+      producer.join(5000);
+      Assert.assertTrue(spill.getSpilledCount() > 0);
+      Assert.assertTrue(spill.getHighWaterBytes() <= 200);
+      // The drain thread lets go of the last record just after handing it over
+      long deadline = System.currentTimeMillis() + 5000;
+      while (spill.size() > 0 && System.currentTimeMillis() < deadline) {
+         Thread.sleep(1);
+      }
+      Assert.assertEquals(0, spill.size());
+   }
+
+   @Test
+   public void imagesBypassTheFileWhileTheQueueHasRoom() throws Exception {
+      ImageTransferQueue queue = new ImageTransferQueue(2, Long.MAX_VALUE);
+      SpillBuffer spill = new SpillBuffer(queue, null, 1 << 16);
+      Assert.assertFalse(spill.put(Fixtures.image(0)));
+      Assert.assertFalse(spill.put(Fixtures.image(1)));
+      Assert.assertTrue(spill.put(Fixtures.image(2)));
+      Assert.assertEquals(1, spill.size());
+
+      Assert.assertEquals(0, queue.takeFirst().tags.getInt("Index"));
+      Assert.assertEquals(1, queue.takeFirst().tags.getInt("Index"));
+      Assert.assertEquals(2, queue.pollFirst(5, TimeUnit.SECONDS).tags.getInt("Index"));
+      spill.close();
+   }
+
+   @Test
+   public void closeIsntHeldUpByAnOversizedImageWaitingForTheQueue() throws Exception {
+      ImageTransferQueue queue = new ImageTransferQueue(1, Long.MAX_VALUE);
+      // Too small for any record, so images go straight to the queue
+      SpillBuffer spill = new SpillBuffer(queue, null, 20);
+      Assert.assertFalse(spill.put(Fixtures.image(0)));
+      TaggedImage oversized = Fixtures.image(1);
+      Thread producer = new Thread(() -> {
+         try {
+            spill.put(oversized);
+         } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+         }
+      });
+      producer.start();
+      while (producer.getState() != Thread.State.WAITING) {
+         Thread.sleep(1);
+      }
+
+      Thread closer = new Thread(spill::close);
+      closer.start();
+      closer.join(5000);
+      Assert.assertFalse("close() waited for the queue", closer.isAlive());
+
+      Assert.assertEquals(0, queue.takeFirst().tags.getInt("Index"));
+      Assert.assertEquals(1, queue.pollFirst(5, TimeUnit.SECONDS).tags.getInt("Index"));
+      producer.join(5000);
+   }
+
+   @Test
+   public void drainThreadExitsWhenTheFinishSignalSkipsTheFile() throws Exception {
+      ImageTransferQueue queue = new ImageTransferQueue(4, Long.MAX_VALUE);
+      SpillBuffer spill = new SpillBuffer(queue, null, 1 << 16);
+      Assert.assertFalse(spill.put(Fixtures.image(0)));
+      Assert.assertFalse(spill.put(new TaggedImage(null, null)));
+
+      spill.getDrainThread().join(5000);
+      Assert.assertFalse(spill.getDrainThread().isAlive());
+      try {
+         spill.put(Fixtures.image(1));
+         Assert.fail("Put after the finish signal");
+      } catch (RuntimeException e) {
+         // closed
+      }
+   }
+}
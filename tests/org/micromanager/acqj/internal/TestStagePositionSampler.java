@@ -0,0 +1,47 @@
+package org.micromanager.acqj.internal;
+
+import mmcorej.org.json.JSONObject;
+import org.junit.Assert;
+import org.junit.Test;
+import org.micromanager.acqj.main.AcqEngMetadata;
+import org.micromanager.acqj.util.MetadataClock;
+
+/**
+ * Tests for {@link StagePositionSampler}.
+ */
+public class TestStagePositionSampler {
+
+   @Test
+   public void positionsAreInterpolatedAtTheTimeOfTheImage() throws Exception {
+      RecordingCMMCore core = new RecordingCMMCore("Z", "XY", "", "Cam");
+      StagePositionSampler sampler = new StagePositionSampler(core, 1000);
+      long beforeSampling = MetadataClock.nanoTime();
+      core.setPosition("Z", 0);
+      core.setXYPosition("XY", 0, 0);
+      sampler.sample();
+      long afterFirst = MetadataClock.nanoTime();
+      Thread.sleep(2);
+      core.setPosition("Z", 10);
+      core.setXYPosition("XY", 100, -100);
+      long beforeSecond = MetadataClock.nanoTime();
+      sampler.sample();
+
+      // Before the first reading, nothing is known
+      JSONObject tags = new JSONObject();
+      sampler.addPositions(tags, beforeSampling - 1);
+      Assert.assertEquals(0, tags.length());
+
+      // Between the readings, somewhere in between
+      sampler.addPositions(tags, afterFirst + (beforeSecond - afterFirst) / 2);
+      double z = AcqEngMetadata.getZPositionUm(tags);
+      Assert.assertTrue(z > 0 && z < 10);
+      double y = tags.getDouble(AcqEngMetadata.Y_UM);
+      Assert.assertTrue(y > -100 && y < 0);
+
+      // After the last reading, the last positions
+      sampler.addPositions(tags, MetadataClock.nanoTime());
+      Assert.assertEquals(10, AcqEngMetadata.getZPositionUm(tags), 0);
+      Assert.assertEquals(100, tags.getDouble(AcqEngMetadata.X_UM), 0);
+      Assert.assertEquals(0, sampler.getFailedReadCount());
+   }
+}
@@ -0,0 +1,62 @@
+package org.micromanager.acqj.main;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import mmcorej.TaggedImage;
+import org.junit.Assert;
+import org.junit.Test;
+import org.micromanager.acqj.api.DataSinkOverflowPolicy;
+import org.micromanager.acqj.internal.Fixtures;
+import org.micromanager.acqj.internal.Fixtures.GatedSink;
+
+/**
+ * Tests for saving to several data sinks with {@link Acquisition#addDataSink}.
+ */
+public class TestAdditionalDataSinks {
+
+   @Test
+   public void slowSinkOnlyHoldsUpItsOwnLane() throws Exception {
+      int count = 20;
+      GatedSink main = new GatedSink(new CountDownLatch(0), count);
+      CountDownLatch displayGate = new CountDownLatch(1);
+      GatedSink display = new GatedSink(displayGate, count);
+      Acquisition acq = new Acquisition(null, main, false);
+      acq.addDataSink(display, DataSinkOverflowPolicy.DROP, 2, 0);
+      List<AcqNotification> notifications = new CopyOnWriteArrayList<>();
+      CountDownLatch sinksFinished = new CountDownLatch(1);
+      acq.addAcqNotificationListener(n -> {
+         notifications.add(n);
+         if (n.isDataSinkFinishedNotification()) {
+            sinksFinished.countDown();
+         }
+      });
+      acq.start();
+
+      for (int i = 0; i < count; i++) {
+         acq.addToOutput(Fixtures.image(i));
+      }
+      acq.addToOutput(new TaggedImage(null, null));
+
+      // The main sink saves everything while the display sink is stuck
+      Assert.assertTrue(main.saving_.await(5, TimeUnit.SECONDS));
+      Assert.assertTrue(display.reached_.await(5, TimeUnit.SECONDS));
+      Assert.assertTrue(display.saved_.isEmpty());
+      // Sinks aren't finished while one of them still holds an image
+      Assert.assertEquals(1, sinksFinished.getCount());
+
+      displayGate.countDown();
+      acq.waitForCompletion();
+      Assert.assertTrue(main.isFinished());
+      Assert.assertTrue(display.isFinished());
+      Assert.assertTrue(acq.getDroppedImageCount(display) > 0);
+      Assert.assertEquals(count, display.saved_.size() + acq.getDroppedImageCount(display));
+      for (int i = 1; i < display.saved_.size(); i++) {
+         Assert.assertTrue(display.saved_.get(i) > display.saved_.get(i - 1));
+      }
+      Assert.assertTrue(sinksFinished.await(5, TimeUnit.SECONDS));
+      Assert.assertEquals(1, notifications.stream()
+            .filter(AcqNotification::isDataSinkFinishedNotification).count());
+   }
+}
@@ -0,0 +1,139 @@
+package org.micromanager.acqj.main;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import mmcorej.TaggedImage;
+import mmcorej.org.json.JSONObject;
+import org.junit.Assert;
+import org.junit.Test;
+import org.micromanager.acqj.api.AsyncAcqEngJDataSink;
+
+/**
+ * Tests for saving images through an {@link AsyncAcqEngJDataSink}.
+ */
+public class TestAsyncDataSink {
+
+   /**
+    * Sink that writes on a thread pool, taking a random time per image.
+    */
+   private static class PooledSink implements AsyncAcqEngJDataSink {
+      final ExecutorService writers_ = Executors.newFixedThreadPool(8);
+      final Random random_ = new Random(1);
+      final AtomicInteger outstanding_ = new AtomicInteger();
+      final AtomicInteger maxOutstanding_ = new AtomicInteger();
+      final AtomicInteger written_ = new AtomicInteger();
+      volatile int writtenWhenFinished_ = -1;
+
+      @Override
+      public void initialize(Acquisition acq, JSONObject summaryMetadata) {
+      }
+
+      @Override
+      public CompletableFuture<Object> putImageAsync(TaggedImage image) {
+         int count = outstanding_.incrementAndGet();
+         maxOutstanding_.accumulateAndGet(count, Math::max);
+         int delayMs = random_.nextInt(5);
+         return CompletableFuture.supplyAsync(() -> {
+            try {
+               Thread.sleep(delayMs);
+               written_.incrementAndGet();
+               outstanding_.decrementAndGet();
+               return "image " + image.tags.getInt("Index");
+            } catch (Exception e) {
+               throw new RuntimeException(e);
+            }
+         }, writers_);
+      }
+
+      @Override
+      public void finish() {
+         writtenWhenFinished_ = written_.get();
+         writers_.shutdown();
+      }
+
+      @Override
+      public boolean isFinished() {
+         return writtenWhenFinished_ >= 0;
+      }
+
+      @Override
+      public boolean anythingAcquired() {
+         return written_.get() > 0;
+      }
+   }
+
+   @Test
+   public void writesOverlapButAreNotifiedInOrder() throws Exception {
+      PooledSink sink = new PooledSink();
+      Acquisition acq = new Acquisition(null, sink, false);
+      acq.setMaxOutstandingWrites(3);
+      List<AcqNotification> notifications = new CopyOnWriteArrayList<>();
+      acq.addAcqNotificationListener(notifications::add);
+      acq.start();
+
+      int count = 40;
+      for (int i = 0; i < count; i++) {
+         JSONObject tags = new JSONObject();
+         tags.put("Index", i);
+         acq.addToOutput(new TaggedImage(new byte[16], tags));
+      }
+      acq.addToOutput(new TaggedImage(null, null));
+      acq.waitForCompletion();
+
+      // finish is only called after every write completed
+      Assert.assertEquals(count, sink.writtenWhenFinished_);
+      Assert.assertTrue(sink.maxOutstanding_.get() > 1);
+      Assert.assertTrue(sink.maxOutstanding_.get() <= 3);
+
+      long deadline = System.currentTimeMillis() + 5000;
+      while (notifications.stream().noneMatch(AcqNotification::isDataSinkFinishedNotification)
+            && System.currentTimeMillis() < deadline) {
+         Thread.sleep(1);
+      }
+      List<String> saved = new ArrayList<>();
+      for (AcqNotification n : notifications) {
+         if (AcqNotification.Image.IMAGE_SAVED.equals(n.milestone_)) {
+            saved.add(n.payload_);
+         }
+      }
+      Assert.assertEquals(count, saved.size());
+      for (int i = 0; i < count; i++) {
+         Assert.assertEquals("image " + i, saved.get(i));
+      }
+   }
+
+   @Test
+   public void savedNotificationIsPostedWithoutWaitingForTheNextImage() throws Exception {
+      CompletableFuture<Object> write = new CompletableFuture<>();
+      CountDownLatch saved = new CountDownLatch(1);
+      PooledSink sink = new PooledSink() {
+         @Override
+         public CompletableFuture<Object> putImageAsync(TaggedImage image) {
+            return write;
+         }
+      };
+      Acquisition acq = new Acquisition(null, sink, false);
+      acq.addAcqNotificationListener(n -> {
+         if (AcqNotification.Image.IMAGE_SAVED.equals(n.milestone_)) {
+            saved.countDown();
+         }
+      });
+      acq.start();
+
+      acq.addToOutput(new TaggedImage(new byte[16], new JSONObject()));
+      write.complete("only image");
+      // The last image of a burst: nothing else comes in until much later
+      Assert.assertTrue(saved.await(5, TimeUnit.SECONDS));
+
+      acq.addToOutput(new TaggedImage(null, null));
+      acq.waitForCompletion();
+   }
+}
@@ -0,0 +1,64 @@
+package org.micromanager.acqj.main;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import mmcorej.TaggedImage;
+import org.junit.Assert;
+import org.junit.Test;
+import org.micromanager.acqj.api.AcqEngJDataSink;
+import org.micromanager.acqj.internal.Fixtures;
+import org.micromanager.acqj.internal.Fixtures.GatedSink;
+
+/**
+ * Tests for saving images in batches with {@link AcqEngJDataSink#putImages(List)}.
+ */
+public class TestBatchedSaving {
+
+   @Test
+   public void waitingImagesAreSavedTogetherInOrder() throws Exception {
+      // Hold up the first image until released, so that the rest queue up
+      GatedSink sink = new GatedSink(new CountDownLatch(1), 10);
+      Acquisition acq = new Acquisition(null, sink, false);
+      acq.setImageSavingBatchSize(4);
+      List<AcqNotification> notifications = new CopyOnWriteArrayList<>();
+      CountDownLatch sinkFinished = new CountDownLatch(1);
+      acq.addAcqNotificationListener(n -> {
+         notifications.add(n);
+         if (n.isDataSinkFinishedNotification()) {
+            sinkFinished.countDown();
+         }
+      });
+      acq.start();
+
+      acq.addToOutput(Fixtures.image(0));
+      // Let the saving thread take the first image and block in the sink
+      Assert.assertTrue(sink.reached_.await(5, TimeUnit.SECONDS));
+      for (int i = 1; i < 10; i++) {
+         acq.addToOutput(Fixtures.image(i));
+      }
+      acq.addToOutput(new TaggedImage(null, null));
+      sink.gate_.countDown();
+      acq.waitForCompletion();
+
+      Assert.assertTrue(sink.isFinished());
+      List<Integer> expected = new ArrayList<>();
+      for (int i = 0; i < 10; i++) {
+         expected.add(i);
+      }
+      Assert.assertEquals(expected, sink.saved_);
+      // The images queued up behind the first are saved in full batches
+      Assert.assertEquals(4, (int) sink.batchSizes_.get(1));
+      Assert.assertTrue(sink.batchSizes_.stream().allMatch(size -> size <= 4));
+      Assert.assertEquals(10, sink.batchSizes_.stream().mapToInt(Integer::intValue).sum());
+
+      Assert.assertTrue(sinkFinished.await(5, TimeUnit.SECONDS));
+      long batchNotifications = notifications.stream()
+            .filter(AcqNotification::isImagesSavedNotification).count();
+      Assert.assertEquals(sink.batchSizes_.size(), batchNotifications);
+      Assert.assertTrue(notifications.stream()
+            .noneMatch(n -> AcqNotification.Image.IMAGE_SAVED.equals(n.milestone_)));
+   }
+}
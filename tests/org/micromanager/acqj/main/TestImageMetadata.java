@@ -0,0 +1,107 @@
+package org.micromanager.acqj.main;
+
+import java.util.ArrayList;
+import java.util.List;
+import mmcorej.org.json.JSONObject;
+import org.junit.Assert;
+import org.junit.Test;
+import org.micromanager.acqj.api.AcquisitionAPI;
+import org.micromanager.acqj.example.BlackHoleDataSink;
+
+/**
+ * Tests for {@link ImageMetadata}.
+ */
+public class TestImageMetadata {
+
+   private static ImageMetadata metadata(JSONObject coreTags) {
+      ImageMetadata metadata = new ImageMetadata(coreTags);
+      metadata.setPixelSizeUm(0.5);
+      metadata.setTimes(1234, 0);
+      metadata.setExposure(10);
+      metadata.setStageZIntended(3.5);
+      metadata.setAxisPosition(AcqEngMetadata.CHANNEL_AXIS, "DAPI");
+      metadata.setAxisPosition(AcqEngMetadata.Z_AXIS, 2);
+      return metadata;
+   }
+
+   @Test
+   public void standardFieldsAreOnlyWrittenWhenRead() throws Exception {
+      JSONObject coreTags = new JSONObject();
+      coreTags.put("Camera", "Cam");
+      ImageMetadata metadata = metadata(coreTags);
+
+      // Axes and other keys don't need the JSON
+      AcqEngMetadata.setAxisPosition(metadata, "camera", "Cam");
+      Assert.assertEquals("DAPI", AcqEngMetadata.getAxisPosition(metadata, "channel"));
+      Assert.assertEquals(3, AcqEngMetadata.getAxes(metadata).size());
+      Assert.assertEquals("Cam", metadata.getString("Camera"));
+      metadata.put(AcqEngMetadata.TAGS, new JSONObject());
+      Assert.assertFalse(coreTags.has(AcqEngMetadata.AXES));
+      Assert.assertFalse(coreTags.has(AcqEngMetadata.EXPOSURE));
+
+      // Reading a standard field writes them all
+      Assert.assertEquals(10, AcqEngMetadata.getExposure(metadata), 0);
+      Assert.assertEquals(1234, AcqEngMetadata.getElapsedTimeMs(coreTags));
+      Assert.assertEquals(3.5, AcqEngMetadata.getStageZIntended(coreTags), 0);
+      Assert.assertEquals(0.5, AcqEngMetadata.getPixelSizeUm(coreTags), 0);
+      Assert.assertEquals(2, AcqEngMetadata.getAxes(coreTags).get("z"));
+      Assert.assertEquals("Cam", AcqEngMetadata.getAxes(coreTags).get("camera"));
+      Assert.assertTrue(coreTags.has(AcqEngMetadata.TAGS));
+   }
+
+   @Test
+   public void serializesLikeTheCoreTagsWithFieldsAdded() throws Exception {
+      JSONObject coreTags = new JSONObject();
+      coreTags.put("Camera", "Cam");
+      ImageMetadata metadata = metadata(coreTags);
+      JSONObject parsed = new JSONObject(metadata.toString());
+
+      Assert.assertEquals(coreTags.toString(), metadata.toString());
+      Assert.assertEquals("Cam", parsed.getString("Camera"));
+      Assert.assertEquals("DAPI", AcqEngMetadata.getAxes(parsed).get("channel"));
+      Assert.assertEquals(metadata.length(), parsed.length());
+
+      // Standard fields can be overwritten like any other
+      AcqEngMetadata.setExposure(metadata, 20);
+      Assert.assertEquals(20, AcqEngMetadata.getExposure(coreTags), 0);
+      AcqEngMetadata.setAxisPosition(metadata, "z", 5);
+      Assert.assertEquals(5, AcqEngMetadata.getAxisPosition(coreTags, "z"));
+   }
+
+   @Test
+   public void sequenceIsDescribedOnceAndImagesGetTheirIndex() throws Exception {
+      List<AcquisitionEvent> events = new ArrayList<>();
+      for (int i = 0; i < 3; i++) {
+         AcquisitionEvent event = new AcquisitionEvent((AcquisitionAPI) null);
+         event.setAxisPosition(AcqEngMetadata.Z_AXIS, i);
+         event.setZ(i, (double) i);
+         events.add(event);
+      }
+      AcquisitionEvent sequence = new AcquisitionEvent(events);
+      Acquisition acq = new Acquisition(new BlackHoleDataSink(), false);
+      int id = acq.addEventSequence(sequence);
+
+      JSONObject first = new JSONObject();
+      ImageMetadata firstMetadata = metadata(first);
+      AcqEngMetadata.setSequencePosition(firstMetadata, id, 0);
+      JSONObject second = new JSONObject();
+      ImageMetadata secondMetadata = metadata(second);
+      AcqEngMetadata.setSequencePosition(secondMetadata, id, 1);
+      Assert.assertFalse(first.has(AcqEngMetadata.SEQUENCE_ID));
+
+      Assert.assertEquals(id, AcqEngMetadata.getSequenceId(secondMetadata));
+      Assert.assertEquals(1, AcqEngMetadata.getSequenceIndex(second));
+      // Neither image carries the sequence itself
+      Assert.assertFalse(firstMetadata.has(AcqEngMetadata.ACQUISITION_EVENT));
+      Assert.assertFalse(second.has(AcqEngMetadata.ACQUISITION_EVENT));
+      Assert.assertSame(sequence, AcqEngMetadata.getEventSequence(firstMetadata, acq));
+      Assert.assertSame(sequence, AcqEngMetadata.getEventSequence(second, acq));
+      Assert.assertNull(AcqEngMetadata.getEventSequence(new JSONObject(), acq));
+
+      // Saved once for the whole acquisition
+      AcquisitionEvent parsed = AcquisitionEvent.fromJSON(
+            acq.getEventSequencesJSON().getJSONObject(Integer.toString(id)), null);
+      Assert.assertEquals(3, parsed.getSequence().size());
+      Assert.assertEquals(2.0, parsed.getSequence().get(2).getZPosition(), 0);
+   }
+}
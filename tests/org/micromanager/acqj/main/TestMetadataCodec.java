@@ -0,0 +1,90 @@
+package org.micromanager.acqj.main;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import mmcorej.org.json.JSONArray;
+import mmcorej.org.json.JSONObject;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for {@link MetadataCodec}.
+ */
+public class TestMetadataCodec {
+
+   private static JSONObject tags(int index) throws Exception {
+      JSONObject tags = new JSONObject();
+      tags.put("Camera", "Cam");
+      tags.put("Binning", "1");
+      tags.put(AcqEngMetadata.ELAPSED_TIME_MS, 1000L + index);
+      tags.put(AcqEngMetadata.EXPOSURE, 2.5);
+      tags.put("Index", index);
+      tags.put("Flag", index % 2 == 0);
+      tags.put("Nothing", JSONObject.NULL);
+      tags.put("List", new JSONArray().put(1).put("two"));
+      JSONObject axes = new JSONObject();
+      axes.put("time", index);
+      axes.put("channel", "DAPI");
+      tags.put(AcqEngMetadata.AXES, axes);
+      return tags;
+   }
+
+   /**
+    * Same keys, with values of the same types, whatever the order of the keys.
+    */
+   private static void assertSameJSON(JSONObject expected, JSONObject actual) throws Exception {
+      Assert.assertEquals(expected.length(), actual.length());
+      Iterator<String> keys = expected.keys();
+      while (keys.hasNext()) {
+         String key = keys.next();
+         Object value = expected.get(key);
+         if (value instanceof JSONObject) {
+            assertSameJSON((JSONObject) value, actual.getJSONObject(key));
+         } else if (value instanceof JSONArray) {
+            Assert.assertEquals(value.toString(), actual.getJSONArray(key).toString());
+         } else {
+            Assert.assertEquals(key, value, actual.get(key));
+         }
+      }
+   }
+
+   @Test
+   public void recordsDecodeToTheSameJSON() throws Exception {
+      MetadataCodec codec = new MetadataCodec();
+      JSONObject first = tags(0);
+      ByteBuffer firstRecord = codec.encode(first);
+      Assert.assertTrue(firstRecord.remaining() < first.toString().length());
+
+      // Fields that come and go, and nested objects with new fields
+      JSONObject second = tags(1);
+      second.remove("Binning");
+      second.put("New", "value");
+      second.getJSONObject(AcqEngMetadata.AXES).put("z", 3);
+      second.getJSONObject(AcqEngMetadata.AXES).remove("channel");
+      ByteBuffer secondRecord = codec.encode(second);
+
+      assertSameJSON(first, codec.decode(firstRecord));
+      assertSameJSON(second, codec.decode(secondRecord));
+      Assert.assertEquals(0, firstRecord.position());
+      JSONObject decoded = codec.decode(secondRecord);
+      Assert.assertEquals(1001L, decoded.get(AcqEngMetadata.ELAPSED_TIME_MS));
+      Assert.assertEquals(1, decoded.get("Index"));
+      Assert.assertEquals(3, AcqEngMetadata.getAxes(decoded).get("z"));
+
+      // The schema is all that is needed to decode later
+      MetadataCodec saved = new MetadataCodec(new JSONObject(codec.getSchema().toString()));
+      assertSameJSON(second, saved.decode(secondRecord));
+   }
+
+   @Test
+   public void encodesLazyImageMetadata() throws Exception {
+      ImageMetadata metadata = new ImageMetadata(new JSONObject());
+      metadata.setExposure(10);
+      metadata.setAxisPosition(AcqEngMetadata.Z_AXIS, 2);
+      MetadataCodec codec = new MetadataCodec();
+
+      JSONObject decoded = codec.decode(codec.encode(metadata));
+      assertSameJSON(metadata.getJSON(), decoded);
+      Assert.assertEquals(10, AcqEngMetadata.getExposure(decoded), 0);
+   }
+}
@@ -0,0 +1,126 @@
+package org.micromanager.acqj.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import mmcorej.TaggedImage;
+import mmcorej.org.json.JSONObject;
+import org.junit.Assert;
+import org.junit.Test;
+import org.micromanager.acqj.example.BlackHoleDataSink;
+import org.micromanager.acqj.internal.Fixtures;
+import org.micromanager.acqj.main.Acquisition;
+
+/**
+ * Tests for {@link BranchingImageProcessor}.
+ */
+public class TestBranchingImageProcessor {
+
+   /**
+    * Tags each image with its name, and blocks until released.
+    */
+   private static class NamedProcessor extends ImageProcessorBase {
+      final String name_;
+      final CountDownLatch gate_;
+      final List<Integer> seen_ = Collections.synchronizedList(new ArrayList<>());
+      volatile boolean shutDown_ = false;
+
+      NamedProcessor(String name, CountDownLatch gate) {
+         name_ = name;
+         gate_ = gate;
+      }
+
+      @Override
+      protected TaggedImage processImage(TaggedImage img) {
+         if (img.tags == null && img.pix == null) {
+            shutDown_ = true;
+            return null;
+         }
+         try {
+            gate_.await();
+            seen_.add(img.tags.getInt("Index"));
+            JSONObject tags = new JSONObject(img.tags.toString());
+            tags.put("Branch", name_);
+            return new TaggedImage(img.pix, tags);
+         } catch (Exception e) {
+            throw new RuntimeException(e);
+         }
+      }
+   }
+
+   @Test
+   public void cheapBranchDoesNotWaitForExpensiveOne() throws Exception {
+      CountDownLatch open = new CountDownLatch(0);
+      CountDownLatch analysisGate = new CountDownLatch(1);
+      NamedProcessor thumbnail = new NamedProcessor("thumbnail", open);
+      NamedProcessor analysis = new NamedProcessor("analysis", analysisGate);
+      BranchingImageProcessor branching = new BranchingImageProcessor()
+            .addBranch(thumbnail)
+            .addBranch(Collections.singletonList(analysis), false, true, 2);
+      LinkedBlockingQueue<TaggedImage> source = new LinkedBlockingQueue<>();
+      LinkedBlockingQueue<TaggedImage> sink = new LinkedBlockingQueue<>();
+      branching.setAcqAndQueues(null, source, sink);
+
+      int count = 20;
+      for (int i = 0; i < count; i++) {
+         source.put(Fixtures.image(i));
+      }
+      source.put(new TaggedImage(null, null));
+
+      // Everything comes through the thumbnail branch while analysis is stuck
+      for (int i = 0; i < count; i++) {
+         TaggedImage img = sink.poll(5, TimeUnit.SECONDS);
+         Assert.assertNotNull("image " + i + " never arrived", img);
+         Assert.assertEquals(i, img.tags.getInt("Index"));
+         Assert.assertEquals("thumbnail", img.tags.getString("Branch"));
+      }
+      Assert.assertTrue(analysis.seen_.isEmpty());
+      // The shutdown signal waits for the analysis branch
+      Assert.assertNull(sink.poll(50, TimeUnit.MILLISECONDS));
+
+      analysisGate.countDown();
+      TaggedImage last = sink.poll(5, TimeUnit.SECONDS);
+      Assert.assertNull(last.pix);
+      Assert.assertNull(last.tags);
+      Assert.assertNull(sink.poll(50, TimeUnit.MILLISECONDS));
+      Assert.assertTrue(thumbnail.shutDown_);
+      Assert.assertTrue(analysis.shutDown_);
+      // The lossy analysis branch skipped what it couldn't queue
+      Assert.assertTrue(branching.getSkippedCount() > 0);
+      Assert.assertEquals(count, analysis.seen_.size() + branching.getSkippedCount());
+   }
+
+   @Test
+   public void pooledPixelsAreReusedOnlyOnceEveryBranchIsDone() throws Exception {
+      PixelBufferPool pool = new PixelBufferPool(1 << 20, 1 << 20);
+      Acquisition acq = new Acquisition(new BlackHoleDataSink(), false);
+      acq.setPixelBufferPool(pool);
+      CountDownLatch analysisGate = new CountDownLatch(1);
+      NamedProcessor analysis = new NamedProcessor("analysis", analysisGate);
+      BranchingImageProcessor branching = new BranchingImageProcessor()
+            .addBranch()
+            .addBranch(Collections.singletonList(analysis), false, false, 2);
+      LinkedBlockingQueue<TaggedImage> source = new LinkedBlockingQueue<>();
+      LinkedBlockingQueue<TaggedImage> sink = new LinkedBlockingQueue<>();
+      branching.setAcqAndQueues(acq, source, sink);
+
+      TaggedImage pooled = Fixtures.image(0);
+      long bytes = 2 * ((short[]) pooled.pix).length;
+      source.put(new TaggedImage(pool.copyOf(pooled.pix), pooled.tags));
+      source.put(new TaggedImage(null, null));
+
+      // Saved and released while the analysis branch still has the image
+      acq.releaseImage(sink.poll(5, TimeUnit.SECONDS));
+      Assert.assertEquals(bytes, pool.getOutstandingBytes());
+
+      // The analysis branch's output isn't passed on, so it is released
+      analysisGate.countDown();
+      TaggedImage last = sink.poll(5, TimeUnit.SECONDS);
+      Assert.assertNull(last.pix);
+      Assert.assertEquals(0, pool.getOutstandingBytes());
+      Assert.assertEquals(bytes, pool.getRetainedBytes());
+   }
+}
@@ -0,0 +1,55 @@
+package org.micromanager.acqj.util;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for {@link MetadataClock}.
+ */
+public class TestMetadataClock {
+
+   @Test
+   public void formatsLikeSimpleDateFormatAndReusesTheSecond() {
+      long time = 1700000000123L;
+      String expected = new SimpleDateFormat(MetadataClock.IMAGE_TIME_PATTERN)
+            .format(new Date(time));
+
+      String first = MetadataClock.formatImageTime(time);
+      Assert.assertEquals(expected, first);
+      // Same second gives back the same string, without formatting again
+      Assert.assertSame(first, MetadataClock.formatImageTime(time + 800));
+      Assert.assertNotEquals(first, MetadataClock.formatImageTime(time + 1000));
+      Assert.assertEquals(new SimpleDateFormat(MetadataClock.DATE_TIME_PATTERN)
+            .format(new Date(time)), MetadataClock.formatDateTime(time));
+   }
+
+   @Test
+   public void nanoTimeConvertsToWallClock() {
+      long before = System.currentTimeMillis();
+      long nanos = MetadataClock.nanoTime();
+      long after = System.currentTimeMillis();
+
+      long epochMs = MetadataClock.toEpochMs(nanos);
+      // Allow for the wall clock having drifted from nanoTime since the base was read
+      Assert.assertTrue(epochMs >= before - 50 && epochMs <= after + 50);
+      Assert.assertEquals(epochMs + 5,
+            MetadataClock.toEpochMs(nanos + TimeUnit.MILLISECONDS.toNanos(5)));
+   }
+
+   @Test
+   public void resynchronizingKeepsTimesConsistent() {
+      long nanos = MetadataClock.nanoTime();
+      long epochMs = MetadataClock.toEpochMs(nanos);
+      MetadataClock.resynchronize();
+      long before = System.currentTimeMillis();
+      long now = MetadataClock.toEpochMs(MetadataClock.nanoTime());
+      long after = System.currentTimeMillis();
+
+      Assert.assertTrue(now >= before - 1 && now <= after + 1);
+      // Only the drift since the last reference changes the conversion
+      Assert.assertTrue(Math.abs(MetadataClock.toEpochMs(nanos) - epochMs) < 50);
+   }
+}
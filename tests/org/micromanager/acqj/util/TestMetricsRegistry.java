@@ -0,0 +1,47 @@
+package org.micromanager.acqj.util;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for {@link MetricsRegistry} and {@link LatencyHistogram}.
+ */
+public class TestMetricsRegistry {
+
+   @Test
+   public void histogramBucketsByPowerOfTwoMicroseconds() {
+      LatencyHistogram histogram = new LatencyHistogram();
+      for (int i = 0; i < 99; i++) {
+         histogram.record(TimeUnit.MICROSECONDS.toNanos(3));
+      }
+      histogram.record(TimeUnit.MILLISECONDS.toNanos(5));
+
+      Assert.assertEquals(100, histogram.getCount());
+      // 3 us falls in the [2, 4) us bucket, 5 ms in the [4096, 8192) us one
+      Assert.assertEquals(99, histogram.getBucketCounts()[2]);
+      Assert.assertEquals(1, histogram.getBucketCounts()[13]);
+      Assert.assertEquals(4.0, histogram.getPercentileUs(50), 0.0);
+      Assert.assertEquals(5000.0, histogram.getPercentileUs(100), 0.0);
+      Assert.assertEquals(5000.0, histogram.getMaxUs(), 0.0);
+      Assert.assertEquals((99 * 3 + 5000) / 100.0, histogram.getMeanUs(), 1e-9);
+   }
+
+   @Test
+   public void entriesAreCreatedOnFirstUse() {
+      MetricsRegistry metrics = new MetricsRegistry();
+      Assert.assertEquals(0, metrics.getCount("hardware.attempts"));
+
+      metrics.increment("hardware.attempts");
+      metrics.increment("hardware.attempts");
+      metrics.recordSince("startZDrive", System.nanoTime());
+
+      Assert.assertEquals(2, metrics.getCount("hardware.attempts"));
+      Assert.assertSame(metrics.histogram("startZDrive"), metrics.histogram("startZDrive"));
+      Assert.assertEquals(1, metrics.getHistograms().get("startZDrive").getCount());
+
+      metrics.reset();
+      Assert.assertEquals(0, metrics.getCount("hardware.attempts"));
+      Assert.assertEquals(0, metrics.histogram("startZDrive").getCount());
+   }
+}
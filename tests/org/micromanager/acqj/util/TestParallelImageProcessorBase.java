@@ -0,0 +1,77 @@
+package org.micromanager.acqj.util;
+
+import java.util.Random;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import mmcorej.TaggedImage;
+import mmcorej.org.json.JSONObject;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for {@link ParallelImageProcessorBase}.
+ */
+public class TestParallelImageProcessorBase {
+
+   /**
+    * Takes a random time per image, and drops every fifth one.
+    */
+   private static class SlowProcessor extends ParallelImageProcessorBase {
+      final AtomicInteger running_ = new AtomicInteger();
+      final AtomicInteger maxRunning_ = new AtomicInteger();
+      final AtomicInteger shutdownSignals_ = new AtomicInteger();
+
+      SlowProcessor() {
+         super(4);
+      }
+
+      @Override
+      protected TaggedImage processImage(TaggedImage img) {
+         if (img.tags == null && img.pix == null) {
+            shutdownSignals_.incrementAndGet();
+            return null;
+         }
+         maxRunning_.accumulateAndGet(running_.incrementAndGet(), Math::max);
+         try {
+            Thread.sleep(new Random().nextInt(5));
+            return img.tags.getInt("Index") % 5 == 4 ? null : img;
+         } catch (Exception e) {
+            throw new RuntimeException(e);
+         } finally {
+            running_.decrementAndGet();
+         }
+      }
+   }
+
+   @Test
+   public void outputOrderMatchesInputOrder() throws Exception {
+      LinkedBlockingQueue<TaggedImage> source = new LinkedBlockingQueue<>();
+      LinkedBlockingQueue<TaggedImage> sink = new LinkedBlockingQueue<>();
+      SlowProcessor processor = new SlowProcessor();
+      processor.setAcqAndQueues(null, source, sink);
+
+      int count = 50;
+      for (int i = 0; i < count; i++) {
+         JSONObject tags = new JSONObject();
+         tags.put("Index", i);
+         source.put(new TaggedImage(new byte[1], tags));
+      }
+      source.put(new TaggedImage(null, null));
+
+      for (int i = 0; i < count; i++) {
+         if (i % 5 == 4) {
+            continue;
+         }
+         TaggedImage img = sink.poll(5, TimeUnit.SECONDS);
+         Assert.assertNotNull("image " + i + " never arrived", img);
+         Assert.assertEquals(i, img.tags.getInt("Index"));
+      }
+      TaggedImage last = sink.poll(5, TimeUnit.SECONDS);
+      Assert.assertNull(last.pix);
+      Assert.assertNull(last.tags);
+      Assert.assertTrue(sink.isEmpty());
+      Assert.assertEquals(1, processor.shutdownSignals_.get());
+      Assert.assertTrue(processor.maxRunning_.get() > 1);
+   }
+}
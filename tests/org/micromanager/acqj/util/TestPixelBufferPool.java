@@ -0,0 +1,71 @@
+package org.micromanager.acqj.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for {@link PixelBufferPool}.
+ */
+public class TestPixelBufferPool {
+
+   @Test
+   public void releasedArraysAreReused() {
+      PixelBufferPool pool = new PixelBufferPool(1 << 20, 1 << 20);
+      short[] fromCore = new short[] {1, 2, 3};
+
+      short[] first = (short[]) pool.copyOf(fromCore);
+      Assert.assertNotSame(fromCore, first);
+      Assert.assertArrayEquals(fromCore, first);
+      Assert.assertEquals(6, pool.getOutstandingBytes());
+
+      pool.release(first);
+      // Releasing twice, or releasing an array that isn't pooled, is ignored
+      pool.release(first);
+      pool.release(fromCore);
+      Assert.assertEquals(0, pool.getOutstandingBytes());
+      Assert.assertEquals(6, pool.getRetainedBytes());
+
+      short[] second = (short[]) pool.copyOf(new short[] {4, 5, 6});
+      Assert.assertSame(first, second);
+      Assert.assertArrayEquals(new short[] {4, 5, 6}, second);
+      Assert.assertEquals(1, pool.getAllocationCount());
+      Assert.assertEquals(1, pool.getReuseCount());
+
+      // Arrays of another length or type get their own arrays
+      Assert.assertEquals(2, ((short[]) pool.copyOf(new short[2])).length);
+      Assert.assertTrue(pool.copyOf(new byte[3]) instanceof byte[]);
+      Assert.assertEquals(3, pool.getAllocationCount());
+   }
+
+   @Test
+   public void sizeLimitsAreRespected() {
+      PixelBufferPool pool = new PixelBufferPool(4, 8);
+      byte[] a = (byte[]) pool.copyOf(new byte[4]);
+      byte[] b = (byte[]) pool.copyOf(new byte[4]);
+      byte[] fromCore = new byte[4];
+      // Over the outstanding limit, so passed through as is
+      Assert.assertSame(fromCore, pool.copyOf(fromCore));
+      Assert.assertEquals(1, pool.getBypassCount());
+
+      pool.release(a);
+      pool.release(b);
+      // Only one of them fits within the retained limit
+      Assert.assertEquals(4, pool.getRetainedBytes());
+      Assert.assertEquals(0, pool.getOutstandingBytes());
+   }
+
+   @Test
+   public void unreleasedArraysAreReportedAsLeaks() throws Exception {
+      PixelBufferPool pool = new PixelBufferPool(1 << 20, 1 << 20);
+      pool.copyOf(new int[16]);
+      Assert.assertEquals(64, pool.getOutstandingBytes());
+
+      long deadline = System.currentTimeMillis() + 5000;
+      while (pool.getLeakCount() == 0 && System.currentTimeMillis() < deadline) {
+         System.gc();
+         Thread.sleep(10);
+      }
+      Assert.assertEquals(1, pool.getLeakCount());
+      Assert.assertEquals(0, pool.getOutstandingBytes());
+   }
+}
@@ -0,0 +1,50 @@
+package org.micromanager.acqj.util;
+
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for {@link TimeSeriesRing}.
+ */
+public class TestTimeSeriesRing {
+
+   @Test
+   public void interpolatesBetweenTheValuesItStillHas() {
+      TimeSeriesRing ring = new TimeSeriesRing(3);
+      Assert.assertEquals(4, ring.getCapacity());
+      Assert.assertTrue(Double.isNaN(ring.valueAt(0)));
+
+      for (int i = 0; i < 10; i++) {
+         ring.add(i * 10, i * 100.0);
+      }
+      Assert.assertEquals(10, ring.getCount());
+      Assert.assertEquals(850.0, ring.valueAt(85), 1e-9);
+      Assert.assertEquals(700.0, ring.valueAt(70), 1e-9);
+      // After the latest value, and before the oldest one still kept
+      Assert.assertEquals(900.0, ring.valueAt(1000), 0);
+      Assert.assertTrue(Double.isNaN(ring.valueAt(55)));
+   }
+
+   @Test
+   public void readersNeverSeeValuesBeingOverwritten() throws Exception {
+      TimeSeriesRing ring = new TimeSeriesRing(16);
+      int count = 2000000;
+      AtomicReference<String> error = new AtomicReference<>();
+      Thread reader = new Thread(() -> {
+         while (ring.getCount() < count && error.get() == null) {
+            long time = ring.getCount() - 10;
+            double value = ring.valueAt(time);
+            if (!Double.isNaN(value) && time > 0 && Math.abs(value - 2.0 * time) > 1e-6) {
+               error.set("value " + value + " at " + time);
+            }
+         }
+      });
+      reader.start();
+      for (int i = 0; i < count; i++) {
+         ring.add(i, 2.0 * i);
+      }
+      reader.join();
+      Assert.assertNull(error.get());
+   }
+}